@@ -0,0 +1,86 @@
+// --- HTTP CLIENTS TEST ---
+// The whole reason for one shared client: the second lookup goes out over the connection the first one opened.
+// A local MockWebServer answers a run of lookups, and both ends get asked how many connections that took.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+@RunWith(AndroidJUnit4.class)
+public class HttpClientsTest {
+
+    private static final int LOOKUPS = 10;
+
+    private MockWebServer server;
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cacheDirectory = new File(context.getCacheDir(), "http-test-" + System.nanoTime());
+        server = new MockWebServer();
+        server.start();
+        OpenFoodApiHelper.setBaseUrl(server.url("/").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OpenFoodApiHelper.setBaseUrl(OpenFoodApiHelper.DEFAULT_BASE_URL);
+        server.shutdown();
+        deleteAll(cacheDirectory);
+    }
+
+    @Test
+    public void repeatedLookupsShareOneConnection() throws Exception {
+        HttpMetrics metrics = new HttpMetrics();
+        OkHttpClient client = HttpClients.build(cacheDirectory, metrics);
+
+        for (int i = 0; i < LOOKUPS; i++) {
+            String barcode = "73762806450" + i; // A different product each time, so none of it comes out of the disk cache
+            server.enqueue(new MockResponse().setBody("{\"status\":1,\"product\":{\"code\":\"" + barcode + "\",\"product_name\":\"Item " + i + "\"}}"));
+            Request request = new Request.Builder().url(OpenFoodApiHelper.productUrl(barcode)).build();
+            try (Response response = client.newCall(request).execute()) {
+                assertEquals(200, response.code());
+                response.body().string(); // Read to the end, so the connection can go back to the pool
+            }
+        }
+
+        assertEquals(LOOKUPS, server.getRequestCount());
+        // The sequence number counts requests on one connection, so 0, 1, 2... all the way through means only one was ever opened
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(i, server.takeRequest().getSequenceNumber());
+        }
+        assertEquals(1, client.connectionPool().connectionCount());
+
+        HttpMetrics.Stats stats = metrics.stats();
+        assertEquals(LOOKUPS, stats.calls);
+        assertEquals(0, stats.failures);
+        assertEquals(LOOKUPS - 1, stats.reusedConnections);
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteAll(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,259 @@
+// --- OFFLINE PRODUCTS TEST ---
+// Imports the little dumps under offline/ in the test resources (a tab-separated CSV like the official export,
+// and a JSONL one with a broken line, a blank line and a barcode that shows up twice) into temp folders, then looks things up.
+// Covers what's there, what isn't, leading zeros, the last repeat winning, a sort split over lots of tiny runs,
+// and the .idx/.dat pairing: an index never gets used with another import's data file,
+// and a crash between build()'s two renames is finished off by the next reload.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class OfflineProductsTest {
+
+    private static final long IMPORTED_AT = 1_700_000_000_000L;
+
+    private File root;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        root = new File(context.getCacheDir(), "offline-test-" + System.nanoTime());
+        assertTrue(root.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(root);
+    }
+
+    @Test
+    public void csvDumpFindsWhatsThere() throws Exception {
+        File directory = folder("csv");
+        OfflineProducts.Result result = OfflineProducts.build(resource("products.csv"), directory, folder("work"), IMPORTED_AT);
+        assertEquals(12, result.rows);
+        assertEquals(2, result.skipped);  // "not-a-barcode" and the one with no code
+        assertEquals(9, result.products); // Nutella's in there twice
+
+        OfflineProducts products = new OfflineProducts(directory);
+        assertEquals(9, products.size());
+        Product coke = products.find("5449000000996");
+        assertEquals("Coca-Cola", coke.name);
+        assertEquals("330 ml", coke.quantity);
+        assertEquals("4", coke.novaGroup);
+        assertEquals("10.6", coke.sugars100g);
+        assertTrue(coke.hasNutrition);
+        assertEquals(IMPORTED_AT, coke.fetchedAt);
+
+        Product chocolate = products.find("4000417025005");
+        assertEquals("Ritter Sport", chocolate.brand);
+        assertFalse(chocolate.hasNutrition);
+        assertNull(chocolate.origin);
+        assertEquals("Unknown Product", products.find("8000500310427").name);
+        assertEquals("Kokosmilch", products.find("20724696").name); // EAN-8
+
+        assertFindsLeadingZeros(products);
+        assertMisses(products);
+    }
+
+    @Test
+    public void jsonlDumpFindsWhatsThere() throws Exception {
+        File directory = folder("jsonl");
+        OfflineProducts.Result result = OfflineProducts.build(resource("products.jsonl"), directory, folder("work"), IMPORTED_AT);
+        assertEquals(52, result.rows);    // The blank line isn't a row
+        assertEquals(2, result.skipped);  // "not-a-barcode" and the line that's cut off
+        assertEquals(49, result.products);
+
+        OfflineProducts products = new OfflineProducts(directory);
+        Product nutella = products.find("3017620422003");
+        assertEquals("Nutella (new recipe)", nutella.name); // The later row wins
+        assertEquals("539", nutella.energyKcal100g);
+        assertEquals("0.107", nutella.salt100g);
+        assertEquals("Filler 7", products.find("4000000055433").name);
+        assertNull(products.find("1234567890128")); // Only ever in the broken line
+
+        assertFindsLeadingZeros(products);
+        assertMisses(products);
+    }
+
+    @Test
+    public void gzippedDumpImportsTheSame() throws Exception {
+        File plain = folder("plain");
+        File gzipped = folder("gzipped");
+        OfflineProducts.build(resource("products.jsonl"), plain, folder("work"), IMPORTED_AT);
+        OfflineProducts.Result result = OfflineProducts.build(new ByteArrayInputStream(gzip(read(resource("products.jsonl")))),
+                gzipped, folder("work"), IMPORTED_AT);
+        assertEquals(49, result.products);
+        assertSameLookups(new OfflineProducts(plain), new OfflineProducts(gzipped), barcodesIn("products.jsonl"));
+    }
+
+    @Test
+    public void manySmallRunsMergeIntoTheSameIndex() throws Exception {
+        File oneRun = folder("one-run");
+        File manyRuns = folder("many-runs");
+        OfflineProducts.build(resource("products.jsonl"), oneRun, folder("work"), IMPORTED_AT);
+        // Three barcodes a run: seventeen runs, and the two Nutellas end up in different ones
+        OfflineProducts.Result result = OfflineProducts.build(resource("products.jsonl"), manyRuns, folder("work"), IMPORTED_AT, 3);
+        assertEquals(49, result.products);
+
+        OfflineProducts expected = new OfflineProducts(oneRun);
+        OfflineProducts actual = new OfflineProducts(manyRuns);
+        assertEquals(expected.size(), actual.size());
+        assertSameLookups(expected, actual, barcodesIn("products.jsonl"));
+        assertEquals("Nutella (new recipe)", actual.find("3017620422003").name);
+        assertFindsLeadingZeros(actual);
+        assertMisses(actual);
+    }
+
+    @Test
+    public void indexFromAnotherImportIsIgnored() throws Exception {
+        File csv = folder("csv");
+        File jsonl = folder("jsonl");
+        File mixed = folder("mixed");
+        OfflineProducts.build(resource("products.csv"), csv, folder("work"), IMPORTED_AT);
+        OfflineProducts.build(resource("products.jsonl"), jsonl, folder("work"), IMPORTED_AT);
+        copy(new File(csv, "offline_products.idx"), new File(mixed, "offline_products.idx"));
+        copy(new File(jsonl, "offline_products.dat"), new File(mixed, "offline_products.dat"));
+
+        OfflineProducts products = new OfflineProducts(mixed);
+        assertTrue(products.isEmpty());
+        assertNull(products.find("5449000000996"));
+    }
+
+    @Test
+    public void crashBetweenTheRenamesIsFinishedOnReload() throws Exception {
+        File directory = folder("live");
+        File next = folder("next");
+        OfflineProducts.build(resource("products.csv"), directory, folder("work"), IMPORTED_AT);
+        OfflineProducts.build(resource("products.jsonl"), next, folder("work"), IMPORTED_AT + 1);
+
+        // What a crash right after the first rename leaves: the new data file in place, the old index, the new index still under its temp name
+        copy(new File(next, "offline_products.dat"), new File(directory, "offline_products.dat"));
+        copy(new File(next, "offline_products.idx"), new File(directory, "offline_products.idx.tmp"));
+
+        OfflineProducts products = new OfflineProducts(directory);
+        assertEquals(49, products.size());
+        assertEquals("Filler 7", products.find("4000000055433").name);
+        assertEquals(IMPORTED_AT + 1, products.find("5449000000996").fetchedAt);
+        assertFalse(new File(directory, "offline_products.idx.tmp").exists());
+        assertTrue(new File(directory, "offline_products.idx").exists());
+    }
+
+    // The noodle kit is in both dumps as a 13-digit EAN; scanned as the UPC, or with an extra zero, it's the same product
+    private static void assertFindsLeadingZeros(OfflineProducts products) {
+        for (String barcode : new String[]{"0737628064502", "737628064502", "00737628064502"}) {
+            Product noodles = products.find(barcode);
+            assertNotNull(barcode, noodles);
+            assertEquals(barcode, noodles.barcode); // Filed under the barcode that was scanned
+            assertEquals("Thai Peanut Noodle Kit", noodles.name);
+        }
+        assertEquals("Progresso Chicken Noodle", products.find("41196910759").name);
+    }
+
+    private static void assertMisses(OfflineProducts products) {
+        assertNull(products.find("9999999999999"));
+        assertNull(products.find("3017620422004")); // One off from Nutella, either side of it in the index
+        assertNull(products.find("3017620422002"));
+        assertNull(products.find("not-a-barcode"));
+        assertNull(products.find(""));
+        assertNull(products.find("0"));
+    }
+
+    private static void assertSameLookups(OfflineProducts expected, OfflineProducts actual, Set<String> barcodes) {
+        for (String barcode : barcodes) {
+            assertEquals(barcode, describe(expected.find(barcode)), describe(actual.find(barcode)));
+        }
+    }
+
+    private static String describe(Product product) {
+        if (product == null) return "null";
+        return product.barcode + "|" + product.name + "|" + product.quantity + "|" + product.imageUrl + "|" + product.brand + "|"
+                + product.categories + "|" + product.ingredients + "|" + product.allergens + "|" + product.nutriscore + "|"
+                + product.novaGroup + "|" + product.origin + "|" + product.stores + "|" + product.hasNutrition + "|"
+                + product.energyKcal100g + "|" + product.fat100g + "|" + product.sugars100g + "|" + product.salt100g + "|" + product.fetchedAt;
+    }
+
+    // Every "code" in a JSONL fixture, broken line included (that one should miss in both)
+    private static Set<String> barcodesIn(String name) throws IOException {
+        Set<String> barcodes = new LinkedHashSet<>();
+        Matcher matcher = Pattern.compile("\"code\":\"([^\"]*)\"").matcher(new String(read(resource(name)), StandardCharsets.UTF_8));
+        while (matcher.find()) barcodes.add(matcher.group(1));
+        return barcodes;
+    }
+
+    private File folder(String name) {
+        File folder = new File(root, name);
+        folder.mkdirs();
+        return folder;
+    }
+
+    private static InputStream resource(String name) throws IOException {
+        InputStream in = OfflineProductsTest.class.getClassLoader().getResourceAsStream("offline/" + name);
+        if (in == null) throw new IOException("Missing test resource offline/" + name);
+        return in;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream closing = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = closing.read(buffer)) != -1) out.write(buffer, 0, count);
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream zipped = new GZIPOutputStream(out)) {
+            zipped.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        try (InputStream in = new FileInputStream(from); OutputStream out = new FileOutputStream(to)) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+        }
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteAll(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,184 @@
+// --- OPEN FOOD API HELPER TEST ---
+// Lookups against a local MockWebServer instead of Open Food Facts.
+// The server sits on every answer for a moment, so all the scans of a barcode are waiting on it at once,
+// which is exactly when PendingLookups is supposed to stop them all from going out.
+// And with the circuit breaker open, a lookup doesn't go out at all: it says UNAVAILABLE, or hands back the old copy.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+@RunWith(AndroidJUnit4.class)
+public class OpenFoodApiHelperTest {
+
+    private static final int SCANS = 12;
+    private static final long SERVER_DELAY_MILLIS = 500;
+
+    private Context context;
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        server = new MockWebServer();
+        server.start();
+        OpenFoodApiHelper.setBaseUrl(server.url("/").toString());
+        // One try, no hedged copy: any second request the server sees has to be a lookup that should have joined the first
+        OpenFoodApiHelper.productRequests().setRetries(1, 0, 0);
+        OpenFoodApiHelper.productRequests().setHedging(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OpenFoodApiHelper.productRequests().setRetries(ResilientGet.DEFAULT_MAX_ATTEMPTS,
+                ResilientGet.DEFAULT_BASE_DELAY_MILLIS, ResilientGet.DEFAULT_MAX_DELAY_MILLIS);
+        OpenFoodApiHelper.productRequests().setHedging(true);
+        OpenFoodApiHelper.productRequests().breaker().recordSuccess(); // In case a test left it open, the cool-down is 30 s
+        OpenFoodApiHelper.setBaseUrl(OpenFoodApiHelper.DEFAULT_BASE_URL);
+        server.shutdown();
+    }
+
+    @Test
+    public void sameBarcodeAtOnceSendsOneRequest() throws Exception {
+        String barcode = newBarcode();
+        server.enqueue(productResponse(barcode, "Shared Thing").setHeadersDelay(SERVER_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+
+        // The same UPC as scanned, as a 13 digit EAN, and with an extra zero on top of that
+        List<String> scanned = new ArrayList<>();
+        for (int i = 0; i < SCANS; i++) scanned.add(zeros(i % 3) + barcode);
+        Answers answers = fetchAll(scanned);
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, answers.errors.size());
+        assertEquals(SCANS, answers.products.size());
+        for (Product product : answers.products) {
+            assertEquals("Shared Thing", product.name);
+        }
+        // Everyone got it under the barcode they scanned, and it's in the cache that way for the results screen
+        List<String> barcodes = new ArrayList<>();
+        for (Product product : answers.products) barcodes.add(product.barcode);
+        Collections.sort(barcodes);
+        List<String> expected = new ArrayList<>(scanned);
+        Collections.sort(expected);
+        assertEquals(expected, barcodes);
+        for (int zeros = 0; zeros < 3; zeros++) {
+            assertEquals("Shared Thing", ProductCache.get(context).load(zeros(zeros) + barcode).name);
+        }
+        assertFalse(OpenFoodApiHelper.pendingLookups().isPending(barcode));
+    }
+
+    @Test
+    public void failedLookupHandsEveryoneTheirOldCopy() throws Exception {
+        String barcode = newBarcode();
+        // Long past the stale window, so it has to be looked up again, but it's still better than nothing if that fails
+        ProductCache.get(context).put(product(barcode, "Old Name", 1));
+        server.enqueue(new MockResponse().setResponseCode(500).setHeadersDelay(SERVER_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+
+        Answers answers = fetchAll(Collections.nCopies(SCANS, barcode));
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, answers.errors.size());
+        assertEquals(SCANS, answers.products.size());
+        for (Product product : answers.products) {
+            assertEquals("Old Name", product.name);
+        }
+    }
+
+    @Test
+    public void openBreakerMeansUnavailable() throws Exception {
+        CircuitBreaker breaker = OpenFoodApiHelper.productRequests().breaker();
+        while (breaker.state() != CircuitBreaker.State.OPEN) breaker.recordFailure();
+
+        Answers answers = fetchAll(Collections.singletonList(newBarcode()));
+        assertEquals(0, server.getRequestCount());
+        assertEquals(Collections.singletonList(OpenFoodApiHelper.UNAVAILABLE), answers.errors);
+
+        // With an old copy to fall back on, that's what comes back instead
+        String barcode = newBarcode();
+        ProductCache.get(context).put(product(barcode, "Old Name", 1));
+        answers = fetchAll(Collections.singletonList(barcode));
+        assertEquals(0, server.getRequestCount());
+        assertEquals(0, answers.errors.size());
+        assertEquals("Old Name", answers.products.get(0).name);
+    }
+
+    // What came back to each fetchProduct callback
+    private static final class Answers {
+        final List<Product> products = Collections.synchronizedList(new ArrayList<>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    // Starts every lookup together, then waits for all the answers
+    private Answers fetchAll(List<String> barcodes) throws InterruptedException {
+        Answers answers = new Answers();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch answered = new CountDownLatch(barcodes.size());
+        for (String barcode : barcodes) {
+            new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                OpenFoodApiHelper.fetchProduct(context, barcode, new OpenFoodApiHelper.ProductDetailsCallback() {
+                    @Override
+                    public void onProduct(Product product) {
+                        answers.products.add(product);
+                        answered.countDown();
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        answers.errors.add(error);
+                        answered.countDown();
+                    }
+                });
+            }).start();
+        }
+        go.countDown();
+        assertTrue("Not every lookup was answered", answered.await(10, TimeUnit.SECONDS));
+        return answers;
+    }
+
+    // A UPC-A no earlier test has cached (12 digits, no leading zero of its own)
+    private static String newBarcode() {
+        return String.valueOf(400_000_000_000L + Math.floorMod(System.nanoTime(), 500_000_000_000L));
+    }
+
+    private static String zeros(int count) {
+        StringBuilder zeros = new StringBuilder();
+        for (int i = 0; i < count; i++) zeros.append('0');
+        return zeros.toString();
+    }
+
+    private static MockResponse productResponse(String barcode, String name) {
+        return new MockResponse().setHeader("Content-Type", "application/json")
+                .setBody("{\"code\":\"" + barcode + "\",\"status\":1,\"product\":{\"code\":\"" + barcode + "\",\"product_name\":\"" + name + "\"}}");
+    }
+
+    private static Product product(String barcode, String name, long fetchedAt) {
+        return new Product(barcode, name, null, null, null, null, null, null, null, null, null, null,
+                false, null, null, null, null, fetchedAt);
+    }
+}
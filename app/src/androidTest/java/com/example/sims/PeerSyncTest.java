@@ -0,0 +1,360 @@
+// --- PEER SYNC TEST ---
+// Two phones in one process: two in-memory SQLite stores, each with its own house count, talking to each other
+// over 127.0.0.1 exactly the way two phones talk over the Wi-Fi (pairing code and all).
+// Covers the three things that matter most: nothing goes over the wire when both already agree,
+// diverged locations come out the same on both phones, and an edit that sneaks in after READY undoes the sync on BOTH phones.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class PeerSyncTest {
+
+    private static final String CODE = "314159";
+
+    private SqliteInventoryStore ours;
+    private SqliteInventoryStore theirs;
+    private ExecutorService phones;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ours = new SqliteInventoryStore(context, null);
+        theirs = new SqliteInventoryStore(context, null);
+        phones = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        phones.shutdownNow();
+        ours.close();
+        theirs.close();
+    }
+
+    @Test
+    public void identicalInventoriesSendNoItems() throws Exception {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        inventory.put("Pantry", numbered("Can", 300));
+        inventory.put("Freezer", numbered("Bag", 300));
+        ours.replaceAll(inventory);
+        theirs.replaceAll(inventory);
+        TestSide mine = new TestSide(ours, inventory);
+        TestSide other = new TestSide(theirs, inventory);
+
+        // exchange() over a plain loopback pair, so the bytes each phone writes can be counted
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<Socket> accepted = phones.submit(server::accept);
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                 Socket host = accepted.get(5, TimeUnit.SECONDS)) {
+                CountingOutputStream mineOut = new CountingOutputStream(client.getOutputStream());
+                CountingOutputStream otherOut = new CountingOutputStream(host.getOutputStream());
+                Future<String> otherResult = phones.submit(() -> PeerSync.exchange(host.getInputStream(), otherOut, other, NO_PROGRESS));
+                String mineResult = PeerSync.exchange(client.getInputStream(), mineOut, mine, NO_PROGRESS);
+
+                assertEquals("Sync complete.", mineResult);
+                assertEquals("Sync complete.", otherResult.get(30, TimeUnit.SECONDS));
+                // 600 items would be well over 6 KB. Hello, two digests and the READY/SAVED flags are a couple of hundred bytes.
+                assertTrue("sent " + mineOut.count + " bytes", mineOut.count < 512);
+                assertTrue("sent " + otherOut.count + " bytes", otherOut.count < 512);
+            }
+        }
+        assertEquals(describe(inventory), describe(ours.snapshot()));
+        assertEquals(describe(inventory), describe(theirs.snapshot()));
+    }
+
+    @Test
+    public void divergedLocationsEndUpTheSameOnBothPhones() throws Exception {
+        LinkedHashMap<String, List<InventoryItem>> houseCount = new LinkedHashMap<>();
+        houseCount.put("Pantry", items(item("Milk", "123", 2), item("Eggs", "456", 12)));
+
+        LinkedHashMap<String, List<InventoryItem>> mineBefore = new LinkedHashMap<>();
+        mineBefore.put("Pantry", items(item("Milk", "123", 3), item("Eggs", "456", 12))); // Bought one
+        mineBefore.put("Fridge", items(item("Butter", "789", 1)));                        // New here
+        LinkedHashMap<String, List<InventoryItem>> otherBefore = new LinkedHashMap<>();
+        otherBefore.put("Pantry", items(item("Milk", "123", 1), item("Eggs", "456", 12))); // Drank one
+        otherBefore.put("Garage", items(item("Oil", "321", 2)));                          // New there
+        ours.replaceAll(mineBefore);
+        theirs.replaceAll(otherBefore);
+        TestSide mine = new TestSide(ours, houseCount);
+        TestSide other = new TestSide(theirs, houseCount);
+
+        String[] results = sync(mine, other, CODE);
+
+        assertEquals("Sync complete.", results[0]);
+        assertEquals("Sync complete.", results[1]);
+        Map<String, List<String>> expected = new TreeMap<>();
+        expected.put("Pantry", Arrays.asList("Eggs [456] x12", "Milk [123] x2")); // 3 + 1 - 2
+        expected.put("Fridge", Collections.singletonList("Butter [789] x1"));
+        expected.put("Garage", Collections.singletonList("Oil [321] x2"));
+        assertEquals(expected, describe(ours.snapshot()));
+        assertEquals(expected, describe(theirs.snapshot()));
+        assertEquals(expected, describe(mine.houseCount));
+        assertEquals(expected, describe(other.houseCount));
+    }
+
+    @Test
+    public void editAfterReadyUndoesTheSyncOnBothPhones() throws Exception {
+        LinkedHashMap<String, List<InventoryItem>> houseCount = new LinkedHashMap<>();
+        houseCount.put("Pantry", items(item("Milk", "123", 2)));
+        LinkedHashMap<String, List<InventoryItem>> mineBefore = new LinkedHashMap<>();
+        mineBefore.put("Pantry", items(item("Milk", "123", 3)));
+        LinkedHashMap<String, List<InventoryItem>> otherBefore = new LinkedHashMap<>();
+        otherBefore.put("Pantry", items(item("Milk", "123", 1)));
+        otherBefore.put("Garage", items(item("Oil", "321", 2)));
+        ours.replaceAll(mineBefore);
+        theirs.replaceAll(otherBefore);
+        TestSide mine = new TestSide(ours, houseCount);
+        TestSide other = new TestSide(theirs, houseCount);
+
+        // Both merged and said READY, then somebody scans a jar of jam on this phone before it saves
+        mine.beforeStage = () -> ours.addItem("Pantry", "Jam", "1 jar", "555");
+
+        String[] results = sync(mine, other, CODE);
+
+        assertTrue(results[0], results[0].startsWith("This inventory changed at the last moment"));
+        assertTrue(results[1], results[1].startsWith("The other phone's inventory changed at the last moment"));
+        assertTrue(other.staged); // The other phone really did save, and then had to put it back
+
+        Map<String, List<String>> mineExpected = describe(mineBefore);
+        mineExpected.put("Pantry", Arrays.asList("Jam [555] x1", "Milk [123] x3"));
+        assertEquals(mineExpected, describe(ours.snapshot()));
+        assertEquals(describe(otherBefore), describe(theirs.snapshot()));
+        assertEquals(describe(houseCount), describe(mine.houseCount));
+        assertEquals(describe(houseCount), describe(other.houseCount));
+    }
+
+    @Test
+    public void wrongPairingCodeIsTurnedAway() throws Exception {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        inventory.put("Pantry", items(item("Milk", "123", 1)));
+        ours.replaceAll(inventory);
+        theirs.replaceAll(inventory);
+        TestSide mine = new TestSide(ours, inventory);
+        TestSide other = new TestSide(theirs, inventory);
+
+        int port = freePort();
+        Future<String> listening = phones.submit(() -> PeerSync.listen(port, CODE, other, NO_PROGRESS));
+        String refused = connectWhenListening(port, "000000", mine);
+        assertTrue(refused, refused.startsWith("The pairing code didn't match"));
+
+        // Still waiting after one wrong guess, and the right code gets through
+        assertEquals("Sync complete.", connectWhenListening(port, CODE, mine));
+        assertEquals("Sync complete.", listening.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void hugeCountsFromThePeerAreRefused() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream hello = new DataOutputStream(bytes);
+        hello.writeByte(1);              // FRAME_HELLO
+        hello.writeInt(0x53494D50);      // "SIMP"
+        hello.writeInt(2);               // VERSION
+        hello.writeByte(2);              // FRAME_DIGESTS
+        hello.writeInt(Integer.MAX_VALUE); // "I have two billion locations"
+
+        TestSide mine = new TestSide(ours, new LinkedHashMap<>());
+        try {
+            PeerSync.exchange(new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream(), mine, NO_PROGRESS);
+            throw new AssertionError("Should have refused the location count");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bad location count"));
+        }
+    }
+
+    // --- Running two phones ---
+
+    // [this phone's message, the other phone's message]. The other phone waits, this one connects.
+    private String[] sync(TestSide mine, TestSide other, String code) throws Exception {
+        int port = freePort();
+        Future<String> listening = phones.submit(() -> PeerSync.listen(port, CODE, other, NO_PROGRESS));
+        String mineResult = connectWhenListening(port, code, mine);
+        return new String[]{mineResult, listening.get(30, TimeUnit.SECONDS)};
+    }
+
+    // The listening side takes a moment to bind, so keep trying for a few seconds
+    private static String connectWhenListening(int port, String code, TestSide side) throws Exception {
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return PeerSync.connect("127.0.0.1", port, code, side, NO_PROGRESS);
+            } catch (java.net.ConnectException e) {
+                if (System.currentTimeMillis() > giveUp) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final SyncMerger.Progress NO_PROGRESS = new SyncMerger.Progress() {
+        @Override
+        public void location(String location, int done, int total) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /*
+        One phone: a store plus a house count in memory. Stages and settles the way SyncHelper does
+        (save, keep a copy of what got replaced, then keep it or put it back), minus the files.
+     */
+    private static final class TestSide implements PeerSync.Side {
+        final InventoryStore store;
+        LinkedHashMap<String, List<InventoryItem>> houseCount;
+        Runnable beforeStage;
+        boolean staged;
+        private LinkedHashMap<String, List<InventoryItem>> merged;
+        private final LinkedHashMap<String, List<InventoryItem>> before = new LinkedHashMap<>();
+
+        TestSide(InventoryStore store, LinkedHashMap<String, List<InventoryItem>> houseCount) {
+            this.store = store;
+            this.houseCount = new LinkedHashMap<>(houseCount);
+        }
+
+        @Override
+        public List<String> locationNames() {
+            return store.getLocationNames();
+        }
+
+        @Override
+        public List<InventoryItem> items(String location) {
+            return store.getItems(location);
+        }
+
+        @Override
+        public LocationDigest digest(String location) {
+            return store.locationDigest(location);
+        }
+
+        @Override
+        public List<InventoryItem> previousItems(String location) {
+            return houseCount.getOrDefault(location, Collections.emptyList());
+        }
+
+        @Override
+        public LocationDigest previousDigest(String location) {
+            return houseCount.containsKey(location) ? LocationDigest.of(houseCount.get(location)) : null;
+        }
+
+        @Override
+        public boolean stage(Map<String, LocationDigest> expected, LinkedHashMap<String, List<InventoryItem>> merged) {
+            if (beforeStage != null) beforeStage.run();
+            for (String location : merged.keySet()) {
+                if (expected.get(location) != null) before.put(location, store.getItems(location));
+            }
+            staged = store.replaceLocations(expected, merged);
+            this.merged = merged;
+            return staged;
+        }
+
+        @Override
+        public boolean settle(boolean keep) {
+            if (keep) {
+                houseCount = new LinkedHashMap<>(merged);
+                return true;
+            }
+            for (String location : merged.keySet()) {
+                List<InventoryItem> items = before.get(location);
+                if (items == null) {
+                    store.removeLocation(location);
+                } else {
+                    store.replaceLocations(Collections.singletonMap(location, store.locationDigest(location)),
+                            Collections.singletonMap(location, items));
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        volatile long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    // --- Inventories ---
+
+    private static InventoryItem item(String name, String barcode, int count) {
+        return new InventoryItem(name, "1", barcode, count);
+    }
+
+    private static List<InventoryItem> items(InventoryItem... items) {
+        return new ArrayList<>(Arrays.asList(items));
+    }
+
+    private static List<InventoryItem> numbered(String name, int count) {
+        List<InventoryItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(item(name + " " + i, String.valueOf(100000 + i), 1 + i % 5));
+        }
+        return items;
+    }
+
+    // Location -> its items as text, both sorted (the two phones list things in their own order)
+    private static Map<String, List<String>> describe(Map<String, List<InventoryItem>> inventory) {
+        Map<String, List<String>> described = new TreeMap<>();
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            List<String> lines = new ArrayList<>();
+            for (InventoryItem item : entry.getValue()) {
+                lines.add(item.getName() + " [" + item.getBarcode() + "] x" + item.getStockQuantity());
+            }
+            Collections.sort(lines);
+            described.put(entry.getKey(), lines);
+        }
+        return described;
+    }
+}
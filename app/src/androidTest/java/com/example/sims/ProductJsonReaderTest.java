@@ -0,0 +1,219 @@
+// --- PRODUCT JSON READER TEST ---
+// ProductJsonReader replaced "whole body into a String, then a JSONObject, then copy the fields out", and promised nothing shown changes.
+// The old org.json path is kept down below exactly as it was, and both read the same Open Food Facts v2 responses
+// (test resources under openfoodfacts/): a full product document, the same one cut down by fields=, a search over three products
+// both ways, a barcode the API doesn't know, and an entry with next to nothing filled in.
+// Every field of every Product has to match. A body cut off partway has to fail like a dropped connection (an IOException).
+// On a device, so both sides run on the real android.util.JsonReader and the real org.json.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+@RunWith(AndroidJUnit4.class)
+public class ProductJsonReaderTest {
+
+    private static final long FETCHED_AT = 1_700_000_000_000L;
+
+    @Test
+    public void fullProductMatchesTheOldParser() throws Exception {
+        assertSameProduct("3017620422003", "product_full.json");
+    }
+
+    @Test
+    public void projectedProductMatchesTheOldParser() throws Exception {
+        assertSameProduct("3017620422003", "product_projected.json");
+        // fields= only drops what we never read, so it's the same product either way
+        assertEquals(describe(read("3017620422003", "product_full.json")), describe(read("3017620422003", "product_projected.json")));
+    }
+
+    @Test
+    public void missingFieldsMatchTheOldParser() throws Exception {
+        Product product = assertSameProduct("4000417025005", "product_missing_fields.json");
+        assertEquals("Unknown Product", product.name);
+        assertEquals("Ritter Sport", product.brand);
+        assertNull(product.quantity);
+        assertNull(product.novaGroup);
+        assertNull(product.imageUrl);
+        assertTrue(product.hasNutrition); // An empty nutriments object still counts, same as before
+        assertNull(product.energyKcal100g);
+    }
+
+    @Test
+    public void notFoundIsNullBothWays() throws Exception {
+        assertNull(oldParseProduct("4006381333931", fixture("product_not_found.json")));
+        assertNull(read("4006381333931", "product_not_found.json"));
+    }
+
+    @Test
+    public void searchMatchesTheOldParser() throws Exception {
+        for (String name : new String[]{"search_full.json", "search_projected.json"}) {
+            String body = fixture(name);
+            Map<String, JSONObject> expected = oldParseSearch(body);
+            Map<String, Product> actual = ProductJsonReader.readSearchResponse(stream(body), FETCHED_AT);
+            assertEquals(name, new TreeMap<>(expected).keySet(), new TreeMap<>(actual).keySet());
+            for (Map.Entry<String, JSONObject> entry : expected.entrySet()) {
+                Product product = actual.get(entry.getKey());
+                // The search spells the UPC as an EAN ("0737628064502"), and the key drops the zero either way
+                assertEquals(name + " " + entry.getKey(), describe(oldFromApi(product.barcode, entry.getValue(), FETCHED_AT)), describe(product));
+            }
+        }
+        assertEquals(describe(ProductJsonReader.readSearchResponse(stream(fixture("search_full.json")), FETCHED_AT).get("3017620422003")),
+                describe(read(null, "product_full.json").withBarcode("3017620422003")));
+    }
+
+    @Test
+    public void truncatedBodyFailsLikeADroppedConnection() throws Exception {
+        for (String name : new String[]{"product_full.json", "product_projected.json", "search_full.json"}) {
+            byte[] body = fixture(name).trim().getBytes(StandardCharsets.UTF_8);
+            // Cut everywhere from the first byte to the last-but-one, a prime step apart so it lands inside strings, numbers and names
+            for (int length = 0; length < body.length; length += 53) {
+                InputStream cut = new ByteArrayInputStream(Arrays.copyOf(body, length));
+                try {
+                    if (name.startsWith("search")) {
+                        ProductJsonReader.readSearchResponse(cut, FETCHED_AT);
+                    } else {
+                        ProductJsonReader.readProductResponse(cut, "3017620422003", FETCHED_AT);
+                    }
+                    fail(name + " cut at " + length + " of " + body.length + " read without an error");
+                } catch (IOException expected) {
+                    // OpenFoodApiHelper treats this as "API call failed", so a cached copy still gets served
+                }
+            }
+        }
+    }
+
+    private static Product assertSameProduct(String barcode, String name) throws Exception {
+        Product expected = oldParseProduct(barcode, fixture(name));
+        Product actual = read(barcode, name);
+        assertFalse(name, expected == null || actual == null);
+        assertEquals(name, describe(expected), describe(actual));
+        return actual;
+    }
+
+    private static Product read(String barcode, String name) throws IOException {
+        return ProductJsonReader.readProductResponse(stream(fixture(name)), barcode, FETCHED_AT);
+    }
+
+    // Every field, so assertEquals shows exactly which one moved
+    private static Map<String, Object> describe(Product product) {
+        Map<String, Object> fields = new TreeMap<>();
+        fields.put("barcode", product.barcode);
+        fields.put("name", product.name);
+        fields.put("quantity", product.quantity);
+        fields.put("imageUrl", product.imageUrl);
+        fields.put("brand", product.brand);
+        fields.put("categories", product.categories);
+        fields.put("ingredients", product.ingredients);
+        fields.put("allergens", product.allergens);
+        fields.put("nutriscore", product.nutriscore);
+        fields.put("novaGroup", product.novaGroup);
+        fields.put("origin", product.origin);
+        fields.put("stores", product.stores);
+        fields.put("hasNutrition", product.hasNutrition);
+        fields.put("energyKcal100g", product.energyKcal100g);
+        fields.put("fat100g", product.fat100g);
+        fields.put("sugars100g", product.sugars100g);
+        fields.put("salt100g", product.salt100g);
+        fields.put("fetchedAt", product.fetchedAt);
+        return fields;
+    }
+
+    private static String fixture(String name) throws IOException {
+        try (InputStream in = ProductJsonReaderTest.class.getClassLoader().getResourceAsStream("openfoodfacts/" + name)) {
+            if (in == null) throw new IOException("Missing test resource openfoodfacts/" + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return out.toString("UTF-8");
+        }
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ---- The old way, as it was in OpenFoodApiHelper and Product before ProductJsonReader ----
+
+    // A product endpoint response, or null if the API doesn't know the barcode
+    static Product oldParseProduct(String barcode, String body) throws JSONException {
+        JSONObject json = new JSONObject(body);
+        if (json.optInt("status") != 1) return null;
+        return oldFromApi(barcode, json.getJSONObject("product"), FETCHED_AT);
+    }
+
+    /*
+        A search endpoint response: each product's JSON, by barcode. The API hands back its own spelling of each code
+        (a 12-digit UPC can come back as a 13-digit EAN with a leading zero), so these are keyed the way barcodeKey spells them.
+     */
+    static Map<String, JSONObject> oldParseSearch(String body) throws JSONException {
+        Map<String, JSONObject> products = new HashMap<>();
+        JSONArray results = new JSONObject(body).optJSONArray("products");
+        if (results == null) return products;
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject product = results.optJSONObject(i);
+            if (product != null && product.has("code")) products.put(OpenFoodApiHelper.barcodeKey(product.optString("code")), product);
+        }
+        return products;
+    }
+
+    // Pulls what we care about out of the API's "product" object
+    static Product oldFromApi(String barcode, JSONObject product, long fetchedAt) {
+        JSONObject nutrients = product.optJSONObject("nutriments");
+        return new Product(barcode,
+                oldBestName(product),
+                text(product, "quantity"),
+                text(product, "image_url"),
+                text(product, "brands"),
+                text(product, "categories"),
+                text(product, "ingredients_text"),
+                text(product, "allergens"),
+                text(product, "nutriscore_grade"),
+                text(product, "nova_group"),
+                text(product, "origins"),
+                text(product, "stores"),
+                nutrients != null,
+                nutrients != null ? text(nutrients, "energy-kcal_100g") : null,
+                nutrients != null ? text(nutrients, "fat_100g") : null,
+                nutrients != null ? text(nutrients, "sugars_100g") : null,
+                nutrients != null ? text(nutrients, "salt_100g") : null,
+                fetchedAt);
+    }
+
+    private static String oldBestName(JSONObject product) {
+        String[] keys = {"product_name_complete", "product_name_with_quantity", "product_name_en", "product_name"};
+        for (String key : keys) {
+            String name = product.optString(key, "").trim();
+            if (!name.isEmpty()) return name;
+        }
+        return "Unknown Product";
+    }
+
+    // The field as text (numbers too, like optString), or null if it isn't there
+    private static String text(JSONObject json, String key) {
+        return json.has(key) && !json.isNull(key) ? json.optString(key) : null;
+    }
+}
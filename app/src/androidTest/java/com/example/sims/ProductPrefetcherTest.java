@@ -0,0 +1,242 @@
+// --- PRODUCT PREFETCHER TEST ---
+// A pallet's worth of barcodes against a local MockWebServer that takes its time over every answer,
+// so batches really are out at the same time. The server keeps count of what it was asked and how much at once:
+// never more than MAX_PARALLEL requests in flight, never more than BATCH_SIZE codes in one,
+// one product request per barcode when there's no search endpoint, nothing asked twice, and one onIdle at the end.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+@RunWith(AndroidJUnit4.class)
+public class ProductPrefetcherTest {
+
+    private static final long LATENCY_MILLIS = 150;
+
+    private Context context;
+    private MockWebServer server;
+    private FakeOpenFoodFacts openFoodFacts;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        openFoodFacts = new FakeOpenFoodFacts();
+        server = new MockWebServer();
+        server.setDispatcher(openFoodFacts);
+        server.start();
+        OpenFoodApiHelper.setBaseUrl(server.url("/").toString());
+        OpenFoodApiHelper.productRequests().setHedging(false); // A hedged copy would be a second request for the same codes
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OpenFoodApiHelper.productRequests().setHedging(true);
+        OpenFoodApiHelper.setBaseUrl(OpenFoodApiHelper.DEFAULT_BASE_URL);
+        server.shutdown();
+    }
+
+    @Test
+    public void batchesStayWithinTheLimits() throws Exception {
+        List<String> barcodes = newBarcodes(10 * ProductPrefetcher.BATCH_SIZE + 7);
+        Result result = prefetch(barcodes);
+
+        assertEquals(1, result.idles.get());
+        assertEquals(barcodes.size(), result.found.size() + result.missing.size());
+        assertEquals(unknown(barcodes), new HashSet<>(result.missing));
+        assertTrue("Too many at once: " + openFoodFacts.mostAtOnce, openFoodFacts.mostAtOnce.get() <= ProductPrefetcher.MAX_PARALLEL);
+        assertTrue("Never overlapped, so the limit wasn't tested", openFoodFacts.mostAtOnce.get() > 1);
+        assertEquals(0, openFoodFacts.productRequests.size());
+        for (List<String> batch : openFoodFacts.searches) {
+            assertTrue("Batch of " + batch.size(), batch.size() <= ProductPrefetcher.BATCH_SIZE);
+        }
+        assertEquals(barcodes.size(), asked(openFoodFacts.searches).size()); // Every code asked for, none of them twice
+    }
+
+    @Test
+    public void noSearchEndpointMeansOneRequestPerBarcode() throws Exception {
+        openFoodFacts.hasSearch = false;
+        List<String> barcodes = newBarcodes(3 * ProductPrefetcher.BATCH_SIZE);
+        Result result = prefetch(barcodes);
+
+        assertEquals(1, result.idles.get());
+        assertEquals(barcodes.size(), result.found.size() + result.missing.size());
+        assertEquals(unknown(barcodes), new HashSet<>(result.missing));
+        // Only the batches that were already on their way when the first 404 came back ever tried searching
+        assertTrue(openFoodFacts.searches.size() >= 1 && openFoodFacts.searches.size() <= ProductPrefetcher.MAX_PARALLEL);
+        List<String> products = new ArrayList<>(openFoodFacts.productRequests);
+        Collections.sort(products);
+        List<String> expected = new ArrayList<>(barcodes);
+        Collections.sort(expected);
+        assertEquals(expected, products);
+        assertTrue(openFoodFacts.mostAtOnce.get() <= ProductPrefetcher.MAX_PARALLEL);
+    }
+
+    @Test
+    public void barcodeAlreadyBeingLookedUpIsNotAskedForAgain() throws Exception {
+        List<String> barcodes = newBarcodes(5);
+        String scanned = barcodes.get(2);
+
+        // Scanned on its own first, and still waiting on the server when the pallet gets flushed
+        CountDownLatch single = new CountDownLatch(1);
+        OpenFoodApiHelper.fetchProduct(context, scanned, new OpenFoodApiHelper.ProductDetailsCallback() {
+            @Override
+            public void onProduct(Product product) {
+                single.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!OpenFoodApiHelper.pendingLookups().isPending(scanned) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertTrue(OpenFoodApiHelper.pendingLookups().isPending(scanned));
+
+        Result result = prefetch(barcodes);
+        assertTrue(single.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, result.idles.get());
+        assertEquals(Collections.singletonList(scanned), openFoodFacts.productRequests);
+        Set<String> searched = asked(openFoodFacts.searches);
+        assertFalse(searched.contains(scanned));
+        assertEquals(barcodes.size() - 1, searched.size());
+        List<String> found = new ArrayList<>();
+        for (Product product : result.found) found.add(product.barcode);
+        assertTrue(found.contains(scanned)); // The pallet still hears about it, off the single scan's answer
+    }
+
+    // Everything the listener heard
+    private static final class Result {
+        final List<Product> found = Collections.synchronizedList(new ArrayList<>());
+        final List<String> missing = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger idles = new AtomicInteger();
+    }
+
+    // Scans the lot, flushes, and waits until it's gone idle (plus a moment, in case a second onIdle was on its way)
+    private Result prefetch(List<String> barcodes) throws InterruptedException {
+        Result result = new Result();
+        CountDownLatch idle = new CountDownLatch(1);
+        ProductPrefetcher prefetcher = new ProductPrefetcher(context, new ProductPrefetcher.Listener() {
+            @Override
+            public void onBatch(List<Product> found, List<String> missing) {
+                result.found.addAll(found);
+                result.missing.addAll(missing);
+            }
+
+            @Override
+            public void onIdle() {
+                result.idles.incrementAndGet();
+                idle.countDown();
+            }
+        });
+        prefetcher.addAll(barcodes);
+        prefetcher.flush();
+        assertTrue("Never went idle", idle.await(30, TimeUnit.SECONDS));
+        Thread.sleep(2 * LATENCY_MILLIS);
+        prefetcher.cancel();
+        return result;
+    }
+
+    // Barcodes no earlier test has cached. Every tenth one ends in 9, which the fake server has never heard of.
+    private static List<String> newBarcodes(int count) {
+        long base = 4_000_000_000_000L + Math.floorMod(System.nanoTime(), 100_000_000_000L) * 10_000;
+        List<String> barcodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) barcodes.add(String.valueOf(base + i));
+        return barcodes;
+    }
+
+    private static Set<String> unknown(List<String> barcodes) {
+        Set<String> unknown = new HashSet<>();
+        for (String barcode : barcodes) {
+            if (barcode.endsWith("9")) unknown.add(barcode);
+        }
+        return unknown;
+    }
+
+    private static Set<String> asked(List<List<String>> searches) {
+        Set<String> asked = new HashSet<>();
+        int total = 0;
+        for (List<String> batch : searches) {
+            asked.addAll(batch);
+            total += batch.size();
+        }
+        assertEquals("A code was searched for twice", total, asked.size());
+        return asked;
+    }
+
+    /*
+        Open Food Facts as far as the prefetcher can tell: the search endpoint (if hasSearch) and the product endpoint,
+        each answering after LATENCY_MILLIS. Barcodes ending in 9 aren't found. Counts what it was asked, and how much at once.
+     */
+    private static final class FakeOpenFoodFacts extends Dispatcher {
+        volatile boolean hasSearch = true;
+        final List<List<String>> searches = Collections.synchronizedList(new ArrayList<>());
+        final List<String> productRequests = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger atOnce = new AtomicInteger();
+        final AtomicInteger mostAtOnce = new AtomicInteger();
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            mostAtOnce.accumulateAndGet(atOnce.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(LATENCY_MILLIS);
+                List<String> segments = request.getRequestUrl().pathSegments();
+                String last = segments.get(segments.size() - 1);
+                if (last.equals("search")) {
+                    List<String> codes = Arrays.asList(request.getRequestUrl().queryParameter("code").split(","));
+                    searches.add(codes);
+                    if (!hasSearch) return new MockResponse().setResponseCode(404);
+                    StringBuilder body = new StringBuilder("{\"count\":" + codes.size() + ",\"products\":[");
+                    String separator = "";
+                    for (String code : codes) {
+                        if (code.endsWith("9")) continue;
+                        body.append(separator).append(product(code));
+                        separator = ",";
+                    }
+                    return json(body.append("]}").toString());
+                }
+                String code = last.replace(".json", "");
+                productRequests.add(code);
+                if (code.endsWith("9")) return json("{\"code\":\"" + code + "\",\"status\":0,\"status_verbose\":\"product not found\"}");
+                return json("{\"code\":\"" + code + "\",\"status\":1,\"product\":" + product(code) + "}");
+            } finally {
+                atOnce.decrementAndGet();
+            }
+        }
+
+        private static String product(String code) {
+            return "{\"code\":\"" + code + "\",\"product_name\":\"Product " + code + "\",\"quantity\":\"1 kg\"}";
+        }
+
+        private static MockResponse json(String body) {
+            return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+        }
+    }
+}
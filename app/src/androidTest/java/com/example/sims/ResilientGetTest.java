@@ -0,0 +1,195 @@
+// --- RESILIENT GET TEST ---
+// Retries, hedging and the circuit breaker against a local MockWebServer.
+// Each test gets its own ResilientGet and CircuitBreaker (short cool-downs, tiny backoffs), so nothing here touches the
+// app's shared one, and the client reports cancelled calls so the hedge that lost can be seen being called off.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+@RunWith(AndroidJUnit4.class)
+public class ResilientGetTest {
+
+    private static final long SLOW_MILLIS = 3000;
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private final List<Call> cancelled = new CopyOnWriteArrayList<>();
+    private final CountDownLatch someoneCancelled = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient.Builder()
+                .readTimeout(10, TimeUnit.SECONDS)
+                .eventListener(new EventListener() {
+                    @Override
+                    public void canceled(Call call) {
+                        cancelled.add(call);
+                        someoneCancelled.countDown();
+                    }
+                })
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void serverErrorIsRetried() throws Exception {
+        ResilientGet get = resilientGet(new CircuitBreaker(5, 60_000), 3);
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        try (Response response = get.execute(client, request())) {
+            assertEquals(200, response.code());
+            assertEquals("ok", response.body().string());
+        }
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, get.retries());
+        assertEquals(0, get.failures());
+        assertEquals(CircuitBreaker.State.CLOSED, get.breaker().state());
+    }
+
+    @Test
+    public void givesUpWithTheLastErrorAfterEveryAttempt() throws Exception {
+        ResilientGet get = resilientGet(new CircuitBreaker(5, 60_000), 3);
+        for (int i = 0; i < 3; i++) server.enqueue(new MockResponse().setResponseCode(500));
+
+        try (Response response = get.execute(client, request())) {
+            assertEquals(500, response.code());
+        }
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, get.retries());
+        assertEquals(1, get.failures());
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndTheLoserCancelled() throws Exception {
+        ResilientGet get = resilientGet(new CircuitBreaker(5, 60_000), 1);
+        get.setHedging(true);
+        AtomicInteger seen = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // Quick answers to fill the latency window, then one that sits there, then its hedge gets a quick one
+                if (seen.getAndIncrement() == 20) {
+                    return new MockResponse().setBody("slow").setHeadersDelay(SLOW_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return new MockResponse().setBody("fast");
+            }
+        });
+        for (int i = 0; i < 20; i++) {
+            try (Response response = get.execute(client, request())) {
+                assertEquals("fast", response.body().string());
+            }
+        }
+        assertEquals(0, get.hedges());
+        assertEquals(0, cancelled.size());
+
+        long start = System.currentTimeMillis();
+        try (Response response = get.execute(client, request())) {
+            assertEquals("fast", response.body().string());
+        }
+        assertTrue("Waited on the slow one", System.currentTimeMillis() - start < SLOW_MILLIS / 2);
+        assertEquals(22, server.getRequestCount());
+        assertEquals(1, get.hedges());
+        assertEquals(1, get.hedgesWon());
+        assertTrue("The slow one was never cancelled", someoneCancelled.await(1, TimeUnit.SECONDS));
+        assertEquals(1, cancelled.size());
+    }
+
+    @Test
+    public void failuresOpenTheBreakerUntilTheCoolDown() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 300);
+        ResilientGet get = resilientGet(breaker, 1);
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+            try (Response response = get.execute(client, request())) {
+                assertEquals(500, response.code());
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertEquals(1, breaker.timesOpened());
+
+        assertRefused(get);
+        assertEquals(3, server.getRequestCount()); // Refused without going out
+        assertEquals(1, breaker.rejected());
+
+        // After the cool-down one trial goes out, and it working closes it again
+        Thread.sleep(400);
+        server.enqueue(new MockResponse().setBody("ok"));
+        try (Response response = get.execute(client, request())) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(4, server.getRequestCount());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void failedTrialOpensItAgain() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 300);
+        ResilientGet get = resilientGet(breaker, 1);
+        server.enqueue(new MockResponse().setResponseCode(500));
+        get.execute(client, request()).close();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+        Thread.sleep(400);
+        server.enqueue(new MockResponse().setResponseCode(502));
+        try (Response response = get.execute(client, request())) {
+            assertEquals(502, response.code());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertEquals(2, breaker.timesOpened());
+        assertRefused(get);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    private void assertRefused(ResilientGet get) throws Exception {
+        try (Response response = get.execute(new OkHttpClient(), request())) {
+            fail("Went out with the breaker open: " + response);
+        } catch (ResilientGet.CircuitOpenException expected) {
+            // What OpenFoodApiHelper turns into UNAVAILABLE
+        }
+    }
+
+    // Quick retries (1 to 5 ms backoff) and no hedging unless a test turns it on
+    private static ResilientGet resilientGet(CircuitBreaker breaker, int attempts) {
+        ResilientGet get = new ResilientGet(breaker);
+        get.setRetries(attempts, 1, 5);
+        get.setHedging(false);
+        return get;
+    }
+
+    private Request request() {
+        return new Request.Builder().url(server.url("/api/v2/product/737628064502")).build();
+    }
+}
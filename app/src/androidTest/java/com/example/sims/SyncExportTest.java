@@ -0,0 +1,104 @@
+// --- SYNC EXPORT TEST ---
+// A full export has to stay readable by a phone that's a version behind, which reads every top-level key as a location.
+// One build put a "simsDigests" header up there, and an older phone turned that into an empty location of its own,
+// which then came back in its next export. So: nothing but locations goes out, and that key never comes in as a location,
+// whether it's the old header (an object) or the empty location an older phone made of it (an array).
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class SyncExportTest {
+
+    @Test
+    public void exportHasNothingButLocations() throws Exception {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        inventory.put("Pantry", Arrays.asList(new InventoryItem("Nutella", "400 g", "3017620422003", 2),
+                new InventoryItem("Flour", "1 kg", null, 1)));
+        inventory.put("Fridge", new ArrayList<>());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonStorageHelper.writeInventory(out, inventory);
+        JSONObject json = new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        assertEquals(Arrays.asList("Pantry", "Fridge"), names(json));
+        for (String location : names(json)) json.getJSONArray(location); // Every one of them an array, as an older phone expects
+        assertEquals(describe(inventory), describe(JsonStorageHelper.fromJson(json)));
+    }
+
+    @Test
+    public void oldDigestHeaderIsNotALocation() throws Exception {
+        String header = "{\"simsDigests\":{\"Pantry\":{\"items\":1,\"digest\":\"" + zeros(64) + "\"}},"
+                + "\"Pantry\":[{\"name\":\"Nutella\",\"quantity\":\"400 g\",\"barcode\":\"3017620422003\",\"stockQuantity\":3}]}";
+        assertEquals(Collections.singletonList("Pantry"), new ArrayList<>(merge(header).keySet()));
+        assertEquals(Collections.singletonList("Pantry"), new ArrayList<>(JsonStorageHelper.fromJson(new JSONObject(header)).keySet()));
+    }
+
+    @Test
+    public void emptyLocationAnOlderPhoneMadeOfTheHeaderDoesNotComeBack() throws Exception {
+        String echoed = "{\"Pantry\":[{\"name\":\"Nutella\",\"quantity\":\"400 g\",\"barcode\":\"3017620422003\",\"stockQuantity\":3}],"
+                + "\"simsDigests\":[]}";
+        LinkedHashMap<String, List<InventoryItem>> merged = merge(echoed);
+        assertEquals(Collections.singletonList("Pantry"), new ArrayList<>(merged.keySet()));
+        assertEquals(3, merged.get("Pantry").get(0).getStockQuantity());
+        assertEquals(Collections.singletonList("Pantry"), new ArrayList<>(JsonStorageHelper.fromJson(new JSONObject(echoed)).keySet()));
+    }
+
+    // Their file merged into an empty phone with no house count
+    private static LinkedHashMap<String, List<InventoryItem>> merge(String external) throws Exception {
+        return SyncMerger.merge(new ByteArrayInputStream(external.getBytes(StandardCharsets.UTF_8)), new ArrayList<>(),
+                location -> Collections.emptyList(), location -> null,
+                location -> Collections.emptyList(), location -> null,
+                new SyncMerger.Progress() {
+                    @Override
+                    public void location(String location, int done, int total) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+                });
+    }
+
+    private static List<String> names(JSONObject json) throws Exception {
+        List<String> names = new ArrayList<>();
+        JSONArray array = json.names();
+        for (int i = 0; i < array.length(); i++) names.add(array.getString(i));
+        return names;
+    }
+
+    private static List<String> describe(LinkedHashMap<String, List<InventoryItem>> inventory) {
+        List<String> lines = new ArrayList<>();
+        for (String location : inventory.keySet()) {
+            for (InventoryItem item : inventory.get(location)) {
+                lines.add(location + "|" + item.getName() + "|" + item.getQuantity() + "|" + item.getBarcode() + "|" + item.getStockQuantity());
+            }
+            lines.add(location);
+        }
+        return lines;
+    }
+
+    private static String zeros(int count) {
+        StringBuilder zeros = new StringBuilder();
+        for (int i = 0; i < count; i++) zeros.append('0');
+        return zeros.toString();
+    }
+}
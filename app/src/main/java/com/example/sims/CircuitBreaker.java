@@ -0,0 +1,100 @@
+// --- CIRCUIT BREAKER ---
+// When Open Food Facts is down (or the Wi-Fi in the back room is "connected" but goes nowhere), every scan used to sit
+// through a full timeout, and then the retries sat through theirs too. After a few failures in a row it's pretty clear
+// the next request isn't going to work either, so this stops sending them for a little while:
+//   CLOSED     normal. Requests go out; enough consecutive failures trips it OPEN.
+//   OPEN       requests are refused straight away, so lookups fall back to the cache or manual entry instantly
+//              instead of after a timeout. After the cool-down it lets one request through to test the water (HALF_OPEN).
+//   HALF_OPEN  exactly one trial request is out. It works: CLOSED again. It fails: back to OPEN for another cool-down.
+// Any answer from the server counts as working, even "product not found". It's only timeouts, dropped connections
+// and 5xx errors that count against it.
+
+package com.example.sims;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    // All guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;        // When it last tripped
+    private long trialStartedAt;  // When the HALF_OPEN trial went out
+
+    private final AtomicLong timesOpened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /*
+        Whether a request may go out now. false means fail fast, don't even try.
+        A true while OPEN is the trial request, and whoever gets it has to report back with recordSuccess or recordFailure.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    trialStartedAt = now;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                // The trial never reported back (a crash, a lost callback): don't stay stuck, let another one try
+                if (now - trialStartedAt >= openMillis) {
+                    trialStartedAt = now;
+                    return true;
+                }
+                break;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) Log.i("CircuitBreaker", "Product lookups are working again");
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            if (state == State.CLOSED) Log.w("CircuitBreaker", consecutiveFailures + " failures in a row, pausing product lookups");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            timesOpened.incrementAndGet();
+        }
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public long timesOpened() {
+        return timesOpened.get();
+    }
+
+    // Requests refused without going out (each one is a timeout nobody had to sit through)
+    public long rejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker: " + state() + ", opened " + timesOpened() + " times, " + rejected() + " requests refused";
+    }
+}
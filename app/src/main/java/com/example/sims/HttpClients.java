@@ -0,0 +1,68 @@
+// --- HTTP CLIENTS ---
+// One OkHttpClient for the whole app. Every lookup used to build its own, which threw away the connection pool,
+// the dispatcher's threads and the TLS session each time, so every single scan paid for a fresh DNS lookup and handshake.
+// Sharing one means the second scan goes out over the connection the first one opened.
+//
+// What it's set up with:
+//   - a connection pool that keeps a few idle connections around for 5 minutes (scanning comes in bursts)
+//   - short timeouts, since someone is standing there holding the phone, plus an overall cap per call
+//   - a dispatcher that only lets a handful of calls hit one host at once (it's a free API, be nice to it)
+//   - a 10 MB disk cache, so a product looked up again gets answered from disk when the server's headers allow it
+//   - HttpMetrics on every call, so we can see where the time actually goes
+// Built with the app context the first time anyone asks, like InventoryStores.
+
+package com.example.sims;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+public class HttpClients {
+
+    private static final long CACHE_BYTES = 10L * 1024 * 1024;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+
+    private static final HttpMetrics metrics = new HttpMetrics();
+    private static OkHttpClient client;
+
+    public static synchronized OkHttpClient get(Context context) {
+        if (client == null) {
+            client = build(new File(context.getApplicationContext().getCacheDir(), "http"), metrics);
+        }
+        return client;
+    }
+
+    public static HttpMetrics metrics() {
+        return metrics;
+    }
+
+    /*
+        The client itself, with the cache wherever you point it. Separate from get() so a test can build one
+        against a temp folder and its own metrics, and aim it at a local server.
+     */
+    public static OkHttpClient build(File cacheDirectory, HttpMetrics metrics) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .cache(new Cache(cacheDirectory, CACHE_BYTES))
+                .connectTimeout(5, TimeUnit.SECONDS)
+                .readTimeout(10, TimeUnit.SECONDS)
+                .writeTimeout(10, TimeUnit.SECONDS)
+                .callTimeout(15, TimeUnit.SECONDS)
+                .eventListenerFactory(metrics)
+                .build();
+    }
+}
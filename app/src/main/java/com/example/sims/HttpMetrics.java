@@ -0,0 +1,186 @@
+// --- HTTP METRICS ---
+// Where the time goes on every lookup: DNS, connecting, the TLS handshake, and how long until the first byte came back.
+// Plus how many bytes each response was, which is what fields= and the streaming parser are there to cut down.
+// OkHttp calls an EventListener at each step of a request, so one listener per call jots down the timestamps,
+// and when the call finishes its numbers get added to the running totals here.
+// Also counts how often a pooled connection got reused (no connect at all) and how often the HTTP cache answered,
+// which is the whole point of sharing one client.
+
+package com.example.sims;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+public class HttpMetrics implements EventListener.Factory {
+
+    // The totals at one moment. Times are summed over every call that had that step, in milliseconds.
+    public static final class Stats {
+        public final int calls;
+        public final int failures;
+        public final int cacheHits;          // Answered from the disk cache, no network at all
+        public final int reusedConnections;  // Went out over a pooled connection, so no DNS, connect or handshake
+        public final int handshakes;         // Fresh TLS handshakes
+        public final long dnsMillis;
+        public final long connectMillis;     // TCP + TLS
+        public final long tlsMillis;
+        public final long firstByteMillis;   // Call start to response headers
+        public final long totalMillis;
+        public final long bytesReceived;     // Response bodies as they came off the wire (before any gzip is undone)
+
+        Stats(int calls, int failures, int cacheHits, int reusedConnections, int handshakes,
+              long dnsMillis, long connectMillis, long tlsMillis, long firstByteMillis, long totalMillis, long bytesReceived) {
+            this.calls = calls;
+            this.failures = failures;
+            this.cacheHits = cacheHits;
+            this.reusedConnections = reusedConnections;
+            this.handshakes = handshakes;
+            this.dnsMillis = dnsMillis;
+            this.connectMillis = connectMillis;
+            this.tlsMillis = tlsMillis;
+            this.firstByteMillis = firstByteMillis;
+            this.totalMillis = totalMillis;
+            this.bytesReceived = bytesReceived;
+        }
+
+        @Override
+        public String toString() {
+            return calls + " calls (" + failures + " failed, " + cacheHits + " from cache, " + reusedConnections + " reused a connection), "
+                    + "avg dns " + average(dnsMillis) + " ms, connect " + average(connectMillis) + " ms, tls " + average(tlsMillis)
+                    + " ms, first byte " + average(firstByteMillis) + " ms, total " + average(totalMillis) + " ms, "
+                    + average(bytesReceived) + " bytes each";
+        }
+
+        private long average(long millis) {
+            return calls == 0 ? 0 : millis / calls;
+        }
+    }
+
+    private int calls;
+    private int failures;
+    private int cacheHits;
+    private int reusedConnections;
+    private int handshakes;
+    private long dnsNanos;
+    private long connectNanos;
+    private long tlsNanos;
+    private long firstByteNanos;
+    private long totalNanos;
+    private long bytesReceived;
+
+    @Override
+    public EventListener create(Call call) {
+        return new CallTimer();
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(calls, failures, cacheHits, reusedConnections, handshakes, dnsNanos / 1_000_000, connectNanos / 1_000_000,
+                tlsNanos / 1_000_000, firstByteNanos / 1_000_000, totalNanos / 1_000_000, bytesReceived);
+    }
+
+    private synchronized void record(CallTimer timer, boolean failed) {
+        calls++;
+        if (failed) failures++;
+        if (timer.cacheHit) cacheHits++;
+        if (timer.connectionAcquired && timer.connectStart == 0) reusedConnections++;
+        if (timer.tlsEnd > 0) handshakes++;
+        dnsNanos += span(timer.dnsStart, timer.dnsEnd);
+        connectNanos += span(timer.connectStart, timer.connectEnd);
+        tlsNanos += span(timer.tlsStart, timer.tlsEnd);
+        firstByteNanos += span(timer.callStart, timer.firstByte);
+        totalNanos += span(timer.callStart, timer.callEnd);
+        bytesReceived += timer.bodyBytes;
+    }
+
+    private static long span(long start, long end) {
+        return start > 0 && end >= start ? end - start : 0;
+    }
+
+    // One call's timestamps (System.nanoTime, 0 = that step never happened). OkHttp calls these from one thread at a time per call.
+    private final class CallTimer extends EventListener {
+        long callStart, dnsStart, dnsEnd, connectStart, connectEnd, tlsStart, tlsEnd, firstByte, callEnd;
+        long bodyBytes;
+        boolean connectionAcquired;
+        boolean cacheHit;
+
+        @Override
+        public void callStart(Call call) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+            dnsEnd = System.nanoTime();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            if (connectStart == 0) connectStart = System.nanoTime(); // A retry on another address counts from the first try
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            tlsEnd = System.nanoTime();
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            connectEnd = System.nanoTime();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionAcquired = true;
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            if (firstByte == 0) firstByte = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            bodyBytes += byteCount;
+        }
+
+        @Override
+        public void cacheHit(Call call, Response response) {
+            cacheHit = true;
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            callEnd = System.nanoTime();
+            record(this, false);
+            Log.d("HttpMetrics", call.request().url() + " took " + span(callStart, callEnd) / 1_000_000 + " ms, " + bodyBytes + " bytes"
+                    + (cacheHit ? " (cache)" : connectStart == 0 ? " (reused connection)" : ""));
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            callEnd = System.nanoTime();
+            record(this, true);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// --- INVENTORY BATCH ---
+// A bunch of changes that get applied together and saved once (InventoryStore.applyBatch).
+// Receiving a delivery of 200 cases used to mean 200 separate saves. Now it's one batch, one write to the log
+// (or one SQLite transaction), no matter how many scans are in it.
+//
+// Adds of the same barcode to the same location are folded together as they come in, so a barcode scanned 40 times
+// is written once with a count of 40. The end result is exactly what 40 separate adds would have given:
+// the first scan's name and size, and a count 40 higher. Items without a barcode are never folded (each one is its own line, like always).
+
+package com.example.sims;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class InventoryBatch {
+
+    // An add that can still grow as more scans of the same barcode come in
+    private static final class PendingAdd {
+        final String location;
+        final String name;
+        final String quantity;
+        final String barcode;
+        int count;
+
+        PendingAdd(String location, String name, String quantity, String barcode, int count) {
+            this.location = location;
+            this.name = name;
+            this.quantity = quantity;
+            this.barcode = barcode;
+            this.count = count;
+        }
+    }
+
+    private final List<Object> steps = new ArrayList<>(); // PendingAdds and InventoryMutations, in the order they were asked for
+    private final HashMap<String, PendingAdd> addsByKey = new HashMap<>();
+
+    // Adds count of a product to a location (bumping the existing line if the barcode is already there)
+    public InventoryBatch addItem(String location, String name, String quantity, String barcode, int count) {
+        if (count <= 0) return this;
+        if (barcode != null) {
+            String key = location + '\n' + barcode;
+            PendingAdd existing = addsByKey.get(key);
+            if (existing != null) {
+                existing.count += count;
+                return this;
+            }
+            PendingAdd add = new PendingAdd(location, name, quantity, barcode, count);
+            addsByKey.put(key, add);
+            steps.add(add);
+        } else {
+            steps.add(new PendingAdd(location, name, quantity, null, count));
+        }
+        return this;
+    }
+
+    public InventoryBatch addScans(String location, List<ScannedItem> scans) {
+        for (ScannedItem scan : scans) {
+            addItem(location, scan.name, scan.quantity, scan.barcode, 1);
+        }
+        return this;
+    }
+
+    public InventoryBatch setStockQuantity(String location, long itemId, int stockQuantity) {
+        steps.add(InventoryMutation.setQuantityById(location, itemId, stockQuantity));
+        return this;
+    }
+
+    public InventoryBatch moveItem(String fromLocation, int position, String toLocation) {
+        steps.add(InventoryMutation.moveItem(fromLocation, position, toLocation));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    // The batch as log records, in order, with repeated barcodes already folded together
+    public List<InventoryMutation> mutations() {
+        List<InventoryMutation> mutations = new ArrayList<>(steps.size());
+        for (Object step : steps) {
+            if (step instanceof PendingAdd) {
+                PendingAdd add = (PendingAdd) step;
+                mutations.add(add.count == 1
+                        ? InventoryMutation.addItem(add.location, add.name, add.quantity, add.barcode)
+                        : InventoryMutation.addItems(add.location, add.name, add.quantity, add.barcode, add.count));
+            } else {
+                mutations.add((InventoryMutation) step);
+            }
+        }
+        return mutations;
+    }
+}
@@ -0,0 +1,82 @@
+// --- INVENTORY ITEM ---
+// One line on the shelf. A name, a package size, a barcode (if it has one) and how many we've got.
+// Before this class existed, every screen poked at raw JSONObjects and remembered the key names by heart.
+// Now the streaming reader builds these directly, so nobody has to hold the whole JSON tree just to look at one shelf.
+
+package com.example.sims;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class InventoryItem {
+
+    private long id; // Stable handle within its location (0 = not assigned yet). Never exported, positions and names aren't reliable keys.
+    private String name;
+    private String quantity;
+    private String barcode; // null means it was a manual entry (homemade jam, etc.)
+    private int stockQuantity;
+
+    public InventoryItem(String name, String quantity, String barcode, int stockQuantity) {
+        this.name = name;
+        this.quantity = quantity;
+        this.barcode = barcode;
+        this.stockQuantity = stockQuantity;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    // A separate object with the same values (id included), so edits to one don't show up in the other
+    public InventoryItem copy() {
+        InventoryItem copy = new InventoryItem(name, quantity, barcode, stockQuantity);
+        copy.id = id;
+        return copy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(String quantity) {
+        this.quantity = quantity;
+    }
+
+    public String getBarcode() {
+        return barcode;
+    }
+
+    public void setBarcode(String barcode) {
+        this.barcode = barcode;
+    }
+
+    public int getStockQuantity() {
+        return stockQuantity;
+    }
+
+    public void setStockQuantity(int stockQuantity) {
+        this.stockQuantity = stockQuantity;
+    }
+
+    // Same keys, same order as the old addItemToStorage wrote them, so files stay diff-friendly
+    public JSONObject toJson() throws JSONException {
+        JSONObject item = new JSONObject();
+        item.put("name", name);
+        item.put("quantity", quantity);
+        item.put("barcode", barcode);
+        item.put("stockQuantity", stockQuantity);
+        return item;
+    }
+}
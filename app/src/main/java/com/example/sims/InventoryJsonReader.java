@@ -0,0 +1,133 @@
+// --- INVENTORY JSON READER ---
+// The old way of reading the inventory was: slurp the whole file into a StringBuilder, turn that into one giant String,
+// and then hand it to JSONObject so it could build a tree of the whole thing. Three copies of the same data, all at once.
+// This reader walks the file token by token instead (android.util.JsonReader) and builds InventoryItems as it goes.
+
+package com.example.sims;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+public class InventoryJsonReader {
+
+    // Same default the rest of the app has always used: if an item has no count, assume we have one of it
+    private static final int DEFAULT_STOCK = 1;
+
+    /*
+        Reads every location and every item in the file.
+        Locations come back in the same order they appear in the file (LinkedHashMap keeps it that way).
+     */
+    public static LinkedHashMap<String, List<InventoryItem>> readInventory(InputStream in) throws IOException {
+        return readInventory(in, DEFAULT_STOCK);
+    }
+
+    // Same as above, but lets the caller decide what a missing stockQuantity means (the house count treats it as 0)
+    public static LinkedHashMap<String, List<InventoryItem>> readInventory(InputStream in, int defaultStock) throws IOException {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        try (JsonReader reader = open(in)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String location = reader.nextName();
+                inventory.put(location, readItems(reader, defaultStock));
+            }
+            reader.endObject();
+        }
+        return inventory;
+    }
+
+    // Wraps the stream in a buffered UTF-8 reader. Closing the JsonReader closes the stream too.
+    static JsonReader open(InputStream in) {
+        return new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    // Reads one location's array. A null (or anything that isn't an array) is treated as an empty shelf.
+    static List<InventoryItem> readItems(JsonReader reader, int defaultStock) throws IOException {
+        List<InventoryItem> items = new ArrayList<>();
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return items;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                items.add(readItem(reader, defaultStock));
+            } else {
+                reader.skipValue(); // Junk in the array, ignore it like JSONArray.getJSONObject would have choked on it
+            }
+        }
+        reader.endArray();
+        return items;
+    }
+
+    // Builds a single item. Unknown keys are skipped so older/newer files still load.
+    static InventoryItem readItem(JsonReader reader, int defaultStock) throws IOException {
+        String name = null;
+        String quantity = null;
+        String barcode = null;
+        int stockQuantity = defaultStock;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = readString(reader);
+                    break;
+                case "quantity":
+                    quantity = readString(reader);
+                    break;
+                case "barcode":
+                    barcode = readString(reader);
+                    break;
+                case "stockQuantity":
+                    stockQuantity = readInt(reader, defaultStock);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return new InventoryItem(name, quantity, barcode, stockQuantity);
+    }
+
+    // Strings might show up as numbers (barcodes!) or as null, so handle all of it like optString did
+    static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    // Mirrors JSONObject.optInt: numbers get truncated, numeric strings get parsed, anything else uses the fallback
+    static int readInt(JsonReader reader, int fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            String raw = reader.nextString();
+            try {
+                return (int) Double.parseDouble(raw);
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+}
@@ -0,0 +1,135 @@
+// --- INVENTORY MUTATION ---
+// One small change to the inventory: "add a Coke to the Pantry", "rename item 3", "delete the Freezer", etc.
+// Instead of rewriting the whole inventory file every time something changes, we jot these down in a log
+// (see InventoryMutationLog) and replay them on startup. Think of it like a receipt roll at a till:
+// you don't reprint the whole store's stock every sale, you just print the line for what changed.
+
+package com.example.sims;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class InventoryMutation {
+
+    // Record types. These numbers end up on disk, so never reuse or renumber one.
+    public static final int ADD_ITEM = 1;
+    public static final int SET_QUANTITY = 2;
+    public static final int RENAME_ITEM = 3;
+    public static final int DELETE_ITEM = 4;
+    public static final int MOVE_ITEM = 5;
+    public static final int ADD_LOCATION = 6;
+    public static final int REMOVE_LOCATION = 7;
+    public static final int RENAME_LOCATION = 8;
+    public static final int SET_QUANTITY_BY_ID = 9;
+    public static final int ADD_ITEMS = 10;
+
+    public final int type;
+    public final String location;  // The location being changed (or the old name for a rename, or the source for a move)
+    public final String target;    // New location name (rename) or destination (move)
+    public final String name;      // Item name (add, rename, and the name match for set-quantity)
+    public final String quantity;  // Package size, e.g. "355 mL"
+    public final String barcode;   // null for manual entries
+    public final int position;     // Item position in the location's list
+    public final int value;        // New stock count for set-quantity, or how many to add for add-items
+    public final long itemId;      // Item id for set-quantity-by-id (0 for everything else)
+
+    private InventoryMutation(int type, String location, String target, String name,
+                              String quantity, String barcode, int position, int value) {
+        this(type, location, target, name, quantity, barcode, position, value, 0);
+    }
+
+    private InventoryMutation(int type, String location, String target, String name,
+                              String quantity, String barcode, int position, int value, long itemId) {
+        this.type = type;
+        this.location = location;
+        this.target = target;
+        this.name = name;
+        this.quantity = quantity;
+        this.barcode = barcode;
+        this.position = position;
+        this.value = value;
+        this.itemId = itemId;
+    }
+
+    // --- Factory methods, one per kind of change ---
+
+    public static InventoryMutation addItem(String location, String name, String quantity, String barcode) {
+        return new InventoryMutation(ADD_ITEM, location, null, name, quantity, barcode, -1, 0);
+    }
+
+    // Same as addItem, but count of them at once (a batch that scanned the same barcode several times)
+    public static InventoryMutation addItems(String location, String name, String quantity, String barcode, int count) {
+        return new InventoryMutation(ADD_ITEMS, location, null, name, quantity, barcode, -1, count);
+    }
+
+    public static InventoryMutation setQuantity(String location, String name, int stockQuantity) {
+        return new InventoryMutation(SET_QUANTITY, location, null, name, null, null, -1, stockQuantity);
+    }
+
+    public static InventoryMutation setQuantityById(String location, long itemId, int stockQuantity) {
+        return new InventoryMutation(SET_QUANTITY_BY_ID, location, null, null, null, null, -1, stockQuantity, itemId);
+    }
+
+    public static InventoryMutation renameItem(String location, int position, String newName) {
+        return new InventoryMutation(RENAME_ITEM, location, null, newName, null, null, position, 0);
+    }
+
+    public static InventoryMutation deleteItem(String location, int position) {
+        return new InventoryMutation(DELETE_ITEM, location, null, null, null, null, position, 0);
+    }
+
+    public static InventoryMutation moveItem(String fromLocation, int position, String toLocation) {
+        return new InventoryMutation(MOVE_ITEM, fromLocation, toLocation, null, null, null, position, 0);
+    }
+
+    public static InventoryMutation addLocation(String location) {
+        return new InventoryMutation(ADD_LOCATION, location, null, null, null, null, -1, 0);
+    }
+
+    public static InventoryMutation removeLocation(String location) {
+        return new InventoryMutation(REMOVE_LOCATION, location, null, null, null, null, -1, 0);
+    }
+
+    public static InventoryMutation renameLocation(String oldName, String newName) {
+        return new InventoryMutation(RENAME_LOCATION, oldName, newName, null, null, null, -1, 0);
+    }
+
+    // --- Encoding (the log adds the length/checksum framing around this) ---
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        writeNullable(out, location);
+        writeNullable(out, target);
+        writeNullable(out, name);
+        writeNullable(out, quantity);
+        writeNullable(out, barcode);
+        out.writeInt(position);
+        out.writeInt(value);
+        // Only the newer record types carry an id, so records written before ids existed still read back the same
+        if (type == SET_QUANTITY_BY_ID) out.writeLong(itemId);
+    }
+
+    static InventoryMutation readFrom(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        String location = readNullable(in);
+        String target = readNullable(in);
+        String name = readNullable(in);
+        String quantity = readNullable(in);
+        String barcode = readNullable(in);
+        int position = in.readInt();
+        int value = in.readInt();
+        long itemId = type == SET_QUANTITY_BY_ID ? in.readLong() : 0;
+        return new InventoryMutation(type, location, target, name, quantity, barcode, position, value, itemId);
+    }
+
+    // A flag byte in front of each string so we can tell "no barcode" apart from an empty one
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
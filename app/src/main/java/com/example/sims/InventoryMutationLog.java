@@ -0,0 +1,278 @@
+// --- INVENTORY MUTATION LOG ---
+// The write-ahead log that sits next to inventory_data.json.
+// Every change gets appended here as a tiny record instead of rewriting the whole inventory file.
+// On startup we load the last snapshot (inventory_data.json) and replay whatever came after it.
+// Every so often the repository folds the log back into a fresh snapshot ("compaction") so the log stays small.
+//
+// Each record on disk looks like: [length][CRC32 checksum][payload]
+// If the phone dies halfway through writing a record, the checksum won't match and we drop that torn tail.
+//
+// How we know which records the snapshot already contains:
+// before a new snapshot is written, we append a CHECKPOINT record saying "a snapshot with this hash covers everything
+// up to record #N". On startup we hash the snapshot we actually have and skip any records it already covers.
+// That way a crash at any point during compaction never double-counts (or loses) a scan.
+
+package com.example.sims;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+public class InventoryMutationLog {
+
+    private static final int RECORD_MUTATION = 1;
+    private static final int RECORD_CHECKPOINT = 2;
+
+    // Nothing we write is anywhere near this big. A length bigger than this means the tail is garbage.
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    // Callback used during replay so the repository can apply each change to its in-memory copy
+    public interface Replayer {
+        void apply(InventoryMutation mutation);
+    }
+
+    private final File file;
+    private FileOutputStream out;
+    private long nextSequence = 1;
+    private long size;
+
+    public InventoryMutationLog(File file) {
+        this.file = file;
+    }
+
+    /*
+        Reads the log, replays every change the snapshot doesn't already have, and gets ready for appending.
+        snapshotHash is only asked for if the log actually has checkpoints in it (hashing the snapshot isn't free).
+        Returns how many changes were replayed.
+     */
+    public synchronized int open(Supplier<byte[]> snapshotHash, Replayer replayer) throws IOException {
+        List<LoggedMutation> mutations = new ArrayList<>();
+        List<Checkpoint> checkpoints = new ArrayList<>();
+        long validLength = 0;
+        long maxSequence = 0;
+
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    byte[] payload = readFrame(in);
+                    if (payload == null) break; // Clean end of file, or a torn/corrupt tail we're going to drop
+
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    int kind = record.readUnsignedByte();
+                    long sequence = record.readLong();
+                    if (kind == RECORD_MUTATION) {
+                        mutations.add(new LoggedMutation(sequence, InventoryMutation.readFrom(record)));
+                        maxSequence = Math.max(maxSequence, sequence);
+                    } else if (kind == RECORD_CHECKPOINT) {
+                        byte[] hash = new byte[record.readUnsignedShort()];
+                        record.readFully(hash);
+                        checkpoints.add(new Checkpoint(sequence, hash));
+                        maxSequence = Math.max(maxSequence, sequence);
+                    }
+                    validLength += 8 + payload.length;
+                }
+            }
+
+            // Chop off anything after the last good record so new appends don't land behind garbage
+            if (validLength < file.length()) {
+                Log.w("MutationLog", "Dropping torn log tail: " + (file.length() - validLength) + " bytes");
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+
+        // Figure out how far the snapshot on disk already goes
+        long covered = 0;
+        if (!checkpoints.isEmpty()) {
+            byte[] actualHash = snapshotHash.get();
+            for (Checkpoint checkpoint : checkpoints) {
+                // If two snapshots happened to have identical contents, the later one covers more, and both are correct
+                if (actualHash != null && Arrays.equals(actualHash, checkpoint.snapshotHash)) {
+                    covered = Math.max(covered, checkpoint.coveredSequence);
+                }
+            }
+        }
+
+        int replayed = 0;
+        for (LoggedMutation entry : mutations) {
+            if (entry.sequence > covered) {
+                replayer.apply(entry.mutation);
+                replayed++;
+            }
+        }
+
+        nextSequence = maxSequence + 1;
+        size = validLength;
+        out = new FileOutputStream(file, true);
+        return replayed;
+    }
+
+    /*
+        Appends one change. The bytes are handed to the OS right away (so an app crash can't lose them),
+        but forcing them onto the flash chip is left to sync(), so a burst of edits can share one fsync.
+     */
+    public synchronized void append(InventoryMutation mutation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(RECORD_MUTATION);
+        payload.writeLong(nextSequence++);
+        mutation.writeTo(payload);
+        writeFrame(bytes.toByteArray());
+    }
+
+    // Appends a whole batch of changes with a single write
+    public synchronized void appendAll(List<InventoryMutation> mutations) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(mutations.size() * 64);
+        for (InventoryMutation mutation : mutations) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeByte(RECORD_MUTATION);
+            payload.writeLong(nextSequence++);
+            mutation.writeTo(payload);
+            frames.write(frame(bytes.toByteArray()));
+        }
+        if (out == null) throw new IOException("Mutation log was never opened");
+        out.write(frames.toByteArray());
+        size += frames.size();
+    }
+
+    // Makes sure everything appended so far has physically hit the disk
+    public synchronized void sync() throws IOException {
+        if (out != null) out.getFD().sync();
+    }
+
+    // Notes that a snapshot with this hash is about to be written and will cover everything up to coveredSequence
+    public synchronized void appendCheckpoint(long coveredSequence, byte[] snapshotHash) throws IOException {
+        writeFrame(checkpointPayload(coveredSequence, snapshotHash));
+        out.getFD().sync();
+    }
+
+    // The sequence number of the newest change in the log (0 if there's never been one)
+    public synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    // Current size of the log in bytes, used to decide when it's time to compact
+    public synchronized long size() {
+        return size;
+    }
+
+    /*
+        Called once the new snapshot is safely on disk.
+        Rewrites the log as: a checkpoint for that snapshot, followed by everything appended after fromOffset
+        (the changes that came in while the snapshot was being written). The swap is a rename, so it's all-or-nothing.
+     */
+    public synchronized void dropCoveredRecords(long fromOffset, long coveredSequence, byte[] snapshotHash) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        out.close();
+        try {
+            try (FileOutputStream tempOut = new FileOutputStream(temp);
+                 RandomAccessFile source = new RandomAccessFile(file, "r")) {
+                tempOut.write(frame(checkpointPayload(coveredSequence, snapshotHash)));
+
+                source.seek(fromOffset);
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = source.read(buffer)) > 0) {
+                    tempOut.write(buffer, 0, read);
+                }
+                tempOut.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to swap in compacted log");
+            }
+        } finally {
+            // If anything went wrong the old log is still intact (it just keeps a few extra records), so carry on with it
+            temp.delete();
+            out = new FileOutputStream(file, true);
+            size = file.length();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) out.close();
+    }
+
+    // --- Framing helpers ---
+
+    private void writeFrame(byte[] payload) throws IOException {
+        if (out == null) throw new IOException("Mutation log was never opened");
+        out.write(frame(payload));
+        size += 8 + payload.length;
+    }
+
+    private static byte[] frame(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 8);
+        DataOutputStream frame = new DataOutputStream(bytes);
+        frame.writeInt(payload.length);
+        frame.writeInt((int) crc.getValue());
+        frame.write(payload);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] checkpointPayload(long coveredSequence, byte[] snapshotHash) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(RECORD_CHECKPOINT);
+        payload.writeLong(coveredSequence);
+        payload.writeShort(snapshotHash.length);
+        payload.write(snapshotHash);
+        return bytes.toByteArray();
+    }
+
+    // Reads one frame. Returns null at the end of the log or at the first record that's cut off or fails its checksum.
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int expectedCrc = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) return null;
+            return payload;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static final class LoggedMutation {
+        final long sequence;
+        final InventoryMutation mutation;
+
+        LoggedMutation(long sequence, InventoryMutation mutation) {
+            this.sequence = sequence;
+            this.mutation = mutation;
+        }
+    }
+
+    private static final class Checkpoint {
+        final long coveredSequence;
+        final byte[] snapshotHash;
+
+        Checkpoint(long coveredSequence, byte[] snapshotHash) {
+            this.coveredSequence = coveredSequence;
+            this.snapshotHash = snapshotHash;
+        }
+    }
+}
@@ -0,0 +1,890 @@
+// --- INVENTORY REPOSITORY ---
+// This is the one copy of the inventory that the whole app shares while it's running.
+// Before this, every tap, every dialog and every screen went back to the file and re-parsed the entire thing,
+// which is like re-reading the whole grocery list every time you want to check if you have milk.
+// Now we load the file once, answer every question from memory, and only write back the locations that actually changed.
+//
+// Saving works like a cash register receipt: each change is appended to a small log (InventoryMutationLog),
+// and every so often, in the background, the log gets folded into a fresh snapshot ("compaction").
+// A scan session of hundreds of items now costs hundreds of tiny appends instead of hundreds of full-file rewrites.
+// The slow part (forcing the log onto the disk, and compacting) is batched up by a WriteBehindWriter,
+// so rapid-fire edits share one background write. Screens call flush() in onPause so nothing is left hanging.
+//
+// The snapshot is split up: every location has its own small binary shard file (see InventorySnapshot) in files/inventory/,
+// and a manifest (see ShardManifest) lists them in order. Compaction only writes shards for locations that changed,
+// so a can on the smallest shelf no longer rewrites the biggest one. Renaming or removing a location is a manifest-only change.
+// Startup only reads the manifest; a location's shard is decoded the first time someone actually looks at it.
+// Each loaded location is a LocationInventory, which keeps barcode and item-id lookups in step with every change,
+// so a scan finds its match in one hash lookup instead of a walk down the shelf.
+// On top of that, a global barcode index answers "which locations have this?" (whereIs) without touching any shelf
+// that doesn't. A background warm-up loads the remaining shards after startup so the index covers everything.
+// Older installs are converted once on first launch: a single inventory.snap (deleted after), or inventory_data.json (kept as a .bak).
+//
+// This is the file-backed InventoryStore. Screens get it (or the SQLite one) through InventoryStores.get().
+
+package com.example.sims;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+public class InventoryRepository implements InventoryStore {
+
+    private static final String SHARD_DIRECTORY_NAME = "inventory";
+    private static final String MANIFEST_FILE_NAME = "manifest";
+    private static final String LEGACY_SNAPSHOT_FILE_NAME = "inventory.snap"; // The single-file snapshot from before shards
+    private static final String LOG_FILE_NAME = "inventory.log";
+
+    // Once the log grows past this, we fold it into a new snapshot. Small enough to replay in a blink on startup.
+    private static final long COMPACTION_THRESHOLD_BYTES = 256 * 1024;
+
+    // Write-behind timing: save after this much quiet, but never let a change wait longer than the max
+    private static final long WRITE_QUIET_MILLIS = 300;
+    private static final long WRITE_MAX_DELAY_MILLIS = 2000;
+
+    private static InventoryRepository instance;
+
+    private final Context appContext;
+
+    // Location name -> that shelf's items and shard, in display order
+    private final LinkedHashMap<String, Location> locations = new LinkedHashMap<>();
+
+    // Barcode -> every location that has at least one item with it. Kept in step by each LocationInventory's listener.
+    private final HashMap<String, LinkedHashSet<Location>> barcodeIndex = new HashMap<>();
+
+    // The location list itself changed (added, removed, renamed, reordered), so the manifest needs rewriting
+    private boolean manifestDirty;
+
+    // Number for the next shard file. Only compaction uses it (under compactionLock).
+    private long nextFileNumber = 1;
+
+    /*
+        One location's state. Renaming a location just moves this object to the new name,
+        so its shard file, its loaded items and its dirty flag all come along.
+     */
+    private static final class Location {
+        String name;               // Current name (changes on rename), so index lookups can report it
+        LocationInventory items;   // null = not loaded yet, still only in the shard file
+        Shard shard;               // The file its items were last saved to (null if they never have been)
+        boolean dirty;             // Items changed since the shard was written
+        LocationDigest digest;     // Fingerprint of the items, worked out when first asked for (null = stale or not yet)
+
+        Location(String name) {
+            this.name = name;
+        }
+    }
+
+    // A shard file as listed in the manifest
+    private static final class Shard {
+        final String fileName;
+        final int itemCount;
+        final byte[] hash;
+
+        Shard(String fileName, int itemCount, byte[] hash) {
+            this.fileName = fileName;
+            this.itemCount = itemCount;
+            this.hash = hash;
+        }
+    }
+
+    // Coalesces bursts of edits into one background fsync (and compaction, when the log gets big)
+    private final WriteBehindWriter writer =
+            new WriteBehindWriter("inventory", WRITE_QUIET_MILLIS, WRITE_MAX_DELAY_MILLIS, this::persistPending);
+
+    private InventoryMutationLog log;
+
+    // Two compactions at once would trip over each other's log offsets, so they take turns
+    private final Object compactionLock = new Object();
+
+    private InventoryRepository(Context context) {
+        this.appContext = context.getApplicationContext();
+        if (load()) {
+            migrateToShards();
+        }
+        startWarmUp();
+    }
+
+    /*
+        Grabs the shared repository, loading the inventory file the first time anyone asks.
+        Every activity goes through here so they're all looking at the same data.
+     */
+    public static synchronized InventoryRepository get(Context context) {
+        if (instance == null) {
+            instance = new InventoryRepository(context);
+        }
+        return instance;
+    }
+
+    /*
+        Reads the manifest (no items yet), then replays whatever the log has on top of it.
+        If there's no manifest yet, the older single-file snapshot or JSON file is read in full instead,
+        and we return true so the caller converts it to shards.
+        If the files are broken we start empty rather than crash.
+     */
+    private synchronized boolean load() {
+        locations.clear();
+        barcodeIndex.clear();
+        manifestDirty = false;
+
+        File manifestFile = new File(shardDirectory(), MANIFEST_FILE_NAME);
+        File legacySnapshot = new File(appContext.getFilesDir(), LEGACY_SNAPSHOT_FILE_NAME);
+        boolean migrating = !manifestFile.exists();
+        Supplier<byte[]> snapshotHash;
+
+        if (!migrating) {
+            try {
+                ShardManifest manifest = ShardManifest.read(manifestFile);
+                nextFileNumber = manifest.nextFileNumber;
+                for (ShardManifest.Entry entry : manifest.entries) {
+                    Location location = new Location(entry.location);
+                    location.shard = new Shard(entry.fileName, entry.itemCount, entry.hash);
+                    locations.put(entry.location, location);
+                }
+                removeStrayShards(manifest); // Leftovers from a compaction that didn't finish
+            } catch (IOException e) {
+                Log.e("InventoryRepo", "Inventory manifest could not be read, starting with an empty inventory", e);
+            }
+            // The manifest holds every shard's hash, so hashing it is enough to identify the whole inventory
+            snapshotHash = () -> InventorySnapshot.hash(manifestFile);
+        } else if (legacySnapshot.exists()) {
+            try {
+                putAllLoaded(InventorySnapshot.open(legacySnapshot).readAll());
+            } catch (IOException e) {
+                Log.e("InventoryRepo", "Inventory snapshot could not be read, starting with an empty inventory", e);
+            }
+            snapshotHash = () -> InventorySnapshot.hash(legacySnapshot);
+        } else {
+            // First launch ever (this copies the starter file), or an install from before the binary format
+            JsonStorageHelper.initializeIfMissing(appContext);
+            LinkedHashMap<String, List<InventoryItem>> inventory = JsonStorageHelper.readInventory(appContext);
+            if (inventory != null) {
+                putAllLoaded(inventory);
+            } else {
+                Log.e("InventoryRepo", "Inventory file could not be read, starting with an empty inventory");
+            }
+            snapshotHash = () -> JsonStorageHelper.snapshotHash(appContext);
+        }
+
+        // The log's checkpoints are hashes of whichever snapshot it was last folded into, so hash the one we loaded
+        log = new InventoryMutationLog(new File(appContext.getFilesDir(), LOG_FILE_NAME));
+        try {
+            int replayed = log.open(snapshotHash, this::apply);
+            if (replayed > 0) {
+                Log.i("InventoryRepo", "Replayed " + replayed + " logged changes");
+            }
+        } catch (IOException e) {
+            Log.e("InventoryRepo", "Failed to open mutation log", e);
+        }
+        if (!migrating && log.size() >= COMPACTION_THRESHOLD_BYTES) {
+            writer.markDirty();
+        }
+        return migrating;
+    }
+
+    /*
+        One-time switch to shard files. Everything is in memory at this point, so every location gets written out
+        straight away. An old inventory.snap is deleted after; an old inventory_data.json is kept as a .bak, just in case.
+     */
+    private void migrateToShards() {
+        synchronized (this) {
+            for (Location location : locations.values()) {
+                location.dirty = true;
+            }
+            manifestDirty = true;
+        }
+        compact();
+        if (new File(shardDirectory(), MANIFEST_FILE_NAME).exists()) {
+            new File(appContext.getFilesDir(), LEGACY_SNAPSHOT_FILE_NAME).delete();
+            JsonStorageHelper.archiveLegacyFile(appContext);
+        }
+    }
+
+    private void putAllLoaded(Map<String, List<InventoryItem>> inventory) {
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            Location location = new Location(entry.getKey());
+            setItems(location, new LocationInventory(entry.getValue(), 0));
+            locations.put(entry.getKey(), location);
+        }
+    }
+
+    // A location's items, decoding its shard the first time they're needed. null if there's no such location.
+    private LocationInventory items(String name) {
+        Location location = locations.get(name);
+        if (location == null) return null;
+        if (location.items == null) {
+            setItems(location, readShard(location.shard));
+        }
+        return location.items;
+    }
+
+    // Adds an empty location at the end of the list and hands back its (empty, loaded) items
+    private LocationInventory newLocation(String name) {
+        Location location = new Location(name);
+        setItems(location, new LocationInventory());
+        location.dirty = true;
+        locations.put(name, location);
+        manifestDirty = true;
+        return location.items;
+    }
+
+    // Loads a location's items and hooks them up to the global barcode index
+    private void setItems(Location location, LocationInventory items) {
+        location.items = items;
+        location.digest = null;
+        items.setBarcodeListener(new LocationInventory.BarcodeListener() {
+            @Override
+            public void barcodeAdded(String barcode) {
+                barcodeIndex.computeIfAbsent(barcode, key -> new LinkedHashSet<>()).add(location);
+            }
+
+            @Override
+            public void barcodeRemoved(String barcode) {
+                LinkedHashSet<Location> holders = barcodeIndex.get(barcode);
+                if (holders == null) return;
+                holders.remove(location);
+                if (holders.isEmpty()) barcodeIndex.remove(barcode);
+            }
+        });
+    }
+
+    // Takes a removed location out of the global barcode index
+    private void unindex(Location location) {
+        if (location == null || location.items == null) return; // Never loaded, so never indexed
+        for (String barcode : location.items.barcodes()) {
+            LinkedHashSet<Location> holders = barcodeIndex.get(barcode);
+            if (holders == null) continue;
+            holders.remove(location);
+            if (holders.isEmpty()) barcodeIndex.remove(barcode);
+        }
+        location.items.setBarcodeListener(null);
+    }
+
+    /*
+        Decodes every shard nobody has opened yet, one location at a time, on a background thread.
+        Startup stays just as fast (it only reads the manifest), and by the time someone scans, the barcode index covers everything.
+        Taking the lock per location keeps the UI from ever waiting on more than one shard.
+     */
+    private void startWarmUp() {
+        Thread warmUp = new Thread(() -> {
+            for (String name : getLocationNames()) {
+                synchronized (this) {
+                    items(name);
+                }
+            }
+        }, "InventoryWarmUp");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    // Makes sure every location is loaded (and so indexed). Nothing left to do once the warm-up has finished.
+    private void loadAll() {
+        for (String name : locations.keySet()) {
+            items(name);
+        }
+    }
+
+    private void markChanged(String name) {
+        Location location = locations.get(name);
+        if (location != null) {
+            location.dirty = true;
+            location.digest = null;
+        }
+    }
+
+    private File shardDirectory() {
+        return new File(appContext.getFilesDir(), SHARD_DIRECTORY_NAME);
+    }
+
+    // Maps one shard file and decodes its items (and builds their lookups). Each shard holds exactly one location.
+    private LocationInventory readShard(Shard shard) {
+        if (shard == null) return new LocationInventory();
+        try {
+            InventorySnapshot snapshot = InventorySnapshot.open(new File(shardDirectory(), shard.fileName));
+            List<String> names = snapshot.locationNames();
+            if (names.isEmpty()) return new LocationInventory();
+            return new LocationInventory(snapshot.readLocation(names.get(0)), snapshot.nextItemId(names.get(0)));
+        } catch (IOException e) {
+            Log.e("InventoryRepo", "Failed to read shard " + shard.fileName, e);
+            return new LocationInventory();
+        }
+    }
+
+    // Writes one location as its own shard file and returns the file's hash
+    private static byte[] writeShard(File file, String name, List<InventoryItem> items, long nextItemId) throws IOException {
+        InventorySnapshot.Writer out = new InventorySnapshot.Writer(file);
+        try {
+            out.writeLocation(name, items, nextItemId);
+            byte[] hash = out.finish();
+            out.commit();
+            return hash;
+        } finally {
+            out.abort();
+        }
+    }
+
+    // --- READS (all from memory, no file access) ---
+
+    public synchronized List<String> getLocationNames() {
+        return new ArrayList<>(locations.keySet());
+    }
+
+    public synchronized boolean hasLocation(String location) {
+        return locations.containsKey(location);
+    }
+
+    // A copy of the location's items, so callers can loop over it without worrying about a save happening mid-loop
+    public synchronized List<InventoryItem> getItems(String location) {
+        LocationInventory items = items(location);
+        return items != null ? new ArrayList<>(items.items()) : new ArrayList<>();
+    }
+
+    // Single item by its position in the list. This is what a list tap should cost: a lookup, not a file parse.
+    public synchronized InventoryItem getItem(String location, int position) {
+        LocationInventory items = items(location);
+        if (items == null || !items.isValidPosition(position)) return null;
+        return items.get(position);
+    }
+
+    public synchronized InventoryItem findByBarcode(String location, String barcode) {
+        LocationInventory items = items(location);
+        return items != null ? items.findByBarcode(barcode) : null;
+    }
+
+    /*
+        Every location that has this barcode, and how many are on each shelf. One hash lookup for the barcode,
+        then one per location that actually has it. Empty list if we don't have it anywhere.
+        (If a shelf somehow holds the same barcode on two lines, the first line's count is the one reported, same as scanning finds.)
+     */
+    public synchronized List<ItemLocation> whereIs(String barcode) {
+        List<ItemLocation> found = new ArrayList<>();
+        if (barcode == null) return found;
+        loadAll();
+        LinkedHashSet<Location> holders = barcodeIndex.get(barcode);
+        if (holders == null) return found;
+        for (Location location : holders) {
+            InventoryItem item = location.items.findByBarcode(barcode);
+            if (item != null) found.add(new ItemLocation(location.name, item.getName(), item.getStockQuantity()));
+        }
+        return found;
+    }
+
+    // Total items across every location. Unopened locations are counted from the manifest, not decoded.
+    public synchronized int getItemCount() {
+        int count = 0;
+        for (Location location : locations.values()) {
+            if (location.items != null) {
+                count += location.items.size();
+            } else if (location.shard != null) {
+                count += location.shard.itemCount;
+            }
+        }
+        return count;
+    }
+
+    // The whole inventory as JSON, in the same shape as the file (used for syncing)
+    public synchronized JSONObject toJson() throws JSONException {
+        return JsonStorageHelper.toJson(snapshot());
+    }
+
+    // A deep copy of the whole inventory, safe to read on another thread while edits keep coming in
+    public synchronized LinkedHashMap<String, List<InventoryItem>> snapshot() {
+        LinkedHashMap<String, List<InventoryItem>> copy = new LinkedHashMap<>();
+        for (String location : locations.keySet()) {
+            copy.put(location, copyOf(items(location).items()));
+        }
+        return copy;
+    }
+
+    // --- LOCATION CHANGES ---
+
+    public synchronized boolean addLocation(String location) {
+        return commit(InventoryMutation.addLocation(location));
+    }
+
+    public synchronized void removeLocation(String location) {
+        commit(InventoryMutation.removeLocation(location));
+    }
+
+    // Renaming moves the items under the new name (and to the end of the list, like it always has).
+    // On disk it's only a manifest change; the shard file stays exactly as it is.
+    public synchronized boolean renameLocation(String oldName, String newName) {
+        return commit(InventoryMutation.renameLocation(oldName, newName));
+    }
+
+    // --- ITEM CHANGES ---
+
+    /*
+        Adds a product to a location. Same rules as always:
+        if the barcode is already on that shelf, bump its count; otherwise add it as a new item with a count of 1.
+     */
+    public synchronized void addItem(String location, String name, String quantity, String barcode) {
+        commit(InventoryMutation.addItem(location, name, quantity, barcode));
+    }
+
+    // Sets the count for the first item whose name matches (ignoring case). Returns false if nothing matched.
+    public synchronized boolean setStockQuantity(String location, String name, int stockQuantity) {
+        return commit(InventoryMutation.setQuantity(location, name, stockQuantity));
+    }
+
+    // Sets the count for one exact item, found by its id in one lookup. Returns false if it's gone.
+    public synchronized boolean setStockQuantityById(String location, long itemId, int stockQuantity) {
+        return commit(InventoryMutation.setQuantityById(location, itemId, stockQuantity));
+    }
+
+    public synchronized boolean renameItem(String location, int position, String newName) {
+        return commit(InventoryMutation.renameItem(location, position, newName));
+    }
+
+    public synchronized boolean deleteItem(String location, int position) {
+        return commit(InventoryMutation.deleteItem(location, position));
+    }
+
+    // Moves an item to another location. If the destination already has that barcode, the counts are combined.
+    public synchronized boolean moveItem(String fromLocation, int position, String toLocation) {
+        return commit(InventoryMutation.moveItem(fromLocation, position, toLocation));
+    }
+
+    /*
+        Applies a whole batch under one lock and writes it to the log in one go (one write, one background fsync),
+        instead of a write per change. Steps that don't apply (a stale position, an id that's gone) are skipped.
+        Returns how many steps went through.
+     */
+    public synchronized int applyBatch(InventoryBatch batch) {
+        List<InventoryMutation> applied = new ArrayList<>();
+        for (InventoryMutation mutation : batch.mutations()) {
+            if (apply(mutation)) applied.add(mutation);
+        }
+        if (applied.isEmpty()) return 0;
+        try {
+            log.appendAll(applied);
+        } catch (IOException e) {
+            Log.e("InventoryRepo", "Failed to append batch to mutation log", e);
+        }
+        writer.markDirty();
+        return applied.size();
+    }
+
+    // Fingerprint of a location's items, cached until the location changes. null if there's no such location.
+    public synchronized LocationDigest locationDigest(String name) {
+        LocationInventory items = items(name);
+        if (items == null) return null;
+        Location location = locations.get(name);
+        if (location.digest == null) location.digest = LocationDigest.of(items.items());
+        return location.digest;
+    }
+
+    /*
+        Swaps the whole inventory for a new one (this is what a sync does once it's done merging).
+        A change this big doesn't belong in the log, so we write fresh shards straight away instead.
+        Locations that come back exactly as they were (same digest) are kept as-is: no new shard file, same item ids.
+        Most syncs only touch a few locations, so most of the inventory doesn't get rewritten.
+        If the shards can't be written, the old inventory is put back and this returns false (see replaceLocations).
+     */
+    public boolean replaceAll(Map<String, List<InventoryItem>> inventory) {
+        writer.flush(); // Anything already logged goes to disk first
+        synchronized (compactionLock) {
+            synchronized (this) {
+                LinkedHashMap<String, Location> before = new LinkedHashMap<>(locations);
+
+                HashMap<String, Location> unchanged = new HashMap<>();
+                for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+                    LocationDigest current = locationDigest(entry.getKey());
+                    if (current != null && current.sameAs(LocationDigest.of(entry.getValue()))) {
+                        unchanged.put(entry.getKey(), locations.get(entry.getKey()));
+                    }
+                }
+
+                locations.clear();
+                barcodeIndex.clear();
+                manifestDirty = true;
+                for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+                    Location kept = unchanged.get(entry.getKey());
+                    if (kept != null) {
+                        LocationDigest digest = kept.digest;
+                        setItems(kept, kept.items); // Hooks it back up to the (just cleared) barcode index
+                        kept.digest = digest;
+                        locations.put(entry.getKey(), kept);
+                        continue;
+                    }
+                    Location location = new Location(entry.getKey());
+                    setItems(location, new LocationInventory(new ArrayList<>(entry.getValue()), 0)); // As-is, duplicates and all
+                    location.dirty = true;
+                    locations.put(entry.getKey(), location);
+                }
+
+                if (compactLocked()) return true;
+
+                // The old Location objects were never touched (changed ones got new ones), so they just go back in
+                locations.clear();
+                barcodeIndex.clear();
+                for (Map.Entry<String, Location> entry : before.entrySet()) {
+                    Location location = entry.getValue();
+                    if (location.items != null) {
+                        LocationDigest digest = location.digest;
+                        setItems(location, location.items);
+                        location.digest = digest;
+                    }
+                    locations.put(entry.getKey(), location);
+                }
+                return false;
+            }
+        }
+    }
+
+    /*
+        Swaps just the given locations, and only if the ones in expected haven't changed (see InventoryStore).
+        Check and swap happen under one lock, so an edit can't sneak in between them.
+        Locations that come back the same keep their shard and ids; replaced ones keep counting ids up from where they were.
+        Written straight to shards like replaceAll, so it's on disk when this returns.
+
+        The swap isn't in the log, so the shards ARE the only copy of it. If they can't be written (disk full, say)
+        the old items are put back and this returns false, same as a refusal, so the caller keeps the old house count too.
+        Keeping the new items in memory instead would be worse: a later compaction would save them without the house count
+        that goes with them, and the next sync would count everything twice.
+        Edits wait while the shards are written (the lock is held throughout), so none of them can land on items that get rolled back.
+     */
+    public boolean replaceLocations(Map<String, LocationDigest> expected, Map<String, List<InventoryItem>> replacements) {
+        writer.flush(); // Anything already logged goes to disk first
+        synchronized (compactionLock) {
+            synchronized (this) {
+                for (Map.Entry<String, LocationDigest> entry : expected.entrySet()) {
+                    LocationDigest now = locationDigest(entry.getKey());
+                    boolean same = entry.getValue() == null ? now == null : entry.getValue().sameAs(now);
+                    if (!same) return false;
+                }
+
+                List<Replaced> undo = new ArrayList<>();
+                for (Map.Entry<String, List<InventoryItem>> entry : replacements.entrySet()) {
+                    String name = entry.getKey();
+                    LocationDigest current = locationDigest(name);
+                    if (current != null && current.sameAs(LocationDigest.of(entry.getValue()))) continue; // Nothing to do
+
+                    Location location = locations.get(name);
+                    long nextId = 0;
+                    if (location == null) {
+                        location = new Location(name);
+                        locations.put(name, location);
+                        manifestDirty = true;
+                        undo.add(new Replaced(location, null, null));
+                    } else {
+                        nextId = location.items.nextId(); // Loaded by the digest check above
+                        undo.add(new Replaced(location, location.items, current));
+                        unindex(location);
+                    }
+                    setItems(location, new LocationInventory(new ArrayList<>(entry.getValue()), nextId)); // As-is, duplicates and all
+                    location.dirty = true;
+                }
+
+                if (undo.isEmpty() || compactLocked()) return true;
+
+                for (Replaced replaced : undo) {
+                    Location location = replaced.location;
+                    unindex(location);
+                    if (replaced.items == null) {
+                        locations.remove(location.name); // It was new
+                    } else {
+                        setItems(location, replaced.items);
+                        location.digest = replaced.digest;
+                        location.dirty = true; // The failed compaction may have half-dealt with it, so write it again next time
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    // A location as it was before replaceLocations swapped it (items == null: it didn't exist)
+    private static final class Replaced {
+        final Location location;
+        final LocationInventory items;
+        final LocationDigest digest;
+
+        Replaced(Location location, LocationInventory items, LocationDigest digest) {
+            this.location = location;
+            this.items = items;
+            this.digest = digest;
+        }
+    }
+
+    // --- APPLYING CHANGES ---
+
+    // Applies a change in memory and, if it actually changed something, writes it to the log
+    private boolean commit(InventoryMutation mutation) {
+        if (!apply(mutation)) return false;
+        try {
+            log.append(mutation);
+        } catch (IOException e) {
+            // Memory is still right, and the next compaction will capture it. Nothing more we can do here.
+            Log.e("InventoryRepo", "Failed to append to mutation log", e);
+        }
+        writer.markDirty();
+        return true;
+    }
+
+    /*
+        The one place the in-memory inventory actually changes.
+        Used both for live edits and for replaying the log on startup, so both always agree.
+        Returns false if the change didn't apply (missing location, bad position, name already taken, etc.).
+     */
+    private synchronized boolean apply(InventoryMutation m) {
+        LocationInventory items = items(m.location);
+        switch (m.type) {
+            case InventoryMutation.ADD_ITEM:
+                if (items == null) {
+                    items = newLocation(m.location);
+                }
+                items.addOrIncrement(new InventoryItem(m.name, m.quantity, m.barcode, 1));
+                break;
+
+            case InventoryMutation.ADD_ITEMS:
+                if (m.value <= 0) return false;
+                if (items == null) {
+                    items = newLocation(m.location);
+                }
+                items.addOrIncrement(new InventoryItem(m.name, m.quantity, m.barcode, m.value));
+                break;
+
+            case InventoryMutation.SET_QUANTITY: {
+                InventoryItem match = items != null ? items.findFirstByName(m.name) : null;
+                if (match == null) return false;
+                match.setStockQuantity(m.value);
+                break;
+            }
+
+            case InventoryMutation.SET_QUANTITY_BY_ID: {
+                InventoryItem match = items != null ? items.findById(m.itemId) : null;
+                if (match == null) return false;
+                match.setStockQuantity(m.value);
+                break;
+            }
+
+            case InventoryMutation.RENAME_ITEM:
+                if (!isValidPosition(items, m.position)) return false;
+                items.get(m.position).setName(m.name);
+                break;
+
+            case InventoryMutation.DELETE_ITEM:
+                if (!isValidPosition(items, m.position)) return false;
+                items.remove(m.position);
+                break;
+
+            case InventoryMutation.MOVE_ITEM: {
+                if (!isValidPosition(items, m.position) || m.location.equals(m.target)) return false;
+                InventoryItem moved = items.remove(m.position);
+                LocationInventory destination = items(m.target);
+                if (destination == null) {
+                    destination = newLocation(m.target);
+                }
+                destination.addOrIncrement(moved); // Gets a new id there if it doesn't merge into an existing line
+                markChanged(m.target);
+                break;
+            }
+
+            case InventoryMutation.ADD_LOCATION:
+                if (items != null) return false;
+                newLocation(m.location);
+                break;
+
+            case InventoryMutation.REMOVE_LOCATION:
+                if (items == null) return false;
+                unindex(locations.remove(m.location));
+                manifestDirty = true;
+                return true;
+
+            case InventoryMutation.RENAME_LOCATION: {
+                if (locations.containsKey(m.target)) return false;
+                Location renamed = locations.remove(m.location);
+                if (renamed == null) {
+                    newLocation(m.target);
+                } else {
+                    renamed.name = m.target;
+                    locations.put(m.target, renamed); // Same shard, same items, new name. Nothing to rewrite.
+                }
+                manifestDirty = true;
+                return true;
+            }
+
+            default:
+                Log.w("InventoryRepo", "Skipping unknown mutation type " + m.type);
+                return false;
+        }
+        markChanged(m.location);
+        return true;
+    }
+
+    // Copies the items too, not just the list, so later edits can't reach into the copy
+    private static List<InventoryItem> copyOf(List<InventoryItem> items) {
+        List<InventoryItem> copy = new ArrayList<>(items.size());
+        for (InventoryItem item : items) {
+            copy.add(item.copy());
+        }
+        return copy;
+    }
+
+    private static boolean isValidPosition(LocationInventory items, int position) {
+        return items != null && items.isValidPosition(position);
+    }
+
+    // --- SAVING & COMPACTION ---
+
+    /*
+        Pushes everything to disk right now and waits for it. Call this from onPause (or before anything
+        that needs the files to be up to date) so a swipe-away or a dead battery doesn't cost the last few edits.
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    // Runs on the write-behind thread once a burst of edits has settled down
+    private void persistPending() throws IOException {
+        log.sync();
+        if (log.size() >= COMPACTION_THRESHOLD_BYTES) {
+            compact();
+        }
+    }
+
+    /*
+        Folds everything so far into the shard files and trims the log down.
+        Order matters here, and it's what keeps a crash from double-counting anything:
+        1. Copy the changed locations and note the newest log record they include
+        2. Write a NEW shard file for each changed location (live shard files are never touched)
+        3. Build the new manifest and log a checkpoint saying "a manifest with this hash covers up to that record"
+        4. Swap the manifest into place (all-or-nothing). This is the moment the new shards become real.
+        5. Rewrite the log without the records the manifest now covers, and delete shard files nothing points at
+        Changes made while this runs just keep going into the log and survive step 5.
+        Untouched locations keep their shard files as they are, and a rename or removal only rewrites the manifest.
+        Only one compaction runs at a time (compactionLock), and it's always taken before the repository lock.
+     */
+    private boolean compact() {
+        synchronized (compactionLock) {
+            return compactLocked();
+        }
+    }
+
+    // true once the new manifest is in place (or there was nothing to do), false if the shards couldn't be written
+    private boolean compactLocked() {
+        List<String> names = new ArrayList<>();
+        List<Location> captured = new ArrayList<>();
+        List<Shard> shards = new ArrayList<>();
+        List<List<InventoryItem>> changed = new ArrayList<>(); // null where the existing shard is still good
+        List<Long> nextItemIds = new ArrayList<>();
+        long coveredSequence;
+        long logOffset;
+        long fileNumber;
+        synchronized (this) {
+            boolean anythingDirty = manifestDirty;
+            for (Location location : locations.values()) {
+                anythingDirty |= location.dirty;
+            }
+            if (!anythingDirty && log.size() == 0) return true;
+
+            for (Map.Entry<String, Location> entry : locations.entrySet()) {
+                Location location = entry.getValue();
+                names.add(entry.getKey());
+                captured.add(location);
+                shards.add(location.shard);
+                // Copied now (it can change under us). A dirty location is always loaded, since changing it loaded it.
+                boolean rewrite = location.dirty || location.shard == null;
+                LocationInventory items = rewrite ? items(entry.getKey()) : null;
+                changed.add(items != null ? copyOf(items.items()) : null);
+                nextItemIds.add(items != null ? items.nextId() : 0);
+                location.dirty = false;
+            }
+            manifestDirty = false;
+            coveredSequence = log.lastSequence();
+            logOffset = log.size();
+            fileNumber = nextFileNumber;
+        }
+
+        File directory = shardDirectory();
+        Map<Location, Shard> written = new LinkedHashMap<>();
+        ShardManifest manifest;
+        byte[] manifestHash;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+
+            List<ShardManifest.Entry> entries = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                Shard shard = shards.get(i);
+                List<InventoryItem> items = changed.get(i);
+                if (items != null) {
+                    String fileName = "shard-" + fileNumber++ + ".snap";
+                    byte[] hash = writeShard(new File(directory, fileName), names.get(i), items, nextItemIds.get(i));
+                    shard = new Shard(fileName, items.size(), hash);
+                    written.put(captured.get(i), shard);
+                }
+                entries.add(new ShardManifest.Entry(names.get(i), shard.fileName, shard.itemCount, shard.hash));
+            }
+
+            manifest = new ShardManifest(entries, fileNumber);
+            byte[] bytes = manifest.toBytes();
+            manifestHash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            log.appendCheckpoint(coveredSequence, manifestHash);
+            WriteBehindWriter.writeAtomically(new File(directory, MANIFEST_FILE_NAME), bytes);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.e("InventoryRepo", "Compaction failed, the log still has everything", e);
+            // Put the dirty marks back so the next attempt writes these locations again
+            synchronized (this) {
+                for (int i = 0; i < captured.size(); i++) {
+                    if (changed.get(i) != null) captured.get(i).dirty = true;
+                }
+                manifestDirty = true;
+            }
+            return false;
+        }
+
+        // The new manifest is in place, so the new shards are real from here on, whatever happens below
+        synchronized (this) {
+            nextFileNumber = fileNumber;
+            for (Map.Entry<Location, Shard> entry : written.entrySet()) {
+                entry.getKey().shard = entry.getValue();
+            }
+        }
+        try {
+            log.dropCoveredRecords(logOffset, coveredSequence, manifestHash);
+        } catch (IOException e) {
+            // Harmless: the checkpoint we just logged tells the next start to skip what the manifest already covers
+            Log.w("InventoryRepo", "Could not trim the mutation log, it'll be trimmed next time", e);
+        }
+        removeStrayShards(manifest);
+        return true;
+    }
+
+    /*
+        Deletes any file in the shard folder the manifest doesn't mention: shards replaced by a newer version,
+        shards of removed locations, and half-written files from a compaction that crashed.
+        Every location still in memory points at a file in the manifest, so nothing live goes away.
+     */
+    private void removeStrayShards(ShardManifest manifest) {
+        File[] files = shardDirectory().listFiles();
+        if (files == null) return;
+        Set<String> keep = new HashSet<>();
+        keep.add(MANIFEST_FILE_NAME);
+        for (ShardManifest.Entry entry : manifest.entries) {
+            keep.add(entry.fileName);
+        }
+        for (File file : files) {
+            if (!keep.contains(file.getName()) && !file.delete()) {
+                Log.w("InventoryRepo", "Could not delete stray shard " + file.getName());
+            }
+        }
+    }
+}
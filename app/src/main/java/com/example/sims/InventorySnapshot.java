@@ -0,0 +1,343 @@
+// --- INVENTORY SNAPSHOT (BINARY) ---
+// Pretty-printed JSON is great for humans and terrible for storage: most of the file is spaces and the words
+// "name", "quantity", "barcode" and "stockQuantity" repeated sixty thousand times.
+// This is the compact on-disk format the app actually keeps its inventory in. JSON is still used for import/export.
+//
+// Layout (all numbers big-endian, same as DataOutputStream writes them):
+//   [magic "SIMS"][version]
+//   [location block] [location block] ...        <- one per location: item count, next item id, then per item its id + 4 ints
+//   [directory]                                   <- where each location's block starts, plus the string dictionary
+//   [trailer: directory offset, location count, string count, magic]
+//
+// Every name, size and barcode is stored once in the string dictionary and items just point at it by number.
+// The directory lives at the end so the file can be written in one pass without going back to patch anything.
+// We read it through a memory-mapped file (FileChannel.map), so opening a location is a jump to its offset,
+// not a parse of everything in front of it.
+//
+// Version 2 added item ids (see LocationInventory). Version 1 files still open fine; their items just come back without ids.
+
+package com.example.sims;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class InventorySnapshot {
+
+    private static final int MAGIC = 0x53494D53; // "SIMS"
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 20;
+    private static final int V1_ITEM_SIZE = 16;        // name id, quantity id, barcode id, stock
+    private static final int ITEM_SIZE = 24;           // item id (long), then the same four as version 1
+    private static final int BLOCK_HEADER_SIZE = 12;   // item count, next item id (long)
+    private static final int LOCATION_ENTRY_SIZE = 16; // name id, block offset (long), item count
+    private static final int NO_STRING = -1;           // Stands in for null (e.g. a manual entry with no barcode)
+
+    private final ByteBuffer buffer;
+    private final int version;
+    private final LinkedHashMap<String, Integer> locationOffsets = new LinkedHashMap<>();
+    private final int stringOffsetsStart;
+    private final int stringDataStart;
+    private final String[] strings; // Decoded lazily, so we only pay for the strings we actually look at
+
+    private InventorySnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        int size = buffer.limit();
+        if (size < HEADER_SIZE + TRAILER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(size - 4) != MAGIC) {
+            throw new IOException("Not an inventory snapshot");
+        }
+        version = buffer.getInt(4);
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        int trailer = size - TRAILER_SIZE;
+        long directoryOffset = buffer.getLong(trailer);
+        int locationCount = buffer.getInt(trailer + 8);
+        int stringCount = buffer.getInt(trailer + 12);
+        if (directoryOffset < HEADER_SIZE || directoryOffset > trailer || locationCount < 0 || stringCount < 0) {
+            throw new IOException("Snapshot directory is corrupt");
+        }
+
+        int directory = (int) directoryOffset;
+        stringOffsetsStart = directory + locationCount * LOCATION_ENTRY_SIZE;
+        stringDataStart = stringOffsetsStart + (stringCount + 1) * 4;
+        if (stringDataStart > trailer) {
+            throw new IOException("Snapshot directory is corrupt");
+        }
+        strings = new String[stringCount];
+
+        for (int i = 0; i < locationCount; i++) {
+            int entry = directory + i * LOCATION_ENTRY_SIZE;
+            locationOffsets.put(string(buffer.getInt(entry)), (int) buffer.getLong(entry + 4));
+        }
+    }
+
+    /*
+        Maps the file into memory and reads just the directory at the end.
+        No items are decoded until someone asks for a location.
+     */
+    public static InventorySnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new InventorySnapshot(mapped);
+        }
+    }
+
+    // Location names in the order they were written
+    public List<String> locationNames() {
+        return new ArrayList<>(locationOffsets.keySet());
+    }
+
+    public boolean hasLocation(String location) {
+        return locationOffsets.containsKey(location);
+    }
+
+    // How many items a location has, straight from its block header (nothing decoded)
+    public int itemCount(String location) {
+        Integer offset = locationOffsets.get(location);
+        return offset != null ? buffer.getInt(offset) : 0;
+    }
+
+    // Jumps straight to one location's block and decodes just those items. Empty list if it isn't there.
+    public List<InventoryItem> readLocation(String location) {
+        Integer offset = locationOffsets.get(location);
+        List<InventoryItem> items = new ArrayList<>();
+        if (offset == null) return items;
+
+        int count = buffer.getInt(offset);
+        if (version == 1) {
+            int position = offset + 4;
+            for (int i = 0; i < count; i++) {
+                items.add(readItem(position));
+                position += V1_ITEM_SIZE;
+            }
+        } else {
+            int position = offset + BLOCK_HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                InventoryItem item = readItem(position + 8);
+                item.setId(buffer.getLong(position));
+                items.add(item);
+                position += ITEM_SIZE;
+            }
+        }
+        return items;
+    }
+
+    // The id the location's next new item should get (0 if the file predates ids)
+    public long nextItemId(String location) {
+        Integer offset = locationOffsets.get(location);
+        return offset != null && version > 1 ? buffer.getLong(offset + 4) : 0;
+    }
+
+    private InventoryItem readItem(int position) {
+        return new InventoryItem(
+                string(buffer.getInt(position)),
+                string(buffer.getInt(position + 4)),
+                string(buffer.getInt(position + 8)),
+                buffer.getInt(position + 12));
+    }
+
+    // Every location, fully decoded (exports and syncs need the lot)
+    public LinkedHashMap<String, List<InventoryItem>> readAll() {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        for (String location : locationOffsets.keySet()) {
+            inventory.put(location, readLocation(location));
+        }
+        return inventory;
+    }
+
+    // Looks up a dictionary string by its number, decoding it the first time it's needed
+    private String string(int id) {
+        if (id == NO_STRING) return null;
+        String cached = strings[id];
+        if (cached != null) return cached;
+
+        int start = buffer.getInt(stringOffsetsStart + id * 4);
+        int end = buffer.getInt(stringOffsetsStart + (id + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = buffer.duplicate(); // Our own cursor, so lookups from different threads don't collide
+        view.position(stringDataStart + start);
+        view.get(bytes);
+        cached = new String(bytes, StandardCharsets.UTF_8);
+        strings[id] = cached;
+        return cached;
+    }
+
+    // --- WRITING ---
+
+    // Writes a whole inventory in one go. Returns the SHA-256 of the file that ended up on disk.
+    public static byte[] write(File file, Map<String, List<InventoryItem>> inventory) throws IOException {
+        Writer writer = new Writer(file);
+        try {
+            for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+                writer.writeLocation(entry.getKey(), entry.getValue());
+            }
+            byte[] hash = writer.finish();
+            writer.commit();
+            return hash;
+        } finally {
+            writer.abort();
+        }
+    }
+
+    // SHA-256 of a snapshot file as it sits on disk (null if it can't be read)
+    public static byte[] hash(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                digest.update(chunk, 0, read);
+            }
+            return digest.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /*
+        Streams a snapshot out one location at a time, so you never need the whole inventory in memory to write it.
+        Everything goes to a temp file. finish() adds the directory and flushes it to disk, commit() renames it into place.
+        They're separate so the caller can log the new file's hash in between (the mutation log needs that).
+        If commit() never happens (crash, exception), the real file is untouched. Call abort() in a finally to tidy up.
+     */
+    public static class Writer {
+
+        private final File target;
+        private final File temp;
+        private final FileOutputStream fileOut;
+        private final MessageDigest digest;
+        private final DataOutputStream out;
+
+        private final HashMap<String, Integer> stringIds = new HashMap<>();
+        private final List<String> stringTable = new ArrayList<>();
+        private final List<int[]> locationEntries = new ArrayList<>(); // {nameId, offset, itemCount}
+        private boolean finished;
+
+        public Writer(File target) throws IOException {
+            this.target = target;
+            this.temp = new File(target.getPath() + ".tmp");
+            this.fileOut = new FileOutputStream(temp);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                fileOut.close();
+                throw new IOException(e);
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(fileOut, digest), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        // For items that don't track ids themselves (house counts, etc.): the next id is just one past the biggest
+        public void writeLocation(String location, List<InventoryItem> items) throws IOException {
+            long maxId = 0;
+            for (InventoryItem item : items) {
+                maxId = Math.max(maxId, item.getId());
+            }
+            writeLocation(location, items, maxId + 1);
+        }
+
+        public void writeLocation(String location, List<InventoryItem> items, long nextItemId) throws IOException {
+            locationEntries.add(new int[]{intern(location), out.size(), items.size()});
+            out.writeInt(items.size());
+            out.writeLong(nextItemId);
+            for (InventoryItem item : items) {
+                out.writeLong(item.getId());
+                out.writeInt(intern(item.getName()));
+                out.writeInt(intern(item.getQuantity()));
+                out.writeInt(intern(item.getBarcode()));
+                out.writeInt(item.getStockQuantity());
+            }
+        }
+
+        // Writes the directory and trailer and syncs the temp file. Returns the SHA-256 of exactly what was written.
+        public byte[] finish() throws IOException {
+            long directoryOffset = out.size();
+
+            for (int[] entry : locationEntries) {
+                out.writeInt(entry[0]);
+                out.writeLong(entry[1]);
+                out.writeInt(entry[2]);
+            }
+
+            // String offsets (one extra at the end so every string's length is "next offset - this offset")
+            List<byte[]> encoded = new ArrayList<>(stringTable.size());
+            int offset = 0;
+            for (String value : stringTable) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+
+            out.writeLong(directoryOffset);
+            out.writeInt(locationEntries.size());
+            out.writeInt(stringTable.size());
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            return digest.digest();
+        }
+
+        // Swaps the finished file into place (all-or-nothing, it's a rename)
+        public void commit() throws IOException {
+            finished = true;
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Could not replace " + target.getName());
+            }
+        }
+
+        // Throws away an unfinished write. Safe to call after commit() (it does nothing then).
+        public void abort() {
+            if (finished) return;
+            finished = true;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Already failing, nothing useful to add
+            }
+            temp.delete();
+        }
+
+        private int intern(String value) {
+            if (value == null) return NO_STRING;
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                id = stringTable.size();
+                stringIds.put(value, id);
+                stringTable.add(value);
+            }
+            return id;
+        }
+    }
+}
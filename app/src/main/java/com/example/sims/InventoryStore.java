@@ -0,0 +1,94 @@
+// --- INVENTORY STORE ---
+// Everything the app needs from "wherever the inventory lives", in one list.
+// Screens talk to this instead of to a particular file or database, so the storage underneath can be swapped
+// without touching a single activity. Think of it like a wall socket: the toaster doesn't care which power plant is on the other end.
+//
+// Two stores exist right now:
+//   InventoryRepository   - the file-backed one (binary snapshot + mutation log), the default
+//   SqliteInventoryStore  - an indexed SQLite database, for the big sites where even the snapshot gets hefty
+// InventoryStores.get(context) hands out whichever one is switched on.
+
+package com.example.sims;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public interface InventoryStore {
+
+    // --- Locations ---
+
+    List<String> getLocationNames();
+
+    boolean hasLocation(String location);
+
+    // false if it already exists
+    boolean addLocation(String location);
+
+    void removeLocation(String location);
+
+    // Moves the items under the new name (and to the end of the list). false if the new name is taken.
+    boolean renameLocation(String oldName, String newName);
+
+    // --- Items ---
+
+    // A copy of the location's items in display order (empty if there's no such location)
+    List<InventoryItem> getItems(String location);
+
+    // Single item by its position in the list, or null
+    InventoryItem getItem(String location, int position);
+
+    // The item on that shelf with this barcode, or null. This is the "do we already have one?" question.
+    InventoryItem findByBarcode(String location, String barcode);
+
+    // Every location that has this barcode, with the count on each shelf. Empty if we don't have it anywhere.
+    List<ItemLocation> whereIs(String barcode);
+
+    // Same barcode already on the shelf bumps its count, otherwise it's a new line with a count of 1
+    void addItem(String location, String name, String quantity, String barcode);
+
+    // Sets the count for the first item whose name matches (ignoring case). false if nothing matched.
+    boolean setStockQuantity(String location, String name, int stockQuantity);
+
+    // Sets the count for one exact item by its id (InventoryItem.getId()). false if it's not there any more.
+    boolean setStockQuantityById(String location, long itemId, int stockQuantity);
+
+    boolean renameItem(String location, int position, String newName);
+
+    boolean deleteItem(String location, int position);
+
+    // If the destination already has that barcode, the counts are combined
+    boolean moveItem(String fromLocation, int position, String toLocation);
+
+    // --- Bulk ---
+
+    // Applies every step in the batch and saves once. Returns how many steps actually applied.
+    int applyBatch(InventoryBatch batch);
+
+    // Fingerprint of a location's items (see LocationDigest), or null if there's no such location
+    LocationDigest locationDigest(String location);
+
+    // A deep copy of everything, safe to read on another thread
+    LinkedHashMap<String, List<InventoryItem>> snapshot();
+
+    // The whole inventory as JSON, in the same shape as the export file
+    JSONObject toJson() throws JSONException;
+
+    // Swaps the whole inventory for a new one. Returns false (with the old inventory still in place) if it couldn't be saved.
+    boolean replaceAll(Map<String, List<InventoryItem>> inventory);
+
+    /*
+        Swaps just these locations' items (new names go on the end, everything else is left alone), all in one go,
+        but only if every location in expected still has that digest (null = it shouldn't exist yet).
+        Returns false without touching anything if one of them moved. That's how a sync that ran in the background
+        commits without flattening whatever got scanned while it was working. On disk by the time it returns true;
+        if it can't be written, the old items stay and it returns false as well.
+     */
+    boolean replaceLocations(Map<String, LocationDigest> expected, Map<String, List<InventoryItem>> replacements);
+
+    // Gets anything pending onto disk before returning. Screens call this from onPause.
+    void flush();
+}
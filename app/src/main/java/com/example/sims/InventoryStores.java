@@ -0,0 +1,101 @@
+// --- INVENTORY STORES ---
+// Picks which InventoryStore the app uses. Every screen asks here instead of naming a store directly.
+//
+// New installs and small inventories use the file store. Only the move to SQLite is saved (in SharedPreferences), and it's for good.
+// Until then, every time the app opens, prepare() checks the item count again. The first time it's LARGE_INVENTORY_ITEMS or more,
+// the inventory is moved into SQLite, because that's where indexed point updates start to beat rewriting the snapshot.
+// So a stockroom that grows past it months after the upgrade still gets moved; it isn't stuck with whatever it was on install day.
+// The file store still does the old inventory_data.json conversion, so JSON -> snapshot -> SQLite is one unbroken path.
+// That move can take a while for a big inventory, so it only ever happens in prepare(), off the main thread.
+
+package com.example.sims;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+public class InventoryStores {
+
+    public static final String BACKEND_SQLITE = "sqlite";
+
+    private static final String PREFS_NAME = "sims_settings";
+    private static final String KEY_BACKEND = "inventory_backend"; // Only ever BACKEND_SQLITE (an earlier version also saved "file")
+
+    // Past this many items, a scan costs noticeably less as a database UPDATE than as part of a snapshot rewrite
+    private static final int LARGE_INVENTORY_ITEMS = 5000;
+
+    private static InventoryStore current;
+    private static boolean sizeChecked; // Whether prepare() has looked at the file store's size since the app started
+
+    // The store in use. Cheap: it never moves anything, that's prepare()'s job.
+    public static synchronized InventoryStore get(Context context) {
+        if (current == null) {
+            Context appContext = context.getApplicationContext();
+            if (BACKEND_SQLITE.equals(prefs(appContext).getString(KEY_BACKEND, null))) {
+                current = SqliteInventoryStore.get(appContext);
+            } else {
+                current = InventoryRepository.get(appContext);
+            }
+        }
+        return current;
+    }
+
+    // Whether prepare() has finished: the store's open and, if it was big enough, already moved into SQLite
+    public static synchronized boolean isReady() {
+        return current != null && sizeChecked;
+    }
+
+    /*
+        Opens the store on a background thread, then runs onReady on the main thread.
+        If it's still the file store and has grown big, that thread moves it into SQLite first,
+        which for thousands of items is no job for the UI thread.
+        If that's already been done since the app started, onReady runs straight away.
+     */
+    public static void prepare(Context context, Runnable onReady) {
+        if (isReady()) {
+            onReady.run();
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        Handler mainThread = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            moveIfOutgrown(appContext);
+            mainThread.post(onReady);
+        }, "InventoryOpen").start();
+    }
+
+    /*
+        Moves the file store into SQLite if it's reached LARGE_INVENTORY_ITEMS, and saves that so it stays there.
+        Holds the lock the whole time, so nobody gets the file store from get() and writes to it halfway through the copy.
+        If the copy fails it stays on the files, and the next open tries again.
+     */
+    private static synchronized void moveIfOutgrown(Context context) {
+        InventoryStore store = get(context);
+        sizeChecked = true;
+        if (!(store instanceof InventoryRepository)) return;
+
+        int items = ((InventoryRepository) store).getItemCount();
+        if (items < LARGE_INVENTORY_ITEMS) return;
+        Log.i("InventoryStores", "Inventory has " + items + " items, moving it into SQLite");
+        SqliteInventoryStore sqlite = SqliteInventoryStore.get(context);
+        if (!copy(store, sqlite)) return;
+        prefs(context).edit().putString(KEY_BACKEND, BACKEND_SQLITE).apply();
+        current = sqlite;
+    }
+
+    private static boolean copy(InventoryStore from, InventoryStore to) {
+        from.flush();
+        if (!to.replaceAll(from.snapshot())) {
+            Log.e("InventoryStores", "Could not copy the inventory into SQLite, staying on the file store");
+            return false;
+        }
+        to.flush();
+        return true;
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,29 @@
+// --- ITEM LOCATION ---
+// One answer to "where is this barcode?": which location has it, what it's called there, and how many are on that shelf.
+// A barcode can turn up in several places (a case in the Cold Room, a couple of cans in the Pantry), so lookups return a list of these.
+
+package com.example.sims;
+
+import java.util.List;
+
+public class ItemLocation {
+
+    public final String location;
+    public final String name;
+    public final int stockQuantity;
+
+    public ItemLocation(String location, String name, int stockQuantity) {
+        this.location = location;
+        this.name = name;
+        this.stockQuantity = stockQuantity;
+    }
+
+    // Adds up the stock across every location in the list
+    public static int totalStock(List<ItemLocation> locations) {
+        int total = 0;
+        for (ItemLocation location : locations) {
+            total += location.stockQuantity;
+        }
+        return total;
+    }
+}
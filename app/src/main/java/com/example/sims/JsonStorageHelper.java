@@ -5,23 +5,33 @@
 // If we didn’t have this guy doing the file wrangling, every read/write would be chaos and duplication hell.
 //
 // The format is JSON, and the file is local—no cloud, no server.
+// These days the app keeps its inventory in binary per-location shard files (see InventoryRepository), so JSON is mostly
+// the import/export format, plus the old inventory_data.json that gets converted once on first launch.
 
 package com.example.sims;
 
 import android.content.Context;
+import android.util.JsonWriter;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class JsonStorageHelper {
 
@@ -55,45 +65,115 @@ public class JsonStorageHelper {
     }
 
     /*
-        Opens and reads the JSON file from internal storage.
-        Returns it as a JSONObject so other parts of the app can work with it.
-        If the file is corrupted or missing, this quietly returns null instead of crashing.
+        Streams the whole inventory straight into InventoryItems, location by location.
+        Only the one-time conversion of the old inventory_data.json reads it now (see InventoryRepository).
+        Returns null if the file is missing or broken.
      */
-    public static JSONObject readJson(Context context) {
+    public static LinkedHashMap<String, List<InventoryItem>> readInventory(Context context) {
         File file = new File(context.getFilesDir(), FILE_NAME);
         try {
-            FileInputStream fis = new FileInputStream(file);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-            reader.close();
-            return new JSONObject(sb.toString());
-        } catch (IOException | JSONException e) {
+            return InventoryJsonReader.readInventory(new FileInputStream(file));
+        } catch (IOException | RuntimeException e) {
+            // JsonReader reports malformed files as IllegalStateException/NumberFormatException, so catch those too
             Log.e("JsonHelper", "Failed to read JSON", e);
             return null;
         }
     }
 
     /*
-        Saves the given JSONObject to our inventory file.
-        If it fails to pretty-print (with indentation), it will still save using plain .toString()
-        Think of this like hitting 'save' in a video game. We don't want to lose your progress.
+        The reverse of toJson: turns a JSONObject inventory (like one from a sync file) into items.
+        Uses the same optString/optInt defaults the rest of the app always has.
+     */
+    public static LinkedHashMap<String, List<InventoryItem>> fromJson(JSONObject json) throws JSONException {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        JSONArray names = json.names();
+        if (names == null) return inventory;
+        for (int i = 0; i < names.length(); i++) {
+            String location = names.getString(i);
+            if (location.equals(LocationDigest.EXPORT_KEY)) continue; // An old digest header, or the empty location an older phone made of one
+            List<InventoryItem> items = new ArrayList<>();
+            JSONArray array = json.optJSONArray(location);
+            if (array != null) {
+                for (int j = 0; j < array.length(); j++) {
+                    JSONObject item = array.getJSONObject(j);
+                    items.add(new InventoryItem(
+                            item.optString("name"),
+                            item.optString("quantity"),
+                            item.optString("barcode", null),
+                            item.optInt("stockQuantity", 1)));
+                }
+            }
+            inventory.put(location, items);
+        }
+        return inventory;
+    }
+
+    // Turns the item model back into the JSONObject shape the rest of the app (and the sync file) expects
+    public static JSONObject toJson(Map<String, List<InventoryItem>> inventory) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            JSONArray items = new JSONArray();
+            for (InventoryItem item : entry.getValue()) {
+                items.put(item.toJson());
+            }
+            json.put(entry.getKey(), items);
+        }
+        return json;
+    }
+
+    /*
+        Streams an inventory out as JSON one item at a time, without building a JSONObject or a giant String first.
+        Same shape and key order as toJson, just without the pretty-printing whitespace (it's for machines, not people).
+        Doesn't close the stream.
+        Nothing but locations at the top level: a phone on an older version reads every key there as a location.
+     */
+    public static void writeInventory(OutputStream out, Map<String, List<InventoryItem>> inventory) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.beginObject();
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            writer.name(entry.getKey());
+            writer.beginArray();
+            for (InventoryItem item : entry.getValue()) {
+                writer.beginObject();
+                writer.name("name").value(item.getName());
+                writer.name("quantity").value(item.getQuantity());
+                if (item.getBarcode() != null) {
+                    writer.name("barcode").value(item.getBarcode()); // Manual entries have no barcode key at all, like before
+                }
+                writer.name("stockQuantity").value(item.getStockQuantity());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /*
+        Renames the old inventory_data.json to inventory_data.json.bak once it's been converted to the binary snapshot.
+        Kept rather than deleted so there's always a way back if something about the conversion looks off.
      */
-    public static void writeJson(Context context, JSONObject jsonObject) {
+    public static void archiveLegacyFile(Context context) {
         File file = new File(context.getFilesDir(), FILE_NAME);
-        try {
-            FileOutputStream fos = new FileOutputStream(file);
-            try {
-                fos.write(jsonObject.toString(4).getBytes()); // Save with indentation
-            } catch (JSONException e) {
-                fos.write(jsonObject.toString().getBytes()); // Backup plan if formatting fails
+        if (file.exists() && !file.renameTo(new File(context.getFilesDir(), FILE_NAME + ".bak"))) {
+            Log.e("JsonHelper", "Could not archive " + FILE_NAME);
+        }
+    }
+
+    // SHA-256 of the inventory file exactly as it sits on disk (null if it can't be read)
+    public static byte[] snapshotHash(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
             }
-            fos.close();
-        } catch (IOException e) {
-            Log.e("JsonHelper", "Failed to write JSON", e);
+            return digest.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.e("JsonHelper", "Failed to hash JSON", e);
+            return null;
         }
     }
 
@@ -102,48 +182,17 @@ public class JsonStorageHelper {
         If the same barcode already exists at that location, it increases the quantity instead of duplicating.
         If it’s new, it builds the object with all the key info: name, quantity, barcode, and sets stockQuantity to 1.
         Think of this as the auto-restock logic that avoids accidentally showing "Coke" ten times in a row.
+        The actual work happens in the active InventoryStore, so this no longer re-reads the whole file per scan.
      */
     public static void addItemToStorage(Context context, String location, String name, String quantity, String barcode) {
-        try {
-            JSONObject json = readJson(context);
-            if (json == null) return;
-
-            JSONArray locationItems = json.optJSONArray(location);
-            if (locationItems == null) {
-                locationItems = new JSONArray();
-            }
-
-            boolean itemFound = false;
-
-            // Loop through everything already in that storage location
-            // This is like scanning all the items on a shelf to see if you've already got the one you're holding
-            for (int i = 0; i < locationItems.length(); i++) {
-                JSONObject item = locationItems.getJSONObject(i);
-                if (barcode != null && barcode.equals(item.optString("barcode"))) {
-                    // Matching barcode found. Add 1 to the count instead of creating a duplicate.
-                    int currentQty = item.optInt("stockQuantity", 1);
-                    item.put("stockQuantity", currentQty + 1);
-                    itemFound = true;
-                    break;
-                }
-            }
-
-            // If no match found, treat it as a brand new item
-            if (!itemFound) {
-                JSONObject newItem = new JSONObject();
-                newItem.put("name", name);
-                newItem.put("quantity", quantity);
-                newItem.put("barcode", barcode);
-                newItem.put("stockQuantity", 1);
-                locationItems.put(newItem);
-            }
-
-            // Save it all back to the file
-            json.put(location, locationItems);
-            writeJson(context, json);
+        InventoryStores.get(context).addItem(location, name, quantity, barcode);
+    }
 
-        } catch (JSONException e) {
-            Log.e("JsonHelper", "Error adding item to storage", e);
-        }
+    /*
+        The bulk version: a whole scanning session into one location, saved once at the end instead of once per beep.
+        Repeat scans of the same barcode are added up first, so each product is only written once.
+     */
+    public static void addItemsToStorage(Context context, String location, List<ScannedItem> scans) {
+        InventoryStores.get(context).applyBatch(new InventoryBatch().addScans(location, scans));
     }
-}
\ No newline at end of file
+}
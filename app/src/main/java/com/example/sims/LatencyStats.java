@@ -0,0 +1,65 @@
+// --- LATENCY STATS ---
+// How long the last few hundred requests took, so we can talk about the slow ones and not just the average.
+// An average of 150 ms hides the one scan in twenty that sits there for three seconds, and that's the one people remember.
+// So this keeps a rolling window of recent timings and answers "what's the 95th percentile right now?".
+// ResilientGet uses it twice: once to decide when a request is slow enough to be worth a second copy (hedging),
+// and once to report what a whole lookup (retries and all) really costs.
+
+package com.example.sims;
+
+import java.util.Arrays;
+
+public class LatencyStats {
+
+    private final long[] window;
+    private int next;      // Where the next sample goes
+    private int filled;    // How much of the window has samples in it
+    private long total;    // Every sample ever, not just the window
+    private long max;
+
+    public LatencyStats(int windowSize) {
+        window = new long[windowSize];
+    }
+
+    public synchronized void record(long millis) {
+        window[next] = millis;
+        next = (next + 1) % window.length;
+        if (filled < window.length) filled++;
+        total++;
+        if (millis > max) max = millis;
+    }
+
+    // How many samples are in the window right now (percentiles from a handful of samples don't mean much)
+    public synchronized int samples() {
+        return filled;
+    }
+
+    public synchronized long count() {
+        return total;
+    }
+
+    /*
+        The latency that percent% of the recent samples came in at or under (nearest rank), e.g. percentile(95).
+        0 if there's nothing recorded yet. Sorts a copy of the window, which is a few hundred longs, so it's cheap enough per request.
+     */
+    public long percentile(double percent) {
+        long[] sorted;
+        synchronized (this) {
+            if (filled == 0) return 0;
+            sorted = Arrays.copyOf(window, filled);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    @Override
+    public String toString() {
+        long worst;
+        synchronized (this) {
+            worst = max;
+        }
+        return "p50 " + percentile(50) + " ms, p95 " + percentile(95) + " ms, p99 " + percentile(99) + " ms, max " + worst
+                + " ms (" + count() + " samples)";
+    }
+}
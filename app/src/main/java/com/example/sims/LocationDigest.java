@@ -0,0 +1,172 @@
+// --- LOCATION DIGEST ---
+// A fingerprint of one location's items, so a sync can tell "nothing changed here" without comparing item by item.
+// It's one hash per location: two locations with the same digest have the same items, in the same order, with the same counts,
+// and a location with one item different is just "changed", the whole of it gets merged.
+// (Under the hood the items are hashed CHUNK_SIZE at a time and the location's digest is the SHA-256 of those chunk hashes.
+// The first version kept the chunk hashes too, but nothing ever compared them, so now only the one hash is kept.
+// It's still worked out the same way, so digests already on disk, and from phones on that version, still match.)
+//
+// Digests get stored next to the house count (housecount.digests), cached by the stores for the live inventory,
+// and sent in a phone-to-phone sync's hello, so the phone on the other end can skip locations it already has exactly.
+//
+// File layout: [magic "SIMD"][version][location count], then per location: [location name][item count][hash]
+// (version 1 files also had the chunk hashes before the hash; they're still read, the chunk hashes are skipped)
+
+package com.example.sims;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LocationDigest {
+
+    private static final int CHUNK_SIZE = 256; // Items per chunk hash
+    // Top-level key of the digest header one earlier version wrote at the top of a full export. Not a location, whatever its value.
+    public static final String EXPORT_KEY = "simsDigests";
+
+    private static final int MAGIC = 0x53494D44; // "SIMD"
+    private static final int VERSION = 2;
+    private static final int HASH_SIZE = 32;
+
+    public final int itemCount;
+    public final byte[] root; // "The" digest
+
+    private LocationDigest(int itemCount, byte[] root) {
+        this.itemCount = itemCount;
+        this.root = root;
+    }
+
+    // Hashes a location's items. Only what a person can see counts (name, size, barcode, count), not ids.
+    public static LocationDigest of(List<InventoryItem> items) {
+        MessageDigest root = sha256();
+        MessageDigest chunk = sha256();
+        updateInt(root, items.size());
+        for (int start = 0; start < items.size(); start += CHUNK_SIZE) {
+            int end = Math.min(start + CHUNK_SIZE, items.size());
+            for (int i = start; i < end; i++) {
+                InventoryItem item = items.get(i);
+                update(chunk, item.getName());
+                update(chunk, item.getQuantity());
+                update(chunk, item.getBarcode());
+                updateInt(chunk, item.getStockQuantity());
+            }
+            root.update(chunk.digest()); // digest() also resets it for the next chunk
+        }
+        return new LocationDigest(items.size(), root.digest());
+    }
+
+    public boolean sameAs(LocationDigest other) {
+        return other != null && itemCount == other.itemCount && Arrays.equals(root, other.root);
+    }
+
+    // The root as hex, for the export header
+    public String hex() {
+        StringBuilder hex = new StringBuilder(HASH_SIZE * 2);
+        for (byte b : root) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // As read back from a phone-to-phone hello
+    public static LocationDigest fromHex(int itemCount, String hex) {
+        if (hex == null || hex.length() != HASH_SIZE * 2) return null;
+        byte[] root = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) return null;
+            root[i] = (byte) ((high << 4) | low);
+        }
+        return new LocationDigest(itemCount, root);
+    }
+
+    // --- Sidecar file (kept next to the house count) ---
+
+    public static void writeFile(File file, Map<String, LocationDigest> digests) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(digests.size());
+            for (Map.Entry<String, LocationDigest> entry : digests.entrySet()) {
+                LocationDigest digest = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(digest.itemCount);
+                out.write(digest.root);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't replace " + file.getName());
+        }
+    }
+
+    // Empty map if the file isn't there or isn't readable (the caller just works the digests out again)
+    public static LinkedHashMap<String, LocationDigest> readFile(File file) {
+        LinkedHashMap<String, LocationDigest> digests = new LinkedHashMap<>();
+        if (!file.exists()) return digests;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) return digests;
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) return digests;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String location = in.readUTF();
+                int itemCount = in.readInt();
+                byte[] root = new byte[HASH_SIZE];
+                if (version == 1) {
+                    int chunks = in.readInt();
+                    for (int c = 0; c < chunks; c++) in.readFully(root); // The chunk hashes, not needed any more
+                }
+                in.readFully(root);
+                digests.put(location, new LocationDigest(itemCount, root));
+            }
+        } catch (IOException e) {
+            digests.clear();
+        }
+        return digests;
+    }
+
+    // --- Hashing helpers ---
+
+    // Flag byte first so "no barcode" and an empty barcode hash differently, then the length so fields can't run together
+    private static void update(MessageDigest sha, String value) {
+        if (value == null) {
+            sha.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        sha.update((byte) 1);
+        updateInt(sha, bytes.length);
+        sha.update(bytes);
+    }
+
+    private static void updateInt(MessageDigest sha, int value) {
+        sha.update((byte) (value >>> 24));
+        sha.update((byte) (value >>> 16));
+        sha.update((byte) (value >>> 8));
+        sha.update((byte) value);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Every Android has it
+        }
+    }
+}
@@ -0,0 +1,145 @@
+// --- LOCATION INVENTORY ---
+// One shelf's items, plus two lookup tables that are kept in step with every change:
+//   barcode -> item   so a scan can find "do we already have this?" without walking the whole shelf
+//   id      -> item   so a screen can point at one exact item even if two of them share a name
+// Before this, every scan looped over the whole list looking for a matching barcode. Fine for a fridge, painful for a warehouse.
+// Now scan-and-increment is a hash lookup no matter how big the shelf gets.
+//
+// The list itself still keeps the display order. Ids are handed out per location, counting up, and never reused.
+// A BarcodeListener hears when a barcode shows up on (or disappears from) this shelf; the repository uses that
+// to keep its "which locations have this barcode?" index up to date without ever rescanning a shelf.
+
+package com.example.sims;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+public class LocationInventory {
+
+    // Called when the first item with a barcode arrives on this shelf, and when the last one leaves
+    public interface BarcodeListener {
+        void barcodeAdded(String barcode);
+
+        void barcodeRemoved(String barcode);
+    }
+
+    private final List<InventoryItem> items = new ArrayList<>();
+    private final HashMap<String, InventoryItem> byBarcode = new HashMap<>(); // The FIRST item with each barcode, like the old loop found
+    private final HashMap<Long, InventoryItem> byId = new HashMap<>();
+    private long nextId = 1;
+    private BarcodeListener listener;
+
+    public LocationInventory() {
+    }
+
+    /*
+        Builds the shelf from saved items. Items that already have an id keep it (they came from a shard);
+        items without one (from JSON, or an older shard) get the next free id, in list order, so every load hands out the same ones.
+     */
+    public LocationInventory(List<InventoryItem> saved, long nextId) {
+        for (InventoryItem item : saved) {
+            if (item.getId() > 0) this.nextId = Math.max(this.nextId, item.getId() + 1);
+        }
+        this.nextId = Math.max(this.nextId, nextId);
+        for (InventoryItem item : saved) {
+            if (item.getId() <= 0) item.setId(this.nextId++);
+            items.add(item);
+            index(item);
+        }
+    }
+
+    // Starts reporting barcode changes, beginning with every barcode already on the shelf
+    public void setBarcodeListener(BarcodeListener listener) {
+        this.listener = listener;
+        if (listener != null) {
+            for (String barcode : byBarcode.keySet()) {
+                listener.barcodeAdded(barcode);
+            }
+        }
+    }
+
+    // Every distinct barcode on the shelf
+    public Set<String> barcodes() {
+        return byBarcode.keySet();
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public boolean isValidPosition(int position) {
+        return position >= 0 && position < items.size();
+    }
+
+    public InventoryItem get(int position) {
+        return items.get(position);
+    }
+
+    // The id the next new item will get. Saved with the shard so ids are never handed out twice.
+    public long nextId() {
+        return nextId;
+    }
+
+    public InventoryItem findByBarcode(String barcode) {
+        return barcode != null ? byBarcode.get(barcode) : null;
+    }
+
+    public InventoryItem findById(long id) {
+        return byId.get(id);
+    }
+
+    // Still a walk down the list (names aren't indexed), only used for old name-based log records
+    public InventoryItem findFirstByName(String name) {
+        for (InventoryItem item : items) {
+            if (item.getName() != null && item.getName().equalsIgnoreCase(name)) return item;
+        }
+        return null;
+    }
+
+    /*
+        Same barcode already on the shelf? Add to its count. Otherwise it goes on the end as a new line with a fresh id.
+        This is the hot path for scanning, and it's one hash lookup.
+     */
+    public void addOrIncrement(InventoryItem incoming) {
+        InventoryItem existing = findByBarcode(incoming.getBarcode());
+        if (existing != null) {
+            existing.setStockQuantity(existing.getStockQuantity() + incoming.getStockQuantity());
+            return;
+        }
+        incoming.setId(nextId++);
+        items.add(incoming);
+        index(incoming);
+    }
+
+    public InventoryItem remove(int position) {
+        InventoryItem removed = items.remove(position);
+        byId.remove(removed.getId());
+        String barcode = removed.getBarcode();
+        if (barcode != null && byBarcode.get(barcode) == removed) {
+            // Hand the barcode over to the next item that has it, if any (rare, but duplicates can come in through a sync)
+            byBarcode.remove(barcode);
+            for (InventoryItem item : items) {
+                if (barcode.equals(item.getBarcode())) {
+                    byBarcode.put(barcode, item);
+                    break;
+                }
+            }
+            if (listener != null && !byBarcode.containsKey(barcode)) listener.barcodeRemoved(barcode);
+        }
+        return removed;
+    }
+
+    // The items in order. This is the real list, so callers outside the repository should get a copy instead.
+    public List<InventoryItem> items() {
+        return items;
+    }
+
+    private void index(InventoryItem item) {
+        byId.put(item.getId(), item);
+        if (item.getBarcode() != null && byBarcode.putIfAbsent(item.getBarcode(), item) == null && listener != null) {
+            listener.barcodeAdded(item.getBarcode());
+        }
+    }
+}
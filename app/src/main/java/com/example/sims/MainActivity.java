@@ -7,9 +7,12 @@
 package com.example.sims;
 
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -20,8 +23,30 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.journeyapps.barcodescanner.ScanContract;
 import com.journeyapps.barcodescanner.ScanOptions;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class MainActivity extends AppCompatActivity {
 
+    // How long opening the inventory can take before we put up a "hang on" dialog (a normal launch is well under this)
+    private static final long INVENTORY_WAIT_DIALOG_MILLIS = 300;
+
+    // Barcodes we've sent off and haven't heard back about yet (only touched on the main thread)
+    private final Set<String> lookingUp = new HashSet<>();
+
+    // Pallet mode (see startPallet). pallet is null when we're not in it. Main thread only, like lookingUp.
+    private ProductPrefetcher pallet;
+    private boolean palletScanning; // The scanner's still up, so no dialog yet (its dismiss would cancel the pallet mid-scan)
+    private AlertDialog palletDialog;
+    private final Map<String, Integer> palletCounts = new LinkedHashMap<>();
+    private final Map<String, Product> palletProducts = new HashMap<>();
+    private final Set<String> palletMissing = new HashSet<>();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -54,9 +79,9 @@ public class MainActivity extends AppCompatActivity {
             }
         }
 
-        // Load the main layout and set up the initial JSON file if it’s the first time running
+        // Load the main layout and the inventory (the repository sets up the starter file if it’s the first time running)
         setContentView(R.layout.activity_main);
-        JsonStorageHelper.initializeIfMissing(getApplicationContext());
+        openInventory();
 
         // Hook up all the buttons from the layout to variables
         Button scanButton = findViewById(R.id.scanButton);
@@ -94,6 +119,10 @@ public class MainActivity extends AppCompatActivity {
             barcodeLauncher.launch(options);
         });
 
+        // Pallet mode: keeps the scanner coming back after every scan, and looks everything up in batches once you're done
+        Button palletButton = findViewById(R.id.palletButton);
+        palletButton.setOnClickListener(view -> startPallet());
+
         // Toggles the manual barcode input field on and off when user clicks "Manual Entry"
         manualEntryButton.setOnClickListener(view -> {
             if (manualBarcodeInput.getVisibility() == View.GONE) {
@@ -116,26 +145,75 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    // Leaving the screen (the scanner opening counts) is as good a moment as any to note in logcat how lookups have been going
+    @Override
+    protected void onPause() {
+        super.onPause();
+        OpenFoodApiHelper.logStats();
+    }
+
+    /*
+        Opens the inventory in the background. Usually that's quick, but the first launch after it passes a few
+        thousand items moves it into SQLite, so if it isn't ready in a moment a "hang on" dialog covers the screen until it is.
+        Once it's open, anything a crash left half-saved from a sync gets settled (also off the main thread, it may read every location).
+     */
+    private void openInventory() {
+        Handler mainThread = new Handler(Looper.getMainLooper());
+        AlertDialog[] waiting = new AlertDialog[1];
+        Runnable showWaiting = () -> waiting[0] = new AlertDialog.Builder(this)
+                .setTitle("Getting Your Inventory Ready")
+                .setMessage("Moving your inventory into its new home. This only happens once.")
+                .setCancelable(false)
+                .show();
+        mainThread.postDelayed(showWaiting, INVENTORY_WAIT_DIALOG_MILLIS);
+
+        InventoryStores.prepare(this, () -> {
+            mainThread.removeCallbacks(showWaiting);
+            if (waiting[0] != null && !isDestroyed()) waiting[0].dismiss();
+            new Thread(() -> SyncHelper.finishInterruptedSync(getApplicationContext()), "SyncRecovery").start();
+        });
+    }
+
     // This is the launcher that receives results from the barcode scanner
     // If you scan something, this is what catches the result and forwards it to handleBarcode()
     private final androidx.activity.result.ActivityResultLauncher<ScanOptions> barcodeLauncher =
             registerForActivityResult(new ScanContract(), result -> {
-                if (result.getContents() != null) {
+                if (pallet != null) {
+                    palletScanned(result.getContents());
+                } else if (result.getContents() != null) {
                     handleBarcode(result.getContents());
                 }
             });
 
     // This method takes a barcode and sends it to the OpenFoodFacts API helper
-    // If the product exists, we launch the results page and pass all the info along
+    // If the product exists, we launch the results page and pass the barcode along
+    // Before the network even gets a chance, we check our own shelves so you know right away if you already have some
+    // A barcode that's still being looked up only gets one results page, no matter how many times it's scanned meanwhile
     private void handleBarcode(String barcode) {
-        OpenFoodApiHelper.fetchProductInfo(barcode, new OpenFoodApiHelper.ProductCallback() {
+        if (!lookingUp.add(barcode)) {
+            Toast.makeText(this, "Still looking that one up...", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Where we already have it, looked up off the main thread: right after a cold start the file store may still be reading
+        // its shards in, and whereIs would sit there waiting for that. Still opening (or moving into SQLite)? Then no hint this time.
+        if (InventoryStores.isReady()) {
+            Context appContext = getApplicationContext();
+            new Thread(() -> {
+                List<ItemLocation> alreadyHave = InventoryStores.get(appContext).whereIs(barcode);
+                if (!alreadyHave.isEmpty()) {
+                    runOnUiThread(() -> Toast.makeText(appContext, describeStock(alreadyHave), Toast.LENGTH_LONG).show());
+                }
+            }, "WhereIs").start();
+        }
+
+        OpenFoodApiHelper.fetchProduct(this, barcode, new OpenFoodApiHelper.ProductDetailsCallback() {
             @Override
-            public void onProductReceived(String productName, String quantity, String imageUrl) {
+            public void onProduct(Product product) {
+                // Only the barcode travels: the results page (and details, later) pick the product up from the cache
                 runOnUiThread(() -> {
+                    lookingUp.remove(barcode);
                     Intent intent = new Intent(MainActivity.this, ResultActivity.class);
-                    intent.putExtra("productName", productName);
-                    intent.putExtra("quantity", quantity);
-                    intent.putExtra("imageUrl", imageUrl);
                     intent.putExtra("barcode", barcode);
                     startActivity(intent);
                 });
@@ -143,9 +221,173 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void onError(String errorMessage) {
-                runOnUiThread(() ->
-                        Toast.makeText(MainActivity.this, "Failed: " + errorMessage, Toast.LENGTH_SHORT).show());
+                runOnUiThread(() -> {
+                    lookingUp.remove(barcode);
+                    if (OpenFoodApiHelper.UNAVAILABLE.equals(errorMessage)) {
+                        offerManualEntry(barcode);
+                    } else {
+                        Toast.makeText(MainActivity.this, "Failed: " + errorMessage, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
+    }
+
+    // The API's down (the circuit breaker says so) and we've never seen this one, so rather than a dead end, offer to type it in
+    private void offerManualEntry(String barcode) {
+        new AlertDialog.Builder(this)
+                .setTitle("Can't Look That Up Right Now")
+                .setMessage(OpenFoodApiHelper.UNAVAILABLE + " Would you like to enter this item by hand?")
+                .setPositiveButton("Enter Manually", (dialog, which) -> {
+                    Intent intent = new Intent(MainActivity.this, ManualEntryActivity.class);
+                    intent.putExtra("barcode", barcode);
+                    startActivity(intent);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /*
+        Pallet mode. Everything scanned goes into a ProductPrefetcher, which looks it all up in a handful of batched requests
+        while you keep scanning. Backing out of the scanner ends it, and a dialog fills in the names as the answers arrive.
+        From that dialog the whole lot can go onto one shelf in a single save (addItemsToStorage).
+     */
+    private void startPallet() {
+        palletCounts.clear();
+        palletProducts.clear();
+        palletMissing.clear();
+        pallet = new ProductPrefetcher(this, new ProductPrefetcher.Listener() {
+            @Override
+            public void onBatch(List<Product> found, List<String> missing) {
+                for (Product product : found) palletProducts.put(product.barcode, product);
+                palletMissing.addAll(missing);
+                if (!palletScanning) showPalletSummary(false); // Otherwise it's all shown once they back out of the scanner
+            }
+
+            @Override
+            public void onIdle() {
+                if (!palletScanning) showPalletSummary(true);
             }
         });
+        palletScanning = true;
+        launchPalletScanner();
+    }
+
+    private void launchPalletScanner() {
+        ScanOptions options = new ScanOptions();
+        options.setPrompt("Scan everything on the pallet. Press back when you're done. (" + palletCounts.size() + " so far)");
+        options.setBeepEnabled(true);
+        options.setOrientationLocked(true);
+        barcodeLauncher.launch(options);
+    }
+
+    // null means they backed out of the scanner, so the scanning part is over
+    private void palletScanned(String barcode) {
+        if (barcode != null) {
+            Integer count = palletCounts.get(barcode);
+            palletCounts.put(barcode, count == null ? 1 : count + 1);
+            pallet.add(barcode);
+            launchPalletScanner();
+            return;
+        }
+
+        palletScanning = false;
+        if (palletCounts.isEmpty()) {
+            pallet.cancel();
+            pallet = null;
+            return;
+        }
+        pallet.flush();
+        showPalletSummary(pallet.outstanding() == 0);
+    }
+
+    // "3 x Coca-Cola (355 mL)" for each barcode, with the ones still on their way (or not found) marked as such
+    private void showPalletSummary(boolean done) {
+        if (pallet == null) return;
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : palletCounts.entrySet()) {
+            Product product = palletProducts.get(entry.getKey());
+            summary.append(entry.getValue()).append(" x ");
+            if (product != null) {
+                summary.append(product.name);
+                if (product.quantity != null) summary.append(" (").append(product.quantity).append(")");
+            } else if (palletMissing.contains(entry.getKey())) {
+                summary.append(entry.getKey()).append(" (not found)");
+            } else {
+                summary.append(entry.getKey()).append(" (looking up...)");
+            }
+            summary.append("\n");
+        }
+
+        String title = done ? "Pallet: " + palletCounts.size() + " products" : "Pallet: looking up " + pallet.outstanding() + "...";
+        if (palletDialog == null) {
+            palletDialog = new AlertDialog.Builder(this)
+                    .setTitle(title)
+                    .setMessage(summary.toString())
+                    .setPositiveButton("Done", null)
+                    .setNeutralButton("Add to Storage", (dialog, which) -> choosePalletLocation(palletScans()))
+                    .setOnDismissListener(dialog -> {
+                        // Anything not back yet is dropped (what did come back stays in the cache)
+                        pallet.cancel();
+                        pallet = null;
+                        palletDialog = null;
+                    })
+                    .show();
+        } else {
+            palletDialog.setTitle(title);
+            palletDialog.setMessage(summary.toString());
+        }
+    }
+
+    // Everything scanned on the pallet that we know the name of, one ScannedItem per beep (the batch folds repeats back together)
+    private List<ScannedItem> palletScans() {
+        List<ScannedItem> scans = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : palletCounts.entrySet()) {
+            Product product = palletProducts.get(entry.getKey());
+            if (product == null) continue;
+            String name = product.name != null ? product.name : "Unknown Product";
+            for (int i = 0; i < entry.getValue(); i++) {
+                scans.add(new ScannedItem(name, product.quantity, entry.getKey()));
+            }
+        }
+        return scans;
+    }
+
+    // Asks where the pallet's going, then saves all of it as one batch (one save, however many boxes were on it)
+    private void choosePalletLocation(List<ScannedItem> scans) {
+        int scanned = 0;
+        for (int count : palletCounts.values()) scanned += count;
+        int leftOut = scanned - scans.size();
+        if (scans.isEmpty()) {
+            Toast.makeText(this, "Nothing on the pallet was recognized yet.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        List<String> locations = new ArrayList<>(InventoryStores.get(this).getLocationNames());
+        if (locations.isEmpty()) {
+            Toast.makeText(this, "Add a storage location first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Put the pallet where?")
+                .setItems(locations.toArray(new CharSequence[0]), (dialog, which) -> {
+                    String location = locations.get(which);
+                    JsonStorageHelper.addItemsToStorage(this, location, scans);
+                    String message = "Added " + scans.size() + " items to " + location;
+                    if (leftOut > 0) message += " (" + leftOut + " not recognized, left out)";
+                    Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    // Turns the lookup into something like "Already have 3 in Pantry, 1 in Fridge"
+    private String describeStock(List<ItemLocation> locations) {
+        StringBuilder message = new StringBuilder("Already have ");
+        for (int i = 0; i < locations.size(); i++) {
+            if (i > 0) message.append(", ");
+            ItemLocation location = locations.get(i);
+            message.append(location.stockQuantity).append(" in ").append(location.location);
+        }
+        return message.toString();
     }
 }
\ No newline at end of file
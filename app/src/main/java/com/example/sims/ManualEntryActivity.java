@@ -16,10 +16,6 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 
 public class ManualEntryActivity extends AppCompatActivity {
@@ -35,22 +31,8 @@ public class ManualEntryActivity extends AppCompatActivity {
         Spinner locationSpinner = findViewById(R.id.manualLocationSpinner);
         Button saveButton = findViewById(R.id.saveManualItemButton);
 
-        // Pulling a list of existing storage locations from the inventory JSON
-        JSONObject json = JsonStorageHelper.readJson(this);
-        ArrayList<String> locationNames = new ArrayList<>();
-
-        if (json != null) {
-            JSONArray names = json.names();
-            if (names != null) {
-                for (int i = 0; i < names.length(); i++) {
-                    try {
-                        locationNames.add(names.getString(i));
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
+        // Pulling a list of existing storage locations from the shared inventory (already in memory, no file read)
+        ArrayList<String> locationNames = new ArrayList<>(InventoryStores.get(this).getLocationNames());
 
         // Populate the dropdown menu with location names
         ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, locationNames);
@@ -76,12 +58,21 @@ public class ManualEntryActivity extends AppCompatActivity {
                     return;
                 }
 
-                // null barcode tells the system this was a manual entry
-                JsonStorageHelper.addItemToStorage(ManualEntryActivity.this, location, name, quantity, null);
+                // null barcode tells the system this was a manual entry.
+                // We do get one when a scan couldn't be looked up, and keeping it means the next scan finds this item.
+                String barcode = getIntent().getStringExtra("barcode");
+                JsonStorageHelper.addItemToStorage(ManualEntryActivity.this, location, name, quantity, barcode);
 
                 Toast.makeText(ManualEntryActivity.this, "Item added to " + location, Toast.LENGTH_SHORT).show();
                 finish(); // Done here, back to where we came from
             }
         });
     }
+
+    // Make sure any edits made on this screen are actually on disk before we leave it
+    @Override
+    protected void onPause() {
+        super.onPause();
+        InventoryStores.get(this).flush();
+    }
 }
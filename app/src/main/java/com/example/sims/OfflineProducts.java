@@ -0,0 +1,684 @@
+// --- OFFLINE PRODUCTS ---
+// A product database that lives on the phone, for the cold room and the basement where there's no signal at all.
+// You import an Open Food Facts bulk export once (the full thing or a trimmed regional subset, JSONL or CSV, gzipped or not),
+// and from then on lookups get answered from it before the app even thinks about the network.
+//
+// Two files in the app's files folder:
+//   offline_products.dat   every product, one record after another, in the order they came in the export,
+//                          then the import's generation number (a random long) as the last 8 bytes
+//   offline_products.idx   a small header (including that generation and the .dat's length), then one 16-byte entry
+//                          per barcode (barcode as a number, where its record is), sorted by barcode.
+//                          This one is memory-mapped, so a lookup is a binary search over mapped pages
+//                          plus a single read of the record. No parsing, no database, microseconds once the pages are warm.
+//
+// The import has to cope with millions of rows without holding them, so it works like an old-school tape sort:
+//   1. stream the export, write each product's record to the .dat file, and jot down (barcode, where it went)
+//   2. every RUN_ENTRIES barcodes, sort that chunk and spill it to a temp "run" file
+//   3. merge all the runs into the sorted .idx (a barcode that shows up twice keeps its last record)
+// Memory stays at one chunk plus the sort's scratch copy of it (about 8 MB, allocated once per import)
+// and a small read buffer per run, however big the export is.
+// Both files are built under temp names and renamed into place at the end, so a half-finished import never gets used.
+// Two renames aren't one atomic step, though, so the index says which data file it goes with (its length and generation),
+// and reload() won't pair it with any other. A crash between the renames leaves the finished index under its temp name,
+// matching the new data file, so reload() moves it into place then.
+
+package com.example.sims;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+public class OfflineProducts {
+
+    private static final String INDEX_FILE = "offline_products.idx";
+    private static final String DATA_FILE = "offline_products.dat";
+    private static final int MAGIC = 0x53494d4f; // "SIMO"
+    private static final int VERSION = 2;        // 1 didn't say which data file it went with, so those get imported again
+    private static final int HEADER_BYTES = 40;  // magic, version, count, imported at, padding, data length, generation
+    private static final int DATA_LENGTH_AT = 24;
+    private static final int GENERATION_AT = 32;
+    private static final int ENTRY_BYTES = 16;   // barcode, then record offset (40 bits) and length (24 bits) packed together
+
+    static final int RUN_ENTRIES = 1 << 18;      // Barcodes sorted in memory at once during an import (2 longs each)
+    private static final int MAX_TEXT = 20000;   // writeUTF tops out at 64 KB, and no label needs more than this anyway
+
+    // What an import did
+    public static final class Result {
+        public final long rows;      // Products read from the export
+        public final long products;  // Distinct barcodes in the index
+        public final long skipped;   // Rows without a usable barcode, or that didn't parse
+        public final long millis;
+
+        Result(long rows, long products, long skipped, long millis) {
+            this.rows = rows;
+            this.products = products;
+            this.skipped = skipped;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + products + " products from " + rows + " rows (" + skipped + " skipped) in " + millis / 1000 + " s";
+        }
+    }
+
+    // The mapped index and the open data file, swapped as one when an import finishes
+    private static final class Tables {
+        final MappedByteBuffer index;
+        final FileChannel data;
+        final int count;
+        final long importedAt;
+
+        Tables(MappedByteBuffer index, FileChannel data, int count, long importedAt) {
+            this.index = index;
+            this.data = data;
+            this.count = count;
+            this.importedAt = importedAt;
+        }
+    }
+
+    private static OfflineProducts instance;
+    private static final Object importLock = new Object(); // Not the class lock: get() mustn't wait minutes behind an import
+
+    private final File directory;
+    private volatile Tables tables;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // The app only ever has the one from get(); a test opens its own over a temp folder
+    OfflineProducts(File directory) {
+        this.directory = directory;
+        reload();
+    }
+
+    public static synchronized OfflineProducts get(Context context) {
+        if (instance == null) {
+            instance = new OfflineProducts(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+
+    public boolean isEmpty() {
+        return tables == null;
+    }
+
+    public int size() {
+        Tables current = tables;
+        return current != null ? current.count : 0;
+    }
+
+    /*
+        The product for a barcode, or null if it isn't in the imported database (or nothing's been imported).
+        Safe from any thread; the mapped index is only ever read with absolute gets, and the record with a positional read.
+     */
+    public Product find(String barcode) {
+        Tables current = tables;
+        long key = key(barcode);
+        if (current == null || key < 0) return null;
+
+        int low = 0;
+        int high = current.count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long found = current.index.getLong(HEADER_BYTES + mid * ENTRY_BYTES);
+            if (found < key) {
+                low = mid + 1;
+            } else if (found > key) {
+                high = mid - 1;
+            } else {
+                long where = current.index.getLong(HEADER_BYTES + mid * ENTRY_BYTES + 8);
+                try {
+                    Product product = readRecord(current.data, where >>> 24, (int) (where & 0xffffff), barcode, current.importedAt);
+                    hits.incrementAndGet();
+                    return product;
+                } catch (IOException e) {
+                    Log.e("OfflineProducts", "Couldn't read the record for " + barcode, e);
+                    return null;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OfflineProducts: " + size() + " products, " + hits() + " hits, " + misses() + " misses";
+    }
+
+    /*
+        Maps whatever's on disk now (called at startup and after each import). A missing or broken index just means no offline database,
+        and so does an index and data file that came from different imports.
+        The exception is a crash between build()'s two renames: the new data file is in place, and its index is still sitting
+        under the temp name, finished. That one gets moved into place here.
+     */
+    private synchronized void reload() {
+        File indexFile = new File(directory, INDEX_FILE);
+        File dataFile = new File(directory, DATA_FILE);
+        File indexTmp = new File(directory, INDEX_FILE + ".tmp");
+        if (!dataFile.exists() || (!indexFile.exists() && !indexTmp.exists())) {
+            tables = null;
+            return;
+        }
+        Tables loaded = null;
+        try {
+            loaded = open(indexFile, dataFile);
+            if (loaded == null && indexTmp.exists()) {
+                loaded = open(indexTmp, dataFile);
+                if (loaded != null && indexTmp.renameTo(indexFile)) {
+                    Log.w("OfflineProducts", "Finished moving the last import's index into place");
+                } else if (loaded != null) {
+                    Log.e("OfflineProducts", "Couldn't move the last import's index into place, using it from the temp file");
+                }
+            }
+            if (loaded == null) Log.e("OfflineProducts", "Offline product index doesn't match its data file, ignoring both (import again)");
+        } catch (IOException e) {
+            Log.e("OfflineProducts", "Couldn't open the offline product index", e);
+        }
+        Tables old = tables;
+        tables = loaded;
+        if (old != null) {
+            try {
+                old.data.close(); // A lookup racing this gets an IOException and falls through to the network
+            } catch (IOException ignored) {
+                // It was only open for reading
+            }
+        }
+    }
+
+    // An index and the data file it was built with, or null if the index isn't one of ours or the data file is from another import
+    private static Tables open(File indexFile, File dataFile) throws IOException {
+        if (!indexFile.exists()) return null;
+        MappedByteBuffer mapped;
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+            // The mapping stays valid after the file is closed (and after the file is replaced by the next import)
+            mapped = index.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, index.length());
+        }
+        if (mapped.capacity() < HEADER_BYTES || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) return null;
+        int count = mapped.getInt(8);
+        if (mapped.capacity() < HEADER_BYTES + (long) count * ENTRY_BYTES) return null;
+
+        FileChannel data = new RandomAccessFile(dataFile, "r").getChannel();
+        boolean matched = false;
+        try {
+            long length = mapped.getLong(DATA_LENGTH_AT);
+            ByteBuffer generation = ByteBuffer.allocate(8);
+            if (length >= 8 && data.size() == length) {
+                while (generation.hasRemaining() && data.read(generation, length - 8 + generation.position()) >= 0) {
+                    // Reading the last 8 bytes
+                }
+            }
+            if (generation.hasRemaining() || generation.getLong(0) != mapped.getLong(GENERATION_AT)) return null;
+            Tables tables = new Tables(mapped, data, count, mapped.getLong(12));
+            matched = true;
+            return tables;
+        } finally {
+            if (!matched) data.close(); // Not ours, or the read failed: either way nobody else is going to close it
+        }
+    }
+
+    /*
+        Builds the offline database from an export and switches lookups over to it.
+        Takes a while for a big export (it's reading millions of rows), so never on the main thread.
+        Only one import runs at a time; a second caller just waits its turn.
+     */
+    public static Result importFrom(Context context, InputStream export) throws IOException {
+        synchronized (importLock) {
+            OfflineProducts products = get(context);
+            File workDir = new File(context.getApplicationContext().getCacheDir(), "offline_import");
+            Result result = build(export, products.directory, workDir, System.currentTimeMillis());
+            products.reload();
+            return result;
+        }
+    }
+
+    // The import itself, kept apart from Context so a test can point it at temp folders
+    static Result build(InputStream export, File directory, File workDir, long importedAt) throws IOException {
+        return build(export, directory, workDir, importedAt, RUN_ENTRIES);
+    }
+
+    // runEntries is how many barcodes get sorted in memory at once; a test makes it tiny to get lots of runs to merge
+    static Result build(InputStream export, File directory, File workDir, long importedAt, int runEntries) throws IOException {
+        long start = System.currentTimeMillis();
+        deleteRecursively(workDir);
+        if (!workDir.mkdirs()) throw new IOException("Couldn't create " + workDir);
+
+        File dataTmp = new File(directory, DATA_FILE + ".tmp");
+        File indexTmp = new File(directory, INDEX_FILE + ".tmp");
+        List<File> runs = new ArrayList<>();
+        long[] keys = new long[runEntries];
+        long[] places = new long[runEntries];
+        long[] keyScratch = new long[runEntries];   // The merge sort's other half, reused by every run
+        long[] placeScratch = new long[runEntries];
+        long[] rows = new long[2]; // read, skipped
+        long generation = ThreadLocalRandom.current().nextLong(); // Ties this import's index to this import's data file
+        long dataLength;
+
+        try {
+            // 1 and 2: records out to the data file, sorted runs of (barcode, place) out to the work folder
+            FileOutputStream dataFile = new FileOutputStream(dataTmp);
+            try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(dataFile, 1 << 16))) {
+                int[] filled = new int[1];
+                long[] offset = new long[1];
+                ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+                DataOutputStream recordOut = new DataOutputStream(record);
+
+                readExport(export, product -> {
+                    rows[0]++;
+                    long key = product != null ? key(product.barcode) : -1;
+                    if (key < 0) {
+                        rows[1]++;
+                        return;
+                    }
+                    record.reset();
+                    writeRecord(recordOut, product);
+                    data.write(record.toByteArray(), 0, record.size());
+                    keys[filled[0]] = key;
+                    places[filled[0]] = offset[0] << 24 | record.size();
+                    offset[0] += record.size();
+                    if (++filled[0] == runEntries) {
+                        runs.add(spillRun(workDir, runs.size(), keys, places, keyScratch, placeScratch, filled[0]));
+                        filled[0] = 0;
+                    }
+                    if (rows[0] % 100000 == 0) Log.i("OfflineProducts", "Imported " + rows[0] + " rows so far");
+                });
+                if (filled[0] > 0) runs.add(spillRun(workDir, runs.size(), keys, places, keyScratch, placeScratch, filled[0]));
+                data.writeLong(generation);
+                dataLength = offset[0] + 8;
+                data.flush();
+                dataFile.getFD().sync(); // On disk before the rename, or a power cut could leave a renamed file with nothing in it
+            }
+
+            // 3: merge the runs into the index
+            int count = mergeRuns(runs, indexTmp, importedAt, dataLength, generation);
+
+            // Data first, then the index that points into it. Until the index moves, the old index stays in use
+            // (and already reads the old data file, which it has open; on Linux the rename doesn't touch open files).
+            // A crash in between is sorted out by the next reload(), see the top of the file.
+            File dataFinal = new File(directory, DATA_FILE);
+            File indexFinal = new File(directory, INDEX_FILE);
+            if (!dataTmp.renameTo(dataFinal) || !indexTmp.renameTo(indexFinal)) {
+                throw new IOException("Couldn't move the new offline product database into place");
+            }
+            return new Result(rows[0], count, rows[1], System.currentTimeMillis() - start);
+        } finally {
+            dataTmp.delete();
+            indexTmp.delete();
+            deleteRecursively(workDir);
+        }
+    }
+
+    /*
+        Barcodes as numbers: digits only, leading zeros dropped (so a UPC and its EAN spelling are the same key).
+        -1 for anything else (QR codes, blanks, typos), which just never matches.
+     */
+    static long key(String barcode) {
+        if (barcode == null) return -1;
+        String digits = OpenFoodApiHelper.barcodeKey(barcode.trim());
+        if (digits.isEmpty() || digits.length() > 18) return -1;
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') return -1;
+        }
+        return Long.parseLong(digits);
+    }
+
+    // --- Reading the export ---
+
+    interface ProductSink {
+        void accept(Product product) throws IOException; // null for a row that didn't parse
+    }
+
+    /*
+        Works out what kind of export it is and feeds every product to the sink.
+        gzip is spotted by its magic bytes, JSONL by the first line starting with '{', anything else is CSV
+        (tab-separated like the official dump, or comma-separated like a spreadsheet would save it).
+     */
+    static void readExport(InputStream export, ProductSink sink) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(export, 1 << 16);
+        in.mark(2);
+        boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        InputStream plain = gzipped ? new GZIPInputStream(in, 1 << 16) : in;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(plain, StandardCharsets.UTF_8), 1 << 16)) {
+            String first = reader.readLine();
+            while (first != null && first.trim().isEmpty()) first = reader.readLine();
+            if (first == null) return;
+            if (first.trim().startsWith("{")) {
+                readJsonLines(first, reader, sink);
+            } else {
+                readCsv(first, reader, sink);
+            }
+        }
+    }
+
+    // One product object per line, same shape as the API's product (ProductJsonReader already knows how to read those)
+    private static void readJsonLines(String first, BufferedReader lines, ProductSink sink) throws IOException {
+        for (String line = first; line != null; line = lines.readLine()) {
+            if (line.trim().isEmpty()) continue;
+            Product product;
+            try (JsonReader reader = new JsonReader(new StringReader(line))) {
+                product = ProductJsonReader.readProduct(reader, null, 0);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                product = null; // One bad line shouldn't sink a million good ones
+            }
+            sink.accept(product);
+        }
+    }
+
+    // The columns we use, by their names in the Open Food Facts CSV header. Anything else in the file is ignored.
+    private static final String[] CSV_COLUMNS = {"code", "product_name", "product_name_en", "quantity", "image_url", "brands",
+            "categories", "ingredients_text", "allergens", "nutriscore_grade", "nova_group", "origins", "stores",
+            "energy-kcal_100g", "fat_100g", "sugars_100g", "salt_100g"};
+
+    private static void readCsv(String header, BufferedReader lines, ProductSink sink) throws IOException {
+        char separator = header.indexOf('\t') >= 0 ? '\t' : ',';
+        List<String> names = splitRow(header, lines, separator);
+        Map<String, Integer> at = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) at.put(names.get(i).trim(), i);
+        if (!at.containsKey("code")) throw new IOException("That doesn't look like an Open Food Facts export (no \"code\" column)");
+
+        int[] column = new int[CSV_COLUMNS.length];
+        for (int i = 0; i < CSV_COLUMNS.length; i++) {
+            Integer index = at.get(CSV_COLUMNS[i]);
+            column[i] = index != null ? index : -1;
+        }
+
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            if (line.isEmpty()) continue;
+            List<String> row = splitRow(line, lines, separator);
+            String[] value = new String[CSV_COLUMNS.length];
+            for (int i = 0; i < value.length; i++) {
+                String cell = column[i] >= 0 && column[i] < row.size() ? row.get(column[i]).trim() : "";
+                value[i] = cell.isEmpty() ? null : cell;
+            }
+            boolean hasNutrition = value[13] != null || value[14] != null || value[15] != null || value[16] != null;
+            sink.accept(new Product(value[0], Product.bestName(value[2], value[1]), value[3], value[4], value[5], value[6],
+                    value[7], value[8], value[9], value[10], value[11], value[12],
+                    hasNutrition, value[13], value[14], value[15], value[16], 0));
+        }
+    }
+
+    /*
+        Splits one row. Quoted cells can hold separators, doubled quotes, and even line breaks
+        (in which case the row carries on into the next line, so we read more).
+        The official tab-separated dump doesn't quote anything, and a lone quote in there is just a quote.
+     */
+    static List<String> splitRow(String line, BufferedReader more, char separator) throws IOException {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        boolean allowQuotes = separator != '\t';
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) break;
+                String next = more.readLine();
+                if (next == null) break; // Unclosed quote at the end of the file: take what we've got
+                cell.append('\n');
+                line = next;
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c == '"') {
+                    if (i < line.length() && line.charAt(i) == '"') {
+                        cell.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    cell.append(c);
+                }
+            } else if (c == separator) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else if (c == '"' && allowQuotes && cell.length() == 0) {
+                quoted = true;
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    // --- Records ---
+
+    private static void writeRecord(DataOutputStream out, Product product) throws IOException {
+        writeText(out, product.name);
+        writeText(out, product.quantity);
+        writeText(out, product.imageUrl);
+        writeText(out, product.brand);
+        writeText(out, product.categories);
+        writeText(out, product.ingredients);
+        writeText(out, product.allergens);
+        writeText(out, product.nutriscore);
+        writeText(out, product.novaGroup);
+        writeText(out, product.origin);
+        writeText(out, product.stores);
+        out.writeBoolean(product.hasNutrition);
+        writeText(out, product.energyKcal100g);
+        writeText(out, product.fat100g);
+        writeText(out, product.sugars100g);
+        writeText(out, product.salt100g);
+    }
+
+    private static Product readRecord(FileChannel data, long offset, int length, String barcode, long importedAt) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) throw new EOFException("Offline product record cut short");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+        String name = readText(in);
+        String quantity = readText(in);
+        String imageUrl = readText(in);
+        String brand = readText(in);
+        String categories = readText(in);
+        String ingredients = readText(in);
+        String allergens = readText(in);
+        String nutriscore = readText(in);
+        String novaGroup = readText(in);
+        String origin = readText(in);
+        String stores = readText(in);
+        boolean hasNutrition = in.readBoolean();
+        return new Product(barcode, name, quantity, imageUrl, brand, categories, ingredients, allergens, nutriscore, novaGroup,
+                origin, stores, hasNutrition, readText(in), readText(in), readText(in), readText(in), importedAt);
+    }
+
+    // A presence flag, then the text (cut down to what writeUTF can hold)
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        out.writeBoolean(text != null);
+        if (text != null) out.writeUTF(text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) : text);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // --- Sorting ---
+
+    // Sorts one chunk by barcode and writes it out. The sort is stable, so repeats of a barcode stay in the order they came.
+    private static File spillRun(File workDir, int number, long[] keys, long[] places,
+                                 long[] keyScratch, long[] placeScratch, int count) throws IOException {
+        sortByKey(keys, places, keyScratch, placeScratch, count);
+        File run = new File(workDir, "run" + number);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (int i = 0; i < count; i++) {
+                out.writeLong(keys[i]);
+                out.writeLong(places[i]);
+            }
+        }
+        return run;
+    }
+
+    // Bottom-up merge sort on the two arrays together (stable, no worst case). The scratch arrays need room for count too.
+    static void sortByKey(long[] keys, long[] places, long[] keyScratch, long[] placeScratch, int count) {
+        long[] fromKeys = keys, fromPlaces = places, toKeys = keyScratch, toPlaces = placeScratch;
+        for (int width = 1; width < count; width *= 2) {
+            for (int low = 0; low < count; low += 2 * width) {
+                int mid = Math.min(low + width, count);
+                int high = Math.min(low + 2 * width, count);
+                int a = low, b = mid, out = low;
+                while (a < mid && b < high) {
+                    if (fromKeys[b] < fromKeys[a]) {
+                        toKeys[out] = fromKeys[b];
+                        toPlaces[out++] = fromPlaces[b++];
+                    } else {
+                        toKeys[out] = fromKeys[a];
+                        toPlaces[out++] = fromPlaces[a++];
+                    }
+                }
+                while (a < mid) {
+                    toKeys[out] = fromKeys[a];
+                    toPlaces[out++] = fromPlaces[a++];
+                }
+                while (b < high) {
+                    toKeys[out] = fromKeys[b];
+                    toPlaces[out++] = fromPlaces[b++];
+                }
+            }
+            long[] swapKeys = fromKeys, swapPlaces = fromPlaces;
+            fromKeys = toKeys;
+            fromPlaces = toPlaces;
+            toKeys = swapKeys;
+            toPlaces = swapPlaces;
+        }
+        if (fromKeys != keys) {
+            System.arraycopy(fromKeys, 0, keys, 0, count);
+            System.arraycopy(fromPlaces, 0, places, 0, count);
+        }
+    }
+
+    // One sorted run being read back during the merge
+    private static final class Run {
+        final DataInputStream in;
+        final int order; // Later runs hold later rows, so on a tie the later run wins
+        long key;
+        long place;
+
+        Run(File file, int order) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 14));
+            this.order = order;
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+                place = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+    }
+
+    // Merges every run into the index file. Returns how many distinct barcodes it holds.
+    private static int mergeRuns(List<File> runFiles, File indexFile, long importedAt, long dataLength, long generation) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runFiles.size()),
+                (x, y) -> x.key != y.key ? Long.compare(x.key, y.key) : Integer.compare(x.order, y.order));
+        List<Run> opened = new ArrayList<>();
+        int count = 0;
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            index.setLength(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index.getFD()), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0); // Count, filled in at the end
+            out.writeLong(importedAt);
+            out.writeInt(0); // Padding, keeps the entries 8-byte aligned
+            out.writeLong(dataLength);
+            out.writeLong(generation);
+
+            for (int i = 0; i < runFiles.size(); i++) {
+                Run run = new Run(runFiles.get(i), i);
+                opened.add(run);
+                if (run.advance()) queue.add(run);
+            }
+
+            // Hold each barcode back until we've seen the last of its repeats, then write the survivor
+            boolean pending = false;
+            long pendingKey = 0;
+            long pendingPlace = 0;
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                if (pending && run.key != pendingKey) {
+                    out.writeLong(pendingKey);
+                    out.writeLong(pendingPlace);
+                    count++;
+                }
+                pending = true;
+                pendingKey = run.key;
+                pendingPlace = run.place;
+                if (run.advance()) queue.add(run);
+            }
+            if (pending) {
+                out.writeLong(pendingKey);
+                out.writeLong(pendingPlace);
+                count++;
+            }
+            out.flush();
+            index.seek(8);
+            index.writeInt(count);
+            index.getFD().sync();
+        } finally {
+            for (Run run : opened) {
+                try {
+                    run.in.close();
+                } catch (IOException ignored) {
+                    // Just a temp file
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -1,102 +1,235 @@
 // --- OPEN FOOD API HELPER ---
 // This class is our designated scout—it runs off to the Open Food Facts API with a barcode in hand,
-// and comes back (hopefully) with the product’s name, size, and image URL.
+// and comes back (hopefully) with a Product: name, size, image URL and everything the details screen shows.
+// It's the only way the app looks products up, so the scan, the results page and the details screen all share one answer.
 // Instead of making the UI wait around like a bored teenager, it uses a callback to say,
 // “Hey, the info’s ready!” when the data comes back.
+// Every call goes out over the app's one shared client (HttpClients), so back-to-back scans reuse the same connection.
+// And before any of that, it checks ProductCache: something we've scanned before comes back instantly, even offline.
+// Then the imported offline database (OfflineProducts), for the cold rooms and basements where there's no signal to go out on.
+// What does go out goes through ResilientGet, which retries, hedges slow requests, and stops trying for a bit when the API's down.
 
 package com.example.sims;
 
+import android.content.Context;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 public class OpenFoodApiHelper {
 
-    // Interface that lets us say “when the product is ready, here’s what to do with it”
-    public interface ProductCallback {
-        void onProductReceived(String name, String quantity, String imageUrl);
-        void onError(String error);
+    public static final String DEFAULT_BASE_URL = "https://world.openfoodfacts.org/";
+
+    // Lookups and searches both use v2, which has everything both the scan and details screens need
+    static final int API_VERSION = 2;
+
+    // Where product lookups go. Only ever changed to point the app at a local test server.
+    private static volatile String baseUrl = DEFAULT_BASE_URL;
+
+    public static void setBaseUrl(String url) {
+        baseUrl = url.endsWith("/") ? url : url + "/";
+        ProductPrefetcher.serverChanged();
     }
 
     /*
-        This function builds and sends a request to the Open Food Facts API
-        using the provided barcode. If successful, it extracts useful info and
-        passes it to the callback so the UI can display it. Think of it like a courier
-        delivering product details to the front-end.
+        Just the fields Product keeps (ProductJsonReader skips anything else anyway).
+        Without this a product comes back with every nutrient, every image size and every translation, often hundreds of KB,
+        when all we show is a name, a picture and a label's worth of details.
      */
-    public static void fetchProductInfo(String barcode, ProductCallback callback) {
-        OkHttpClient client = new OkHttpClient();
-        String url = "https://world.openfoodfacts.org/api/v0/product/" + barcode + ".json";
+    static final String PRODUCT_FIELDS = "code,product_name_complete,product_name_with_quantity,product_name_en,product_name,"
+            + "quantity,image_url,brands,categories,ingredients_text,allergens,nutriscore_grade,nova_group,origins,stores,nutriments";
 
-        Request request = new Request.Builder().url(url).build();
+    // The product endpoint for a barcode
+    public static String productUrl(String barcode) {
+        return baseUrl + "api/v" + API_VERSION + "/product/" + barcode + ".json?fields=" + PRODUCT_FIELDS;
+    }
 
-        client.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                callback.onError("API call failed: " + e.getMessage());
+    /*
+        The search endpoint, asked for several barcodes at once (the prefetch queue uses this to look up a whole pallet in a few requests).
+        Each code is encoded on its own, since the commas between them have to stay commas.
+     */
+    public static String searchUrl(List<String> barcodes) {
+        StringBuilder codes = new StringBuilder();
+        for (String barcode : barcodes) {
+            if (codes.length() > 0) codes.append(',');
+            try {
+                codes.append(URLEncoder.encode(barcode, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e); // UTF-8 is always there
             }
+        }
+        return baseUrl + "api/v" + API_VERSION + "/search?code=" + codes + "&page_size=" + barcodes.size() + "&fields=" + PRODUCT_FIELDS;
+    }
 
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                if (!response.isSuccessful()) {
-                    callback.onError("Unexpected code: " + response);
-                    return;
-                }
+    static final String NOT_FOUND = "Product not found in OpenFoodFacts.";
 
-                try {
-                    JSONObject json = new JSONObject(response.body().string());
+    // What callers hear when the circuit breaker is open and there was no cached copy to fall back on
+    public static final String UNAVAILABLE = "Can't reach OpenFoodFacts right now.";
 
-                    if (json.getInt("status") == 1) {
-                        JSONObject product = json.getJSONObject("product");
+    private static final PendingLookups pending = new PendingLookups();
 
-                        /*
-                            We want to get the best possible product name,
-                            so we check multiple fields in descending order of clarity.
-                            This is like checking the fancy label, then the side panel,
-                            then the barcode area—until we get something useful.
-                            (Because if we leave it to the system, you’ll end up with a blank field for Joe Louis cakes.)
-                         */
-                        String name = product.optString("product_name_complete", "").trim();
+    // Five failed requests in a row and we stop asking for 30 seconds (shared with the prefetcher, it's the same server)
+    private static final ResilientGet requests = new ResilientGet(new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(30)));
 
-                        if (name.isEmpty()) {
-                            name = product.optString("product_name_with_quantity", "").trim();
-                        }
+    // ResilientGet blocks through its backoff, so lookups get threads of their own rather than OkHttp's callback threads
+    private static final ExecutorService lookups = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ProductLookup");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-                        if (name.isEmpty()) {
-                            name = product.optString("product_name_en", "").trim();
-                        }
+    // Disk cache reads happen here rather than on the main thread (one at a time is plenty, each is a single indexed lookup)
+    private static final ExecutorService cacheReader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ProductCache");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-                        if (name.isEmpty()) {
-                            name = product.optString("product_name", "").trim();
-                        }
+    // Interface that lets us say “when the product is ready, here’s what to do with it”
+    public interface ProductDetailsCallback {
+        void onProduct(Product product);
+        void onError(String error);
 
-                        if (name.isEmpty()) {
-                            name = "Unknown Product";
-                        }
+        // We answered with a stale copy, and the background refresh just brought back a newer one. Screens still open can redraw.
+        default void onRefreshed(Product product) {
+        }
+    }
 
-                        // Grab size info and image link
-                        String quantity = product.optString("quantity", "Unknown Size");
-                        String imageUrl = product.optString("image_url", "");
+    /*
+        Finds a product, cheapest place first (see ProductCache):
+        - fresh in memory: answered right here, before this even returns
+        - fresh on disk: answered from the cache thread
+        - stale: answered with what we have, refreshed in the background, and handed over again (onRefreshed) once it's back
+        - never seen, or too old, but in the imported offline database: answered from that, no network needed
+        - anything else: off to the API. If that fails and we had an old copy, the old copy it is.
+        The callback can come on any thread, so screens hop to the UI thread themselves (they already did).
+     */
+    public static void fetchProduct(Context context, String barcode, ProductDetailsCallback callback) {
+        ProductCache cache = ProductCache.get(context);
+        Product remembered = cache.peek(barcode);
+        if (remembered != null && cache.freshness(remembered) == ProductCache.Freshness.FRESH) {
+            callback.onProduct(remembered);
+            return;
+        }
+
+        Context appContext = context.getApplicationContext();
+        cacheReader.execute(() -> {
+            Product cached = remembered != null ? remembered : cache.load(barcode);
+            ProductCache.Freshness freshness = cached != null ? cache.freshness(cached) : ProductCache.Freshness.EXPIRED;
+            switch (freshness) {
+                case FRESH:
+                    callback.onProduct(cached);
+                    break;
+                case STALE:
+                    cache.countStaleServed();
+                    callback.onProduct(cached);
+                    // Updating the cache for next time, and telling whoever's still looking if anything came back.
+                    // If it fails they keep what they've got, no need to bother them.
+                    fetchFromApi(appContext, barcode, null, new ProductDetailsCallback() {
+                        @Override
+                        public void onProduct(Product product) {
+                            callback.onRefreshed(product);
+                        }
 
-                        // Pass results back to whatever part of the app asked for it
-                        callback.onProductReceived(name, quantity, imageUrl);
+                        @Override
+                        public void onError(String error) {
+                        }
+                    });
+                    break;
+                default:
+                    Product offline = OfflineProducts.get(appContext).find(barcode);
+                    if (offline != null) {
+                        callback.onProduct(offline);
                     } else {
-                        callback.onError("Product not found in OpenFoodFacts.");
+                        fetchFromApi(appContext, barcode, cached, callback);
                     }
+            }
+        });
+    }
+
+    // Same barcode, same key: leading zeros don't count
+    static String barcodeKey(String barcode) {
+        int start = 0;
+        while (start < barcode.length() - 1 && barcode.charAt(start) == '0') start++;
+        return barcode.substring(start);
+    }
+
+    // Who's waiting on which barcode, so repeat scans share one request
+    public static PendingLookups pendingLookups() {
+        return pending;
+    }
+
+    // How lookups go out (retries, hedging, the circuit breaker), and its tail-latency numbers
+    public static ResilientGet productRequests() {
+        return requests;
+    }
+
+    // How lookups have gone so far, a line each: connections reused and cache hits, then retries and the slow end, then repeat scans shared
+    public static void logStats() {
+        Log.i("OpenFoodApi", HttpClients.metrics().stats().toString());
+        Log.i("OpenFoodApi", requests.toString());
+        Log.i("OpenFoodApi", pending.toString());
+    }
 
-                } catch (JSONException e) {
-                    callback.onError("Failed to parse JSON: " + e.getMessage());
+    /*
+        This function builds and sends a request to the Open Food Facts API
+        using the provided barcode. If successful, it extracts useful info,
+        saves it in the cache, and passes it to everyone waiting on it so the UI can display it.
+        Think of it like a courier delivering product details to the front-end.
+        If that barcode is already on its way, we don't send another courier, we just add this caller to the delivery list.
+        fallback is an old copy to hand over if the network lets us down; callback can be null for a background refresh.
+     */
+    private static void fetchFromApi(Context context, String barcode, Product fallback, ProductDetailsCallback callback) {
+        if (!pending.join(barcode, callback, fallback)) return;
+
+        ProductCache cache = ProductCache.get(context);
+        Request request = new Request.Builder().url(productUrl(barcode)).build();
+
+        lookups.execute(() -> {
+            // Closing the response hands the connection back to the pool, whether or not we read the body
+            Product product;
+            try (Response response = requests.execute(HttpClients.get(context), request)) {
+                if (!response.isSuccessful()) {
+                    pending.failed(barcode, "Unexpected code: " + response, true, cache);
+                    return;
+                }
+                // Parsed as it streams in, no String of the whole thing in between
+                product = ProductJsonReader.readProductResponse(response.body().byteStream(), barcode, System.currentTimeMillis());
+                if (product == null) {
+                    pending.failed(barcode, NOT_FOUND, false, cache);
+                    return;
                 }
+            } catch (ResilientGet.CircuitOpenException e) {
+                // Not even tried: the old copy if there is one, otherwise the caller offers manual entry
+                pending.failed(barcode, UNAVAILABLE, true, cache);
+                return;
+            } catch (IOException e) {
+                // Couldn't get through (even after retrying), or the connection dropped partway. Offline, but maybe we've seen this one before.
+                pending.failed(barcode, "API call failed: " + e.getMessage(), true, cache);
+                return;
+            } catch (IllegalStateException | NumberFormatException e) {
+                // That's how JsonReader says the JSON didn't look like a product response
+                pending.failed(barcode, "Failed to parse JSON: " + e.getMessage(), false, cache);
+                return;
             }
+
+            try {
+                cache.put(product);
+            } catch (RuntimeException e) {
+                Log.e("OpenFoodApi", "Failed to cache product " + barcode, e); // A full disk shouldn't take the lookup down with it
+            }
+
+            // Pass results back to every part of the app that asked for it
+            pending.succeeded(barcode, product, cache);
         });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,453 @@
+// --- PEER SYNC ---
+// Phone-to-phone sync straight over the Wi-Fi, no file, no share sheet, no opening anything on the other end.
+// One phone waits (listen) and shows a pairing code, the other connects and has to send that code first.
+// Anyone else on the Wi-Fi who finds the port gets turned away before they see a single location name.
+// From there both sides do exactly the same thing:
+//   1. Say hello and send a digest of every location (name, item count, fingerprint)
+//   2. Compare: a location the other phone already has exactly never gets sent
+//   3. Send ours for the rest, one location per frame, while reading theirs as it comes in.
+//      Their locations go straight into SyncMerger, so merging starts before the transfer is done.
+//   4. Both say whether their merge worked (and nothing got scanned meanwhile). Only if BOTH are ready does either one save.
+//   5. Both save the new inventory, but keep the OLD house count (and a copy of what got replaced), and say whether it worked.
+//   6. If the other phone saved too, the new house count goes live. If it didn't, or it never answered, ours gets put back.
+// Step 6 is what keeps the phones from drifting apart: if only one of them moved on to the new house count,
+// the next sync would subtract the wrong baseline and count everything twice.
+// (If the connection dies in the instant between the two SAVED frames crossing, one phone can still hear back and the other not.
+// Nothing can rule that out completely; the message on the phone that undid it says so.)
+// Each side merges with its own last house count, so two phones that last agreed end up with the same inventory again,
+// same as swapping files both ways.
+//
+// Sending and reading happen on different threads (hello included): if both phones only wrote, a big inventory
+// would fill both socket buffers and they'd wait on each other forever.
+//
+// Framing is plain DataOutputStream: [frame type byte][payload]. Strings go as a present-flag plus writeUTF, like the mutation log.
+// Counts from the other phone are checked against hard limits before anything gets allocated for them,
+// so a broken (or hostile) peer can't make us reserve a few gigabytes with one int.
+// Nothing here needs a Context, so two endpoints can be run against each other over loopback.
+
+package com.example.sims;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class PeerSync {
+
+    public static final int DEFAULT_PORT = 47315;
+
+    private static final int MAGIC = 0x53494D50; // "SIMP"
+    private static final int VERSION = 2; // 2: pairing code, and the house count waits for the other phone's SAVED
+
+    private static final byte FRAME_HELLO = 1;
+    private static final byte FRAME_DIGESTS = 2;
+    private static final byte FRAME_LOCATION = 3;
+    private static final byte FRAME_END = 4;
+    private static final byte FRAME_READY = 5;
+    private static final byte FRAME_SAVED = 6;
+    private static final byte FRAME_PAIR = 7;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000; // A big merge on a slow phone can go quiet for a while
+    private static final int ACCEPT_POLL_MILLIS = 1_000;   // How often a waiting phone checks for Cancel
+    private static final int PAIRING_TIMEOUT_MILLIS = 10_000; // Someone who connects and says nothing doesn't get to hold up the real phone
+
+    private static final int PAIRING_CODE_DIGITS = 6;
+    private static final int MAX_PAIRING_ATTEMPTS = 3; // Wrong codes before a waiting phone gives up (a million codes, three guesses)
+
+    // Far past any real inventory, well short of running a phone out of memory
+    private static final int MAX_LOCATIONS = 10_000;
+    private static final int MAX_ITEMS_PER_LOCATION = 500_000;
+    private static final int MAX_PREALLOCATED_ITEMS = 1024; // The list grows past this as items actually arrive
+
+    /*
+        Everything one phone brings to a sync: its inventory, its last house count, and how to save the result.
+        SyncHelper has the real one. The item and digest calls get made from the merge pool, so they need to be thread-safe.
+     */
+    public interface Side {
+        List<String> locationNames();
+
+        List<InventoryItem> items(String location) throws IOException;
+
+        LocationDigest digest(String location) throws IOException;
+
+        List<InventoryItem> previousItems(String location) throws IOException;
+
+        LocationDigest previousDigest(String location) throws IOException;
+
+        /*
+            Saves the merge only if the locations still match expected (null = shouldn't exist). false if something moved.
+            The old house count stays in charge (and what got replaced is kept) until settle says how the other phone got on.
+         */
+        boolean stage(Map<String, LocationDigest> expected, LinkedHashMap<String, List<InventoryItem>> merged) throws IOException;
+
+        /*
+            After a stage that worked: keep == true, the other phone saved too, so the new house count takes over.
+            keep == false, put the old inventory back. Returns false if some of it couldn't be put back
+            (something got scanned there in the meantime, and that wins).
+         */
+        boolean settle(boolean keep) throws IOException;
+    }
+
+    // A fresh code for a waiting phone to show, e.g. "042917"
+    public static String newPairingCode() {
+        int bound = (int) Math.pow(10, PAIRING_CODE_DIGITS);
+        return String.format(Locale.US, "%0" + PAIRING_CODE_DIGITS + "d", new SecureRandom().nextInt(bound));
+    }
+
+    /*
+        Waits for the other phone to connect with pairingCode, then syncs with it. Checks for Cancel about once a second while waiting.
+        A connection with the wrong code (or that isn't a SIMS phone at all) is dropped and it goes back to waiting,
+        up to MAX_PAIRING_ATTEMPTS times. Returns what to tell the person.
+     */
+    public static String listen(int port, String pairingCode, Side side, SyncMerger.Progress progress) throws IOException {
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            server.setSoTimeout(ACCEPT_POLL_MILLIS);
+            int wrongCodes = 0;
+            while (true) {
+                if (progress.isCancelled()) throw new CancellationException("Sync cancelled");
+                try (Socket socket = server.accept()) {
+                    if (acceptPairing(socket, pairingCode)) {
+                        return exchange(socket, side, progress);
+                    }
+                    if (++wrongCodes >= MAX_PAIRING_ATTEMPTS) {
+                        return "Stopped waiting: a phone tried the wrong pairing code " + wrongCodes + " times. Nothing was changed.";
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Nobody yet, go round again
+                }
+            }
+        }
+    }
+
+    // Connects to a phone that's listening, pairs with the code it's showing, and syncs with it
+    public static String connect(String host, int port, String pairingCode, Side side, SyncMerger.Progress progress) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(PAIRING_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(FRAME_PAIR);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(pairingCode);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (readFrameType(in) != FRAME_PAIR) throw new IOException("That isn't a SIMS phone on the other end");
+            if (!in.readBoolean()) return "The pairing code didn't match. Check the code on the other phone and try again.";
+            return exchange(socket, side, progress);
+        }
+    }
+
+    /*
+        The waiting phone's half of pairing. false if the code is wrong or it isn't one of us; the socket gets closed either way then.
+        Nothing about the inventory has been sent at that point. A different app version is an error, not a wrong guess.
+     */
+    private static boolean acceptPairing(Socket socket, String pairingCode) throws IOException {
+        socket.setSoTimeout(PAIRING_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        int magic;
+        int version;
+        String code;
+        try {
+            if (readFrameType(in) != FRAME_PAIR) return false;
+            magic = in.readInt();
+            version = in.readInt();
+            code = in.readUTF();
+        } catch (IOException e) {
+            return false; // Garbage, silence or a dropped connection: not our phone
+        }
+        if (magic != MAGIC) return false;
+        if (version != VERSION) throw new IOException("The other phone has a different version of the app (sync v" + version + ")");
+
+        // Compared in constant time, so the reply time doesn't give away how many digits were right
+        boolean matches = MessageDigest.isEqual(code.getBytes(StandardCharsets.UTF_8), pairingCode.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(FRAME_PAIR);
+        out.writeBoolean(matches);
+        out.flush();
+        return matches;
+    }
+
+    // This phone's addresses on the local network, for the "connect to me at..." message
+    public static List<String> localAddresses() {
+        List<String> addresses = new ArrayList<>();
+        try {
+            for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!network.isUp() || network.isLoopback()) continue;
+                for (InetAddress address : Collections.list(network.getInetAddresses())) {
+                    if (address.getAddress().length == 4) addresses.add(address.getHostAddress()); // IPv4 is what people can type
+                }
+            }
+        } catch (IOException e) {
+            // No network info, so no hint to show. The sync itself can still work.
+        }
+        return addresses;
+    }
+
+    private static String exchange(Socket socket, Side side, SyncMerger.Progress progress) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true); // The small frames at the end shouldn't wait around
+        return exchange(socket.getInputStream(), socket.getOutputStream(), side, progress);
+    }
+
+    /*
+        The whole conversation with the other phone, over any pair of streams. Both phones run exactly this.
+        Doesn't close the streams.
+     */
+    public static String exchange(InputStream rawIn, OutputStream rawOut, Side side, SyncMerger.Progress progress) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn, 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut, 64 * 1024));
+
+        // What we have as we start. It's what the other phone gets told, and what the save checks against at the end.
+        List<String> localLocations = side.locationNames();
+        LinkedHashMap<String, LocationDigest> expected = new LinkedHashMap<>();
+        for (String location : localLocations) {
+            LocationDigest digest = side.digest(location);
+            if (digest != null) expected.put(location, digest);
+        }
+
+        CompletableFuture<LinkedHashMap<String, LocationDigest>> theirDigests = new CompletableFuture<>();
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        Thread sender = new Thread(() -> {
+            try {
+                writeHello(out, expected);
+                out.flush();
+                send(out, side, expected, theirDigests.get());
+                sent.complete(null);
+            } catch (Throwable t) {
+                sent.completeExceptionally(t);
+            }
+        }, "PeerSyncSend");
+        sender.setDaemon(true);
+
+        LinkedHashMap<String, List<InventoryItem>> merged = null;
+        try {
+            sender.start();
+
+            readHello(in);
+            LinkedHashMap<String, LocationDigest> theirs = readDigests(in);
+            theirDigests.complete(theirs);
+
+            merged = SyncMerger.merge(new FrameIncoming(in, theirs, expected, progress), localLocations,
+                    side::items, side::digest, side::previousItems, side::previousDigest, progress);
+            if (readFrameType(in) != FRAME_END) throw new IOException("The other phone sent more than it said it would");
+            await(sent);
+        } catch (IOException | RuntimeException e) {
+            theirDigests.cancel(false); // Lets the sender stop if it hasn't started
+            throw e;
+        }
+
+        for (String location : merged.keySet()) {
+            expected.putIfAbsent(location, null);
+        }
+
+        // Only save if both merges worked. Otherwise one phone would move on to a new house count and the other wouldn't.
+        boolean ready = !progress.isCancelled() && unchanged(side, expected);
+        out.writeByte(FRAME_READY);
+        out.writeBoolean(ready);
+        out.flush();
+        if (readFrameType(in) != FRAME_READY) throw new IOException("Unexpected frame from the other phone");
+        boolean theyAreReady = in.readBoolean();
+        if (!ready && progress.isCancelled()) throw new CancellationException("Sync cancelled");
+        if (!ready) return "The inventory changed while syncing, so nothing was saved on either phone. Try the sync again.";
+        if (!theyAreReady) return "The other phone couldn't finish the sync, so nothing was saved on either phone.";
+
+        // Saved, but the old house count holds until we know the other phone saved too
+        boolean saved = side.stage(expected, merged);
+        boolean theySaved;
+        try {
+            out.writeByte(FRAME_SAVED);
+            out.writeBoolean(saved);
+            out.flush();
+            if (readFrameType(in) != FRAME_SAVED) throw new IOException("Unexpected frame from the other phone");
+            theySaved = in.readBoolean();
+        } catch (IOException | RuntimeException e) {
+            // Never heard back, so there's no telling whether they saved. Undo ours rather than move on alone.
+            if (saved) side.settle(false);
+            throw new IOException("Lost the other phone before it confirmed, so the sync was undone here. "
+                    + "If the other phone says the sync completed, sync the two again.", e);
+        }
+
+        if (saved) {
+            boolean settled = side.settle(theySaved);
+            if (theySaved) return "Sync complete.";
+            if (!settled) {
+                return "The other phone's inventory changed at the last moment, so the sync was undone. Something scanned here meanwhile "
+                        + "kept its synced count, so check this phone's inventory before syncing again.";
+            }
+            return "The other phone's inventory changed at the last moment, so the sync was undone on both phones. Try the sync again.";
+        }
+        if (theySaved) {
+            return "This inventory changed at the last moment, so the sync was undone on both phones. Try the sync again.";
+        }
+        return "The inventory changed while syncing, so nothing was saved on either phone. Try the sync again.";
+    }
+
+    // Our half of step 3: every location the other phone doesn't already have exactly, then END
+    private static void send(DataOutputStream out, Side side, Map<String, LocationDigest> ours,
+                             Map<String, LocationDigest> theirs) throws IOException {
+        for (Map.Entry<String, LocationDigest> entry : ours.entrySet()) {
+            if (entry.getValue().sameAs(theirs.get(entry.getKey()))) continue;
+            writeLocation(out, entry.getKey(), side.items(entry.getKey()));
+        }
+        out.writeByte(FRAME_END);
+        out.flush();
+    }
+
+    private static boolean unchanged(Side side, Map<String, LocationDigest> expected) throws IOException {
+        for (Map.Entry<String, LocationDigest> entry : expected.entrySet()) {
+            LocationDigest now = side.digest(entry.getKey());
+            boolean same = entry.getValue() == null ? now == null : entry.getValue().sameAs(now);
+            if (!same) return false;
+        }
+        return true;
+    }
+
+    private static void await(CompletableFuture<Void> sent) throws IOException {
+        try {
+            sent.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Sending to the other phone failed", cause);
+        }
+    }
+
+    /*
+        The other phone's locations, in the order they listed them. The ones that match what we told them we have
+        never come over the wire (items() is null, the merge uses ours); the rest arrive as LOCATION frames in that same order.
+     */
+    private static final class FrameIncoming implements SyncMerger.Incoming {
+        private final DataInputStream in;
+        private final Iterator<Map.Entry<String, LocationDigest>> theirs;
+        private final Map<String, LocationDigest> ours;
+        private final SyncMerger.Progress progress;
+        private Map.Entry<String, LocationDigest> current;
+
+        FrameIncoming(DataInputStream in, Map<String, LocationDigest> theirs, Map<String, LocationDigest> ours,
+                      SyncMerger.Progress progress) {
+            this.in = in;
+            this.theirs = theirs.entrySet().iterator();
+            this.ours = ours;
+            this.progress = progress;
+        }
+
+        @Override
+        public String nextLocation() {
+            current = theirs.hasNext() ? theirs.next() : null;
+            return current != null ? current.getKey() : null;
+        }
+
+        @Override
+        public List<InventoryItem> items() throws IOException {
+            if (current.getValue().sameAs(ours.get(current.getKey()))) return null; // Not sent, it's the same as ours
+            if (readFrameType(in) != FRAME_LOCATION) throw new IOException("Expected " + current.getKey() + " from the other phone");
+            String location = in.readUTF();
+            if (!location.equals(current.getKey())) {
+                throw new IOException("Expected " + current.getKey() + " from the other phone, got " + location);
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ITEMS_PER_LOCATION) {
+                throw new IOException("The other phone sent a bad item count for " + location);
+            }
+            List<InventoryItem> items = new ArrayList<>(Math.min(count, MAX_PREALLOCATED_ITEMS));
+            for (int i = 0; i < count; i++) {
+                items.add(new InventoryItem(readNullable(in), readNullable(in), readNullable(in), in.readInt()));
+                if ((i + 1) % 1024 == 0 && progress.isCancelled()) throw new CancellationException("Sync cancelled");
+            }
+            return items;
+        }
+    }
+
+    // --- Frames ---
+
+    private static void writeHello(DataOutputStream out, Map<String, LocationDigest> digests) throws IOException {
+        out.writeByte(FRAME_HELLO);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(FRAME_DIGESTS);
+        out.writeInt(digests.size());
+        for (Map.Entry<String, LocationDigest> entry : digests.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().itemCount);
+            out.writeUTF(entry.getValue().hex());
+        }
+    }
+
+    private static void readHello(DataInputStream in) throws IOException {
+        if (readFrameType(in) != FRAME_HELLO || in.readInt() != MAGIC) throw new IOException("That isn't a SIMS phone on the other end");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("The other phone has a different version of the app (sync v" + version + ")");
+    }
+
+    private static LinkedHashMap<String, LocationDigest> readDigests(DataInputStream in) throws IOException {
+        if (readFrameType(in) != FRAME_DIGESTS) throw new IOException("Expected the other phone's location list");
+        int count = in.readInt();
+        if (count < 0 || count > MAX_LOCATIONS) throw new IOException("The other phone sent a bad location count (" + count + ")");
+        LinkedHashMap<String, LocationDigest> digests = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String location = in.readUTF();
+            int itemCount = in.readInt();
+            if (itemCount < 0 || itemCount > MAX_ITEMS_PER_LOCATION) {
+                throw new IOException("The other phone sent a bad item count for " + location);
+            }
+            LocationDigest digest = LocationDigest.fromHex(itemCount, in.readUTF());
+            if (digest == null) throw new IOException("Bad digest for " + location + " from the other phone");
+            digests.put(location, digest);
+        }
+        return digests;
+    }
+
+    private static void writeLocation(DataOutputStream out, String location, List<InventoryItem> items) throws IOException {
+        out.writeByte(FRAME_LOCATION);
+        out.writeUTF(location);
+        out.writeInt(items.size());
+        for (InventoryItem item : items) {
+            writeNullable(out, item.getName());
+            writeNullable(out, item.getQuantity());
+            writeNullable(out, item.getBarcode());
+            out.writeInt(item.getStockQuantity());
+        }
+    }
+
+    private static byte readFrameType(DataInputStream in) throws IOException {
+        return in.readByte();
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
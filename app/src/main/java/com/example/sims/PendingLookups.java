@@ -0,0 +1,123 @@
+// --- PENDING LOOKUPS ---
+// Keeps track of which barcodes are being looked up right now, and who's waiting on each one.
+// Scanning the same box five times in a row used to fire five identical requests at Open Food Facts.
+// Now the first scan starts the lookup and the other four just get in line behind it: one request, five answers.
+// Once the answer's in, the barcode is dropped from here, so the next scan goes through the cache like normal.
+// Barcodes are matched the way OpenFoodApiHelper.barcodeKey does, so a UPC scanned as 12 digits and as a 13 digit EAN share one request too.
+
+package com.example.sims;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PendingLookups {
+
+    // Someone waiting on a barcode (spelled the way they scanned it), plus the old copy they had (if any) in case the network lets us down
+    private static final class Waiter {
+        final String barcode;
+        final OpenFoodApiHelper.ProductDetailsCallback callback;
+        final Product fallback;
+
+        Waiter(String barcode, OpenFoodApiHelper.ProductDetailsCallback callback, Product fallback) {
+            this.barcode = barcode;
+            this.callback = callback;
+            this.fallback = fallback;
+        }
+    }
+
+    private final Map<String, List<Waiter>> pending = new HashMap<>();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    /*
+        Gets in line for a barcode. true means nobody was looking it up yet, so this caller has to go and do it
+        (and call succeeded or failed when done). false means it's already on its way and the callback will hear about it.
+        callback can be null for a background refresh that only wants the cache updated.
+     */
+    public boolean join(String barcode, OpenFoodApiHelper.ProductDetailsCallback callback, Product fallback) {
+        String key = OpenFoodApiHelper.barcodeKey(barcode);
+        boolean first;
+        synchronized (pending) {
+            List<Waiter> waiters = pending.get(key);
+            first = waiters == null;
+            if (first) {
+                waiters = new ArrayList<>();
+                pending.put(key, waiters);
+            }
+            if (callback != null) waiters.add(new Waiter(barcode, callback, fallback));
+        }
+        (first ? started : joined).incrementAndGet();
+        return first;
+    }
+
+    /*
+        Hands the product to everyone waiting on it.
+        Anyone who scanned it with different leading zeros gets it under their own spelling, cached that way too,
+        since the screens find it in the cache by the barcode they scanned.
+     */
+    public void succeeded(String barcode, Product product, ProductCache cache) {
+        for (Waiter waiter : finish(barcode)) {
+            Product theirs = product;
+            if (!waiter.barcode.equals(product.barcode)) {
+                theirs = product.withBarcode(waiter.barcode);
+                try {
+                    cache.put(theirs);
+                } catch (RuntimeException e) {
+                    Log.e("PendingLookups", "Failed to cache product " + waiter.barcode, e); // They still get it, just not from the cache next time
+                }
+            }
+            waiter.callback.onProduct(theirs);
+        }
+    }
+
+    /*
+        Tells everyone waiting that it didn't work out.
+        offline is for "couldn't reach the server" kinds of failures: anyone holding an old copy gets that instead of the error.
+        (If the API flat out says it doesn't know the barcode, an old copy doesn't help, so everyone hears the error.)
+     */
+    public void failed(String barcode, String error, boolean offline, ProductCache cache) {
+        for (Waiter waiter : finish(barcode)) {
+            if (offline && waiter.fallback != null) {
+                cache.countOfflineServed();
+                waiter.callback.onProduct(waiter.fallback);
+            } else {
+                waiter.callback.onError(error);
+            }
+        }
+    }
+
+    public boolean isPending(String barcode) {
+        synchronized (pending) {
+            return pending.containsKey(OpenFoodApiHelper.barcodeKey(barcode));
+        }
+    }
+
+    // Lookups that actually went out
+    public long started() {
+        return started.get();
+    }
+
+    // Callers that got in line behind one already going (each one is a request we didn't send)
+    public long joined() {
+        return joined.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PendingLookups: " + started() + " started, " + joined() + " joined one already going";
+    }
+
+    // Takes the barcode out first, so a callback that looks it up again starts fresh instead of joining a finished lookup
+    private List<Waiter> finish(String barcode) {
+        List<Waiter> waiters;
+        synchronized (pending) {
+            waiters = pending.remove(OpenFoodApiHelper.barcodeKey(barcode));
+        }
+        return waiters != null ? waiters : new ArrayList<>();
+    }
+}
@@ -0,0 +1,74 @@
+// --- PRODUCT ---
+// Everything we know about a barcode from Open Food Facts, in one place: what the scan screen needs (name, size, picture)
+// and what the details screen shows (brand, ingredients, nutrition and so on).
+// One lookup fills in all of it, so the details screen never has to ask the internet again for something we just scanned.
+// Fields the API didn't have are null; the screens decide what to show instead ("N/A", "Unknown Size"...).
+
+package com.example.sims;
+
+public class Product {
+
+    public final String barcode;
+    public final String name;        // Best name we could find (see bestName), never empty
+    public final String quantity;    // Package size, e.g. "355 mL"
+    public final String imageUrl;
+    public final String brand;
+    public final String categories;
+    public final String ingredients;
+    public final String allergens;
+    public final String nutriscore;
+    public final String novaGroup;
+    public final String origin;
+    public final String stores;
+    public final boolean hasNutrition;
+    public final String energyKcal100g;
+    public final String fat100g;
+    public final String sugars100g;
+    public final String salt100g;
+    public final long fetchedAt;     // When this came off the network (System.currentTimeMillis)
+
+    public Product(String barcode, String name, String quantity, String imageUrl, String brand, String categories,
+                   String ingredients, String allergens, String nutriscore, String novaGroup, String origin, String stores,
+                   boolean hasNutrition, String energyKcal100g, String fat100g, String sugars100g, String salt100g, long fetchedAt) {
+        this.barcode = barcode;
+        this.name = name;
+        this.quantity = quantity;
+        this.imageUrl = imageUrl;
+        this.brand = brand;
+        this.categories = categories;
+        this.ingredients = ingredients;
+        this.allergens = allergens;
+        this.nutriscore = nutriscore;
+        this.novaGroup = novaGroup;
+        this.origin = origin;
+        this.stores = stores;
+        this.hasNutrition = hasNutrition;
+        this.energyKcal100g = energyKcal100g;
+        this.fat100g = fat100g;
+        this.sugars100g = sugars100g;
+        this.salt100g = salt100g;
+        this.fetchedAt = fetchedAt;
+    }
+
+    // The same product filed under another barcode (the search endpoint can spell a scanned UPC as an EAN)
+    public Product withBarcode(String barcode) {
+        return new Product(barcode, name, quantity, imageUrl, brand, categories, ingredients, allergens, nutriscore, novaGroup,
+                origin, stores, hasNutrition, energyKcal100g, fat100g, sugars100g, salt100g, fetchedAt);
+    }
+
+    /*
+        We want to get the best possible product name,
+        so we check multiple fields in descending order of clarity.
+        This is like checking the fancy label, then the side panel,
+        then the barcode area—until we get something useful.
+        (Because if we leave it to the system, you’ll end up with a blank field for Joe Louis cakes.)
+        ProductJsonReader passes them in that order: complete, with quantity, English, plain.
+     */
+    static String bestName(String... candidates) {
+        for (String candidate : candidates) {
+            String name = candidate != null ? candidate.trim() : "";
+            if (!name.isEmpty()) return name;
+        }
+        return "Unknown Product";
+    }
+}
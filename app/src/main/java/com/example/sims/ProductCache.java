@@ -0,0 +1,198 @@
+// --- PRODUCT CACHE ---
+// Remembers every product we've looked up, so scanning the same can of soup twice doesn't go back to Open Food Facts.
+// Two tiers:
+//   - memory: the last few hundred products in an LRU map. A repeat scan is a hash lookup, microseconds, no thread hop.
+//   - disk:   every product ever looked up, in a small SQLite table keyed by barcode. Survives restarts and works offline.
+//
+// Product info barely changes, but it does change, so entries age:
+//   FRESH    younger than the TTL (a week by default). Used as-is.
+//   STALE    past the TTL but inside the stale window. Shown straight away, and a refresh runs in the background
+//            (stale-while-revalidate), so the person never waits and the next scan gets the new info.
+//   EXPIRED  older than that. Looked up again, but if the network's down we still show the old one rather than nothing.
+// Hit/miss counters show how much network all this is actually saving.
+
+package com.example.sims;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ProductCache extends SQLiteOpenHelper {
+
+    public enum Freshness { FRESH, STALE, EXPIRED }
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_STALE_MILLIS = TimeUnit.DAYS.toMillis(30); // On top of the TTL
+
+    private static final String DATABASE_NAME = "products.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final int MEMORY_ENTRIES = 256;
+
+    private static final String COLUMNS = "barcode, name, quantity, image_url, brand, categories, ingredients, allergens, "
+            + "nutriscore, nova_group, origin, stores, has_nutrition, energy_kcal_100g, fat_100g, sugars_100g, salt_100g, fetched_at";
+
+    private static ProductCache instance;
+
+    // Access-ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Product> memory = new LinkedHashMap<String, Product>(MEMORY_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Product> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+    private volatile long staleMillis = DEFAULT_STALE_MILLIS;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+    private final AtomicLong offlineServed = new AtomicLong();
+
+    private ProductCache(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    public static synchronized ProductCache get(Context context) {
+        if (instance == null) {
+            instance = new ProductCache(context);
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE products ("
+                + "barcode TEXT PRIMARY KEY, "
+                + "name TEXT, quantity TEXT, image_url TEXT, brand TEXT, categories TEXT, ingredients TEXT, allergens TEXT, "
+                + "nutriscore TEXT, nova_group TEXT, origin TEXT, stores TEXT, "
+                + "has_nutrition INTEGER NOT NULL, energy_kcal_100g TEXT, fat_100g TEXT, sugars_100g TEXT, salt_100g TEXT, "
+                + "fetched_at INTEGER NOT NULL)");
+    }
+
+    // Schema changes go here, one step per version (same rule as the inventory database)
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    // How long an entry counts as fresh, and how long after that it can still be shown while it's refreshed
+    public void setTtl(long ttlMillis, long staleMillis) {
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = staleMillis;
+    }
+
+    public Freshness freshness(Product product) {
+        long age = System.currentTimeMillis() - product.fetchedAt;
+        if (age <= ttlMillis) return Freshness.FRESH;
+        if (age <= ttlMillis + staleMillis) return Freshness.STALE;
+        return Freshness.EXPIRED;
+    }
+
+    // Memory only, so it's safe on the main thread. null if it isn't in memory (it might still be on disk).
+    public Product peek(String barcode) {
+        Product product;
+        synchronized (memory) {
+            product = memory.get(barcode);
+        }
+        if (product != null) memoryHits.incrementAndGet();
+        return product;
+    }
+
+    // Memory, then disk (and a disk hit goes back into memory). null if we've never looked it up. Not for the main thread.
+    public Product load(String barcode) {
+        Product product = peek(barcode);
+        if (product != null) return product;
+
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT " + COLUMNS + " FROM products WHERE barcode = ?", new String[]{barcode})) {
+            if (cursor.moveToFirst()) product = readProduct(cursor);
+        }
+        if (product == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        synchronized (memory) {
+            memory.put(barcode, product);
+        }
+        return product;
+    }
+
+    // Remembers a fresh lookup in both tiers (replacing whatever we had for that barcode)
+    public void put(Product product) {
+        synchronized (memory) {
+            memory.put(product.barcode, product);
+        }
+        ContentValues values = new ContentValues();
+        values.put("barcode", product.barcode);
+        values.put("name", product.name);
+        values.put("quantity", product.quantity);
+        values.put("image_url", product.imageUrl);
+        values.put("brand", product.brand);
+        values.put("categories", product.categories);
+        values.put("ingredients", product.ingredients);
+        values.put("allergens", product.allergens);
+        values.put("nutriscore", product.nutriscore);
+        values.put("nova_group", product.novaGroup);
+        values.put("origin", product.origin);
+        values.put("stores", product.stores);
+        values.put("has_nutrition", product.hasNutrition ? 1 : 0);
+        values.put("energy_kcal_100g", product.energyKcal100g);
+        values.put("fat_100g", product.fat100g);
+        values.put("sugars_100g", product.sugars100g);
+        values.put("salt_100g", product.salt100g);
+        values.put("fetched_at", product.fetchedAt);
+        getWritableDatabase().insertWithOnConflict("products", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // The lookup helper tells us when it showed an old entry, so the counters cover the whole story
+    void countStaleServed() {
+        staleServed.incrementAndGet();
+    }
+
+    void countOfflineServed() {
+        offlineServed.incrementAndGet();
+    }
+
+    public long memoryHits() {
+        return memoryHits.get();
+    }
+
+    public long diskHits() {
+        return diskHits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long staleServed() {
+        return staleServed.get();
+    }
+
+    public long offlineServed() {
+        return offlineServed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ProductCache: " + memoryHits() + " memory hits, " + diskHits() + " disk hits, " + misses() + " misses, "
+                + staleServed() + " served stale, " + offlineServed() + " served offline";
+    }
+
+    private static Product readProduct(Cursor cursor) {
+        return new Product(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                cursor.getString(4), cursor.getString(5), cursor.getString(6), cursor.getString(7), cursor.getString(8),
+                cursor.getString(9), cursor.getString(10), cursor.getString(11), cursor.getInt(12) != 0,
+                cursor.getString(13), cursor.getString(14), cursor.getString(15), cursor.getString(16), cursor.getLong(17));
+    }
+}
@@ -0,0 +1,215 @@
+// --- PRODUCT JSON READER ---
+// Reads Open Food Facts responses straight off the network stream, the same way InventoryJsonReader reads inventory files.
+// The old way pulled the whole response into one String, then built a JSONObject tree out of all of it, then copied a dozen fields out.
+// Here we walk the tokens once, keep the fields Product has room for, and skip over everything else without building it.
+// The requests already ask for just these fields (see OpenFoodApiHelper.PRODUCT_FIELDS), so usually there's not much to skip,
+// but a server that ignores fields= (or an old cached response) still parses fine, just slower.
+
+package com.example.sims;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ProductJsonReader {
+
+    /*
+        A product endpoint response ({"code": ..., "product": {...}, "status": 1}), or null if the API doesn't know the barcode.
+        status can come before or after the product, so we hang on to the product until we've seen both.
+     */
+    public static Product readProductResponse(InputStream in, String barcode, long fetchedAt) throws IOException {
+        Product product = null;
+        int status = 0;
+        try (JsonReader reader = InventoryJsonReader.open(in)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "status":
+                        status = InventoryJsonReader.readInt(reader, 0);
+                        break;
+                    case "product":
+                        product = readProductOrSkip(reader, barcode, fetchedAt);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        return status == 1 ? product : null;
+    }
+
+    /*
+        A search endpoint response ({"count": ..., "products": [{...}, ...]}), by barcode.
+        Each product comes back with the API's own spelling of its code, so they're keyed by OpenFoodApiHelper.barcodeKey.
+     */
+    public static Map<String, Product> readSearchResponse(InputStream in, long fetchedAt) throws IOException {
+        Map<String, Product> products = new HashMap<>();
+        try (JsonReader reader = InventoryJsonReader.open(in)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("products") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Product product = readProductOrSkip(reader, null, fetchedAt);
+                    if (product != null && product.barcode != null) {
+                        products.put(OpenFoodApiHelper.barcodeKey(product.barcode), product);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+        return products;
+    }
+
+    private static Product readProductOrSkip(JsonReader reader, String barcode, long fetchedAt) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        return readProduct(reader, barcode, fetchedAt);
+    }
+
+    /*
+        One product object. barcode is what we'll file it under; null means use the product's own "code".
+        Missing fields stay null, same as Product always had them.
+     */
+    static Product readProduct(JsonReader reader, String barcode, long fetchedAt) throws IOException {
+        String code = null;
+        String nameComplete = null, nameWithQuantity = null, nameEn = null, name = null;
+        String quantity = null, imageUrl = null, brand = null, categories = null, ingredients = null, allergens = null;
+        String nutriscore = null, novaGroup = null, origin = null, stores = null;
+        String[] nutrients = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "code":
+                    code = readText(reader);
+                    break;
+                case "product_name_complete":
+                    nameComplete = readText(reader);
+                    break;
+                case "product_name_with_quantity":
+                    nameWithQuantity = readText(reader);
+                    break;
+                case "product_name_en":
+                    nameEn = readText(reader);
+                    break;
+                case "product_name":
+                    name = readText(reader);
+                    break;
+                case "quantity":
+                    quantity = readText(reader);
+                    break;
+                case "image_url":
+                    imageUrl = readText(reader);
+                    break;
+                case "brands":
+                    brand = readText(reader);
+                    break;
+                case "categories":
+                    categories = readText(reader);
+                    break;
+                case "ingredients_text":
+                    ingredients = readText(reader);
+                    break;
+                case "allergens":
+                    allergens = readText(reader);
+                    break;
+                case "nutriscore_grade":
+                    nutriscore = readText(reader);
+                    break;
+                case "nova_group":
+                    novaGroup = readText(reader);
+                    break;
+                case "origins":
+                    origin = readText(reader);
+                    break;
+                case "stores":
+                    stores = readText(reader);
+                    break;
+                case "nutriments":
+                    nutrients = readNutrients(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        return new Product(barcode != null ? barcode : code,
+                Product.bestName(nameComplete, nameWithQuantity, nameEn, name),
+                quantity, imageUrl, brand, categories, ingredients, allergens, nutriscore, novaGroup, origin, stores,
+                nutrients != null,
+                nutrients != null ? nutrients[0] : null,
+                nutrients != null ? nutrients[1] : null,
+                nutrients != null ? nutrients[2] : null,
+                nutrients != null ? nutrients[3] : null,
+                fetchedAt);
+    }
+
+    /*
+        A field as text, written the way the old org.json path wrote it (optString on whatever JSONTokener made of it),
+        so the screens show exactly what they used to. JsonReader hands back a number's digits exactly as they were sent,
+        but JSONTokener turned anything without a point into a long and everything else into a Double, so 4.0 came out "4.0",
+        0.0001 as "1.0E-4" and 1e3 as "1000.0". Strings (and null, and booleans) are just readString.
+     */
+    private static String readText(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.NUMBER) return InventoryJsonReader.readString(reader);
+        String raw = reader.nextString();
+        if (raw.indexOf('.') == -1) {
+            try {
+                return String.valueOf(Long.parseLong(raw));
+            } catch (NumberFormatException e) {
+                // An exponent, or too big for a long: JSONTokener tried a Double next, and so do we
+            }
+        }
+        try {
+            return String.valueOf(Double.valueOf(raw));
+        } catch (NumberFormatException e) {
+            return raw;
+        }
+    }
+
+    // The four per-100g values we show (energy, fat, sugars, salt), out of the hundred-odd the API has. null if it isn't an object.
+    private static String[] readNutrients(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String[] values = new String[4];
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "energy-kcal_100g":
+                    values[0] = readText(reader);
+                    break;
+                case "fat_100g":
+                    values[1] = readText(reader);
+                    break;
+                case "sugars_100g":
+                    values[2] = readText(reader);
+                    break;
+                case "salt_100g":
+                    values[3] = readText(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+}
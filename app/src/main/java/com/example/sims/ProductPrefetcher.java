@@ -0,0 +1,304 @@
+// --- PRODUCT PREFETCHER ---
+// For when a whole pallet shows up: scan everything first, find out what it all is afterwards.
+// Barcodes go into a queue, and get looked up in batches, several barcodes per request, using the API's search endpoint
+// (it takes a comma-separated list of codes). Only a few batches are out at once, so a big delivery doesn't flood the API
+// or starve the single scans still going on at the same time.
+//
+// Things it plays nicely with:
+//   - ProductCache: anything we already know fresh never goes out, and everything that comes back gets cached,
+//     so scanning an item from the pallet later is instant.
+//   - OfflineProducts: anything in the imported offline database is answered from that, same as a fresh cache entry.
+//   - PendingLookups: a barcode that's already being looked up (someone scanned it on its own) isn't asked for twice,
+//     the batch just waits for that answer too.
+//   - ResilientGet: the same retries, hedging and circuit breaker as single lookups. Once the breaker's open,
+//     batches fail fast to whatever's cached instead of each one waiting out a timeout.
+// If the server doesn't have the search endpoint (a mirror or a test server might not), it falls back to one request per barcode.
+// Results come back to the listener one batch at a time, on the main thread.
+
+package com.example.sims;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class ProductPrefetcher {
+
+    // Both get called on the main thread
+    public interface Listener {
+        // found: what we got back. missing: barcodes the API doesn't know, or that we couldn't reach it for (and had nothing cached).
+        void onBatch(List<Product> found, List<String> missing);
+
+        // Everything added so far has been answered
+        void onIdle();
+    }
+
+    public static final int BATCH_SIZE = 20;
+    public static final int MAX_PARALLEL = 3; // Under HttpClients' per-host limit, so a single scan always gets a slot
+
+    // Longest a batch waits on lookups someone else started (they have their own call timeout, this is just a backstop)
+    private static final long JOINED_WAIT_SECONDS = 60;
+
+    // Flips off the first time a server answers the search endpoint with "no such thing", for the rest of the run (or until the server changes)
+    private static volatile boolean searchAvailable = true;
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler mainThread = new Handler(Looper.getMainLooper());
+    private final ExecutorService workers;
+
+    // All guarded by this
+    private final LinkedHashSet<String> queued = new LinkedHashSet<>();
+    private int activeWorkers;
+    private int outstanding; // Added but not handed to the listener yet
+    private boolean flushing; // Send partial batches too, not just full ones
+    private boolean cancelled;
+
+    public ProductPrefetcher(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        workers = Executors.newFixedThreadPool(MAX_PARALLEL, runnable -> {
+            Thread thread = new Thread(runnable, "Prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+        Queues a barcode. Batches go out as soon as there's a full one; anything left over waits for flush().
+        Adding a barcode that's already waiting in the queue does nothing.
+     */
+    public synchronized void add(String barcode) {
+        if (cancelled || !queued.add(barcode)) return;
+        outstanding++;
+        startWorkers();
+    }
+
+    public synchronized void addAll(Collection<String> barcodes) {
+        for (String barcode : barcodes) add(barcode);
+    }
+
+    // Sends whatever's queued, full batch or not. Call it once the scanning's done.
+    public synchronized void flush() {
+        flushing = true;
+        startWorkers();
+    }
+
+    // Drops everything still queued and stops. Batches already out finish, but nobody hears about them.
+    public synchronized void cancel() {
+        cancelled = true;
+        queued.clear();
+        workers.shutdown();
+    }
+
+    public synchronized int outstanding() {
+        return outstanding;
+    }
+
+    // A different server might well have the search endpoint, so it gets another chance (OpenFoodApiHelper.setBaseUrl calls this)
+    static void serverChanged() {
+        searchAvailable = true;
+    }
+
+    private void startWorkers() {
+        while (activeWorkers < MAX_PARALLEL && hasBatch()) {
+            activeWorkers++;
+            workers.execute(this::drain);
+        }
+    }
+
+    private boolean hasBatch() {
+        return queued.size() >= BATCH_SIZE || (flushing && !queued.isEmpty());
+    }
+
+    // One worker: keeps taking batches until there's nothing ready
+    private void drain() {
+        List<String> batch;
+        while (!(batch = takeBatch()).isEmpty()) {
+            try {
+                resolve(batch);
+            } catch (RuntimeException e) {
+                Log.e("Prefetch", "Batch failed", e);
+                deliver(new ArrayList<>(), batch, batch.size());
+            }
+        }
+    }
+
+    // The next batch, or an empty list (and this worker's done) if there isn't a ready one
+    private synchronized List<String> takeBatch() {
+        List<String> batch = new ArrayList<>();
+        if (cancelled || !hasBatch()) {
+            activeWorkers--;
+            return batch;
+        }
+        Iterator<String> it = queued.iterator();
+        while (it.hasNext() && batch.size() < BATCH_SIZE) {
+            batch.add(it.next());
+            it.remove();
+        }
+        return batch;
+    }
+
+    private void resolve(List<String> batch) {
+        ProductCache cache = ProductCache.get(context);
+        PendingLookups pending = OpenFoodApiHelper.pendingLookups();
+        List<Product> found = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+
+        // What's in the cache and fresh, or in the offline database, doesn't need asking for. The rest gets in line for its answer.
+        OfflineProducts offline = OfflineProducts.get(context);
+        List<String> wanted = new ArrayList<>();
+        List<Product> fallbacks = new ArrayList<>();
+        for (String barcode : batch) {
+            Product cached = cache.load(barcode);
+            Product imported;
+            if (cached != null && cache.freshness(cached) == ProductCache.Freshness.FRESH) {
+                found.add(cached);
+            } else if ((imported = offline.find(barcode)) != null) {
+                found.add(imported);
+            } else {
+                wanted.add(barcode);
+                fallbacks.add(cached);
+            }
+        }
+
+        CountDownLatch answered = new CountDownLatch(wanted.size());
+        OpenFoodApiHelper.ProductDetailsCallback collect = new OpenFoodApiHelper.ProductDetailsCallback() {
+            @Override
+            public void onProduct(Product product) {
+                synchronized (found) {
+                    found.add(product);
+                }
+                answered.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                answered.countDown(); // Which barcode it was gets worked out below
+            }
+        };
+
+        // Only the barcodes nobody's already looking up go in our request
+        List<String> ours = new ArrayList<>();
+        for (int i = 0; i < wanted.size(); i++) {
+            if (pending.join(wanted.get(i), collect, fallbacks.get(i))) ours.add(wanted.get(i));
+        }
+        if (!ours.isEmpty()) fetch(ours, cache, pending);
+
+        try {
+            if (!answered.await(JOINED_WAIT_SECONDS, TimeUnit.SECONDS)) Log.w("Prefetch", "Gave up waiting on a lookup");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Anything we asked for that didn't come back is missing
+        synchronized (found) {
+            List<String> gotten = new ArrayList<>();
+            for (Product product : found) gotten.add(OpenFoodApiHelper.barcodeKey(product.barcode));
+            for (String barcode : batch) {
+                if (!gotten.contains(OpenFoodApiHelper.barcodeKey(barcode))) missing.add(barcode);
+            }
+            deliver(new ArrayList<>(found), missing, batch.size());
+        }
+    }
+
+    // Asks the API for a batch (we're the ones everyone's waiting on for these), answering every barcode either way
+    private void fetch(List<String> barcodes, ProductCache cache, PendingLookups pending) {
+        OkHttpClient client = HttpClients.get(context);
+        ResilientGet requests = OpenFoodApiHelper.productRequests();
+
+        if (searchAvailable) {
+            Request request = new Request.Builder().url(OpenFoodApiHelper.searchUrl(barcodes)).build();
+            try (Response response = requests.execute(client, request)) {
+                if (response.code() == 404 || response.code() == 400) {
+                    Log.w("Prefetch", "No search endpoint here, looking barcodes up one at a time");
+                    searchAvailable = false;
+                } else if (!response.isSuccessful()) {
+                    failAll(barcodes, "Unexpected code: " + response, true, cache, pending);
+                    return;
+                } else {
+                    Map<String, Product> products = ProductJsonReader.readSearchResponse(response.body().byteStream(), System.currentTimeMillis());
+                    for (String barcode : barcodes) {
+                        Product product = products.get(OpenFoodApiHelper.barcodeKey(barcode));
+                        if (product != null) {
+                            // Saved under the barcode that was scanned, so the next scan of it finds it in the cache
+                            answer(barcode, product.withBarcode(barcode), cache, pending);
+                        } else {
+                            pending.failed(barcode, OpenFoodApiHelper.NOT_FOUND, false, cache);
+                        }
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                failAll(barcodes, "API call failed: " + e.getMessage(), true, cache, pending);
+                return;
+            } catch (IllegalStateException | NumberFormatException e) {
+                failAll(barcodes, "Failed to parse JSON: " + e.getMessage(), false, cache, pending);
+                return;
+            }
+        }
+
+        // No search endpoint: one at a time (still only MAX_PARALLEL workers doing this at once)
+        for (String barcode : barcodes) {
+            Request request = new Request.Builder().url(OpenFoodApiHelper.productUrl(barcode)).build();
+            try (Response response = requests.execute(client, request)) {
+                if (!response.isSuccessful()) {
+                    pending.failed(barcode, "Unexpected code: " + response, true, cache);
+                    continue;
+                }
+                Product product = ProductJsonReader.readProductResponse(response.body().byteStream(), barcode, System.currentTimeMillis());
+                if (product != null) {
+                    answer(barcode, product, cache, pending);
+                } else {
+                    pending.failed(barcode, OpenFoodApiHelper.NOT_FOUND, false, cache);
+                }
+            } catch (IOException e) {
+                pending.failed(barcode, "API call failed: " + e.getMessage(), true, cache);
+            } catch (IllegalStateException | NumberFormatException e) {
+                pending.failed(barcode, "Failed to parse JSON: " + e.getMessage(), false, cache);
+            }
+        }
+    }
+
+    private static void answer(String barcode, Product product, ProductCache cache, PendingLookups pending) {
+        try {
+            cache.put(product);
+        } catch (RuntimeException e) {
+            Log.e("Prefetch", "Failed to cache product " + barcode, e);
+        }
+        pending.succeeded(barcode, product, cache);
+    }
+
+    private static void failAll(List<String> barcodes, String error, boolean offline, ProductCache cache, PendingLookups pending) {
+        for (String barcode : barcodes) pending.failed(barcode, error, offline, cache);
+    }
+
+    private void deliver(List<Product> found, List<String> missing, int batchSize) {
+        boolean idle;
+        synchronized (this) {
+            if (cancelled) return;
+            outstanding -= batchSize;
+            idle = outstanding == 0;
+        }
+        mainThread.post(() -> {
+            listener.onBatch(found, missing);
+            if (idle) listener.onIdle();
+        });
+    }
+}
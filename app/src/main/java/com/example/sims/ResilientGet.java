@@ -0,0 +1,337 @@
+// --- RESILIENT GET ---
+// Sends the product lookups (plain GETs, so asking twice never hurts anything) and copes with a flaky network for them:
+//   - retries: a timeout, a dropped connection or a 5xx gets another go, after a backoff that doubles each time
+//     and is jittered (a random wait up to that much), so a room full of phones doesn't all retry in the same instant.
+//     A 429 or 503 that says Retry-After gets that long instead, if it's a wait worth sitting through.
+//   - hedging: once a request has taken longer than almost all recent ones (the p95), a second copy goes out,
+//     and whichever answers first wins; the other is cancelled. It costs a few percent more requests and cuts off the long tail.
+//     Capped at one hedge per ten requests, so a server that's slow across the board doesn't get double the traffic.
+//   - a CircuitBreaker: after a run of failures it stops sending anything for a bit, and execute() throws
+//     CircuitOpenException right away, so the lookup can go straight to the cache (or ask for manual entry) instead of timing out.
+// Every answered request and every whole lookup is timed into LatencyStats, so toString() says what the slow end looks like.
+// What it can't retry is a connection that drops halfway through the body: by then the response has been handed over
+// and is being parsed as it streams in, so that one fails like it always did (and the cache fallback still applies).
+// Runs on the calling thread (it blocks through the backoff), so never call it from the main thread.
+
+package com.example.sims;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class ResilientGet {
+
+    // What execute() throws when the breaker is open. An IOException, so callers already treat it as "couldn't reach the server".
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException() {
+            super("Product lookups are paused after repeated failures");
+        }
+    }
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 250;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2000;
+
+    private static final long TOTAL_BUDGET_MILLIS = 20_000; // No new attempt after this long, someone's standing there waiting
+    private static final int HEDGE_MIN_SAMPLES = 20;        // Don't trust a p95 made of three requests
+    private static final long HEDGE_MIN_DELAY_MILLIS = 50;  // On a fast network the p95 is tiny, and hedging that is just noise
+    private static final int HEDGE_BUDGET = 10;             // At most one hedge per this many requests
+    private static final int LATENCY_WINDOW = 512;
+
+    private final CircuitBreaker breaker;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private volatile boolean hedging = true;
+
+    private final LatencyStats requestLatency = new LatencyStats(LATENCY_WINDOW); // Each request on its own
+    private final LatencyStats lookupLatency = new LatencyStats(LATENCY_WINDOW);  // A whole execute(), retries and backoff included
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ResilientGet(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    // How many tries in all (1 means no retries), and the backoff before the first retry and the most it grows to
+    public void setRetries(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    /*
+        Sends the request, retrying and hedging as needed, and returns the first usable response: anything but a 5xx or 429.
+        If every attempt got a 5xx, the last one is returned so the caller can report it like before.
+        Throws the last IOException if nothing got through, or CircuitOpenException without trying if the breaker is open.
+        Only for GETs: anything else goes out once, as is, since sending it twice might do it twice.
+     */
+    public Response execute(OkHttpClient client, Request request) throws IOException {
+        if (!"GET".equals(request.method())) return client.newCall(request).execute();
+
+        long start = System.currentTimeMillis();
+        try {
+            Response last = null;
+            IOException lastError = null;
+            for (int attempt = 1; ; attempt++) {
+                if (!breaker.allowRequest()) {
+                    if (last != null) return last; // Mid-retry: the 5xx we already have is a better answer than "paused"
+                    if (lastError != null) throw lastError;
+                    throw new CircuitOpenException();
+                }
+                if (last != null) last.close();
+                last = null;
+
+                try {
+                    last = attempt(client, request);
+                    if (!isRetryable(last.code())) {
+                        breaker.recordSuccess();
+                        return last;
+                    }
+                    breaker.recordFailure();
+                } catch (IOException e) {
+                    if (Thread.currentThread().isInterrupted()) throw e; // We were told to stop, not the server's fault
+                    breaker.recordFailure();
+                    lastError = e;
+                }
+
+                long delay = backoff(attempt, last);
+                if (attempt >= maxAttempts || delay < 0 || System.currentTimeMillis() - start + delay > TOTAL_BUDGET_MILLIS) {
+                    failures.incrementAndGet();
+                    if (last != null) return last;
+                    throw lastError;
+                }
+                retries.incrementAndGet();
+                Log.d("ResilientGet", "Attempt " + attempt + " failed (" + (last != null ? last.code() : lastError.getMessage())
+                        + "), retrying in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (last != null) last.close();
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        } finally {
+            lookupLatency.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    static boolean isRetryable(int code) {
+        return code >= 500 || code == 429;
+    }
+
+    /*
+        How long to wait before the next attempt. Full jitter: anywhere from 0 up to base x 2^(attempt-1), capped at the max.
+        A Retry-After on the response wins if it's there, and -1 (give up) if it asks for longer than we'd ever wait.
+     */
+    private long backoff(int attempt, Response response) {
+        String retryAfter = response != null ? response.header("Retry-After") : null;
+        if (retryAfter != null) {
+            try {
+                long millis = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+                return millis <= maxDelayMillis ? millis : -1;
+            } catch (NumberFormatException e) {
+                // An HTTP date; not worth parsing for this, the normal backoff will do
+            }
+        }
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // When a request has been going long enough to send a second copy, or -1 for no hedging this time
+    private long hedgeDelay() {
+        if (!hedging || requestLatency.samples() < HEDGE_MIN_SAMPLES || breaker.state() != CircuitBreaker.State.CLOSED) return -1;
+        if ((hedges.get() + 1) * HEDGE_BUDGET > requests.get()) return -1;
+        return Math.max(HEDGE_MIN_DELAY_MILLIS, requestLatency.percentile(95));
+    }
+
+    // One attempt: the request, plus a hedged copy if it's slow to answer. Returns the winner, or throws if neither got through.
+    private Response attempt(OkHttpClient client, Request request) throws IOException {
+        long hedgeAfter = hedgeDelay();
+        if (hedgeAfter < 0) {
+            requests.incrementAndGet();
+            long start = System.currentTimeMillis();
+            Response response = client.newCall(request).execute();
+            requestLatency.record(System.currentTimeMillis() - start);
+            return response;
+        }
+
+        Race race = new Race();
+        Race.Outcome first = race.start(client.newCall(request)).next(hedgeAfter);
+        if (first == null) {
+            hedges.incrementAndGet();
+            race.start(client.newCall(request));
+            first = race.next(-1);
+        }
+        Race.Outcome winner = first;
+        // If the first one back is a failure and the other copy's still going, give that one its chance
+        if (!race.usable(first) && race.running() > 0) {
+            Race.Outcome second = race.next(-1);
+            if (race.usable(second) || first.response == null) {
+                winner = second;
+                if (first.response != null) first.response.close();
+            } else if (second.response != null) {
+                second.response.close();
+            }
+        }
+        race.settle(winner);
+
+        if (winner.hedge && race.usable(winner)) hedgesWon.incrementAndGet();
+        if (winner.response != null) return winner.response;
+        throw winner.error;
+    }
+
+    /*
+        One request and maybe its hedged copy, both going at once. Answers arrive from OkHttp's threads into a queue,
+        and the caller takes them off in the order they land. Once settled, the losers are cancelled,
+        and any answer that turns up late is closed so its connection goes back to the pool.
+     */
+    private final class Race {
+
+        final class Outcome {
+            final Call call;
+            final boolean hedge;
+            Response response;
+            IOException error;
+
+            Outcome(Call call, boolean hedge) {
+                this.call = call;
+                this.hedge = hedge;
+            }
+        }
+
+        private final LinkedBlockingQueue<Outcome> arrived = new LinkedBlockingQueue<>();
+        private final List<Call> calls = new ArrayList<>();
+        private boolean settled; // Guarded by this
+        private int running;     // Only the caller's thread touches this
+
+        Race start(Call call) {
+            Outcome outcome = new Outcome(call, !calls.isEmpty());
+            calls.add(call);
+            running++;
+            requests.incrementAndGet();
+            long start = System.currentTimeMillis();
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    outcome.error = e;
+                    arrive(outcome);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    requestLatency.record(System.currentTimeMillis() - start);
+                    outcome.response = response;
+                    arrive(outcome);
+                }
+            });
+            return this;
+        }
+
+        private void arrive(Outcome outcome) {
+            synchronized (this) {
+                if (!settled) {
+                    arrived.add(outcome);
+                    return;
+                }
+            }
+            if (outcome.response != null) outcome.response.close();
+        }
+
+        // The next answer, or null if none came within timeoutMillis (-1 waits as long as it takes)
+        Outcome next(long timeoutMillis) throws InterruptedIOException {
+            try {
+                Outcome outcome = timeoutMillis < 0 ? arrived.take() : arrived.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (outcome != null) running--;
+                return outcome;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                settle(null);
+                throw new InterruptedIOException("Interrupted while waiting for a response");
+            }
+        }
+
+        int running() {
+            return running;
+        }
+
+        boolean usable(Outcome outcome) {
+            return outcome.response != null && !isRetryable(outcome.response.code());
+        }
+
+        void settle(Outcome winner) {
+            synchronized (this) {
+                settled = true;
+            }
+            for (Call call : calls) {
+                if (winner == null || call != winner.call) call.cancel(); // The winner's body hasn't been read yet
+            }
+            Outcome leftover;
+            while ((leftover = arrived.poll()) != null) {
+                if (leftover != winner && leftover.response != null) leftover.response.close();
+            }
+        }
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long retries() {
+        return retries.get();
+    }
+
+    public long hedges() {
+        return hedges.get();
+    }
+
+    public long hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    // Lookups that ran out of attempts (not counting ones the breaker refused outright)
+    public long failures() {
+        return failures.get();
+    }
+
+    public LatencyStats requestLatency() {
+        return requestLatency;
+    }
+
+    public LatencyStats lookupLatency() {
+        return lookupLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "ResilientGet: " + lookupLatency.count() + " lookups, " + requests() + " requests, " + retries() + " retries, "
+                + hedges() + " hedges (" + hedgesWon() + " won), " + failures() + " gave up; " + breaker
+                + "; per request " + requestLatency + "; per lookup " + lookupLatency;
+    }
+}
@@ -1,7 +1,7 @@
 // --- RESULT ACTIVITY ---
 // This is the final pit stop before a product gets officially logged in your inventory.
 // It takes whatever came from the barcode scan or manual entry and shows it nicely:
-// name, size, and a picture if we got one from the API.
+// name, size, and a picture if we got one from the API (straight out of ProductCache, no second lookup).
 // Users then pick a storage location and hit save—easy peasy.
 // If the product name came in as "Unknown Product" (thanks, Joe Louis),
 // the app politely asks the user to give it a proper name.
@@ -9,6 +9,7 @@
 package com.example.sims;
 
 import android.app.AlertDialog;
+import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -27,57 +28,50 @@ import java.util.ArrayList;
 
 public class ResultActivity extends AppCompatActivity {
 
+    private TextView productNameView, quantityView;
+    private ImageView productImageView;
+    private String barcode;
+    private String quantity = "Unknown Size"; // Until the product shows up
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_result);
 
         // Hooking up the UI components
-        TextView productNameView = findViewById(R.id.productName);
-        TextView quantityView = findViewById(R.id.productQuantity);
-        ImageView productImageView = findViewById(R.id.productImage);
+        productNameView = findViewById(R.id.productName);
+        quantityView = findViewById(R.id.productQuantity);
+        productImageView = findViewById(R.id.productImage);
         Spinner locationSpinner = findViewById(R.id.storageSpinner);
         Button addToStorageButton = findViewById(R.id.addToStorageButton);
 
-        // Grab data passed from MainActivity
-        String productName = getIntent().getStringExtra("productName");
-        String quantity = getIntent().getStringExtra("quantity");
-        String imageUrl = getIntent().getStringExtra("imageUrl");
-        String barcode = getIntent().getStringExtra("barcode");
-
-        /*
-            If OpenFoodFacts failed us and gave a blank product name,
-            prompt the user to type in a name manually.
-            This keeps the inventory clean and meaningful.
-        */
-        if ("Unknown Product".equals(productName)) {
-            AlertDialog.Builder builder = new AlertDialog.Builder(this);
-            builder.setTitle("Product not recognized");
-
-            final EditText input = new EditText(this);
-            input.setHint("Enter custom name");
-            builder.setView(input);
+        // MainActivity only sends the barcode. The product itself is waiting in ProductCache (it was just looked up).
+        barcode = getIntent().getStringExtra("barcode");
+        Product scanned = ProductCache.get(this).peek(barcode);
+        if (scanned != null) {
+            show(scanned);
+        } else {
+            // Not in memory any more (the app got restarted under us, say), so take the usual route: disk, then the API
+            OpenFoodApiHelper.fetchProduct(this, barcode, new OpenFoodApiHelper.ProductDetailsCallback() {
+                @Override
+                public void onProduct(Product product) {
+                    runOnUiThread(() -> show(product));
+                }
 
-            builder.setPositiveButton("Save", (dialog, which) -> {
-                String newName = input.getText().toString().trim();
-                if (!newName.isEmpty()) {
-                    productNameView.setText(newName);
-                } else {
-                    productNameView.setText("Unnamed Item");
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> show(null));
                 }
             });
-
-            builder.setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss());
-            builder.show();
-        } else {
-            productNameView.setText(productName);
         }
 
-        // Display quantity and image (if available)
-        quantityView.setText(quantity);
-        if (imageUrl != null && !imageUrl.isEmpty()) {
-            Glide.with(this).load(imageUrl).into(productImageView);
-        }
+        // Same barcode, same cached product, so the details come up without another trip to the API
+        Button viewDetailsButton = findViewById(R.id.viewDetailsButton);
+        viewDetailsButton.setOnClickListener(v -> {
+            Intent intent = new Intent(ResultActivity.this, ItemDetailActivity.class);
+            intent.putExtra("barcode", barcode);
+            startActivity(intent);
+        });
 
         /*
             TEMPORARY: Hardcoded storage locations for testing/demo purposes.
@@ -111,4 +105,52 @@ public class ResultActivity extends AppCompatActivity {
             }
         });
     }
+
+    // Fills in the name, size and picture. null means the lookup failed, which gets the same treatment as an unnamed product.
+    private void show(Product product) {
+        String productName = product != null ? product.name : "Unknown Product";
+        quantity = product != null && product.quantity != null ? product.quantity : "Unknown Size";
+        String imageUrl = product != null ? product.imageUrl : null;
+
+        /*
+            If OpenFoodFacts failed us and gave a blank product name,
+            prompt the user to type in a name manually.
+            This keeps the inventory clean and meaningful.
+        */
+        if ("Unknown Product".equals(productName)) {
+            AlertDialog.Builder builder = new AlertDialog.Builder(this);
+            builder.setTitle("Product not recognized");
+
+            final EditText input = new EditText(this);
+            input.setHint("Enter custom name");
+            builder.setView(input);
+
+            builder.setPositiveButton("Save", (dialog, which) -> {
+                String newName = input.getText().toString().trim();
+                if (!newName.isEmpty()) {
+                    productNameView.setText(newName);
+                } else {
+                    productNameView.setText("Unnamed Item");
+                }
+            });
+
+            builder.setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss());
+            builder.show();
+        } else {
+            productNameView.setText(productName);
+        }
+
+        // Display quantity and image (if available)
+        quantityView.setText(quantity);
+        if (imageUrl != null && !imageUrl.isEmpty()) {
+            Glide.with(this).load(imageUrl).into(productImageView);
+        }
+    }
+
+    // Make sure any edits made on this screen are actually on disk before we leave it
+    @Override
+    protected void onPause() {
+        super.onPause();
+        InventoryStores.get(this).flush();
+    }
 }
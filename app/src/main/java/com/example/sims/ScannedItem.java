@@ -0,0 +1,19 @@
+// --- SCANNED ITEM ---
+// One beep at the scanner: what came up for the barcode, before it's been put on a shelf.
+// A bulk session (unloading a delivery, doing a stock count) collects a pile of these and saves them in one go
+// with JsonStorageHelper.addItemsToStorage, instead of one save per beep.
+
+package com.example.sims;
+
+public class ScannedItem {
+
+    public final String name;
+    public final String quantity; // Package size, e.g. "355 mL"
+    public final String barcode;  // null for manual entries
+
+    public ScannedItem(String name, String quantity, String barcode) {
+        this.name = name;
+        this.quantity = quantity;
+        this.barcode = barcode;
+    }
+}
@@ -0,0 +1,93 @@
+// --- SHARD MANIFEST ---
+// The inventory is stored as one small file per location ("shards") so changing a can on the smallest shelf
+// doesn't rewrite every other shelf. This is the table of contents that ties them together:
+// which locations exist, in what order, and which shard file holds each one's items.
+//
+// Each entry also carries the shard's SHA-256, so the manifest's own hash identifies the whole inventory.
+// That's what the mutation log checkpoints against. Shard files are never overwritten in place:
+// a changed location gets a brand new file, and the manifest is what switches over to it.
+// If we crash halfway, the old manifest still points at the old, untouched files.
+//
+// Layout: [magic "SIMM"][version][next file number][entry count], then per entry:
+//   [location name][shard file name][item count][hash length][hash]
+
+package com.example.sims;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ShardManifest {
+
+    private static final int MAGIC = 0x53494D4D; // "SIMM"
+    private static final int VERSION = 1;
+
+    // One location's row in the table of contents
+    public static final class Entry {
+        public final String location;
+        public final String fileName;
+        public final int itemCount;
+        public final byte[] hash;
+
+        public Entry(String location, String fileName, int itemCount, byte[] hash) {
+            this.location = location;
+            this.fileName = fileName;
+            this.itemCount = itemCount;
+            this.hash = hash;
+        }
+    }
+
+    public final List<Entry> entries;
+    public final long nextFileNumber; // Shard files are numbered so a new one never lands on top of a live one
+
+    public ShardManifest(List<Entry> entries, long nextFileNumber) {
+        this.entries = entries;
+        this.nextFileNumber = nextFileNumber;
+    }
+
+    public static ShardManifest read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a shard manifest");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported manifest version " + version);
+
+            long nextFileNumber = in.readLong();
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String location = in.readUTF();
+                String fileName = in.readUTF();
+                int itemCount = in.readInt();
+                byte[] hash = new byte[in.readUnsignedShort()];
+                in.readFully(hash);
+                entries.add(new Entry(location, fileName, itemCount, hash));
+            }
+            return new ShardManifest(entries, nextFileNumber);
+        }
+    }
+
+    // The exact bytes that go on disk. The caller hashes these for the log checkpoint, then writes them atomically.
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(nextFileNumber);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeUTF(entry.location);
+            out.writeUTF(entry.fileName);
+            out.writeInt(entry.itemCount);
+            out.writeShort(entry.hash.length);
+            out.write(entry.hash);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
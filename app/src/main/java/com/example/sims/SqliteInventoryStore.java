@@ -0,0 +1,531 @@
+// --- SQLITE INVENTORY STORE ---
+// The inventory in a real database instead of one big file.
+// For a kitchen pantry the file store is plenty, but a site with tens of thousands of items pays for the whole
+// snapshot every time it gets rewritten. Here a scan is one indexed UPDATE (or one INSERT), no matter how big things get.
+//
+// Two tables: locations, and items that point at their location. Lists are ordered by row id, which only ever goes up
+// (AUTOINCREMENT), so "position 3 on the shelf" means the same thing it does in the file store: the 4th item added.
+// Indexes: (location, barcode) for scans and the "already have one?" lookup, name for the adjust-quantity dialog,
+// location on its own so listing a shelf in order doesn't need a sort, and barcode on its own for "where is this?" across every shelf.
+
+package com.example.sims;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SqliteInventoryStore extends SQLiteOpenHelper implements InventoryStore {
+
+    private static final String DATABASE_NAME = "inventory.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String ITEM_COLUMNS = "_id, name, quantity, barcode, stock";
+
+    private static SqliteInventoryStore instance;
+
+    private SqliteInventoryStore(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    // A store on its own database. null is an in-memory one, which is what tests use to stand two phones side by side.
+    SqliteInventoryStore(Context context, String databaseName) {
+        super(context.getApplicationContext(), databaseName, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true); // Readers don't wait on a scan being written
+    }
+
+    public static synchronized SqliteInventoryStore get(Context context) {
+        if (instance == null) {
+            instance = new SqliteInventoryStore(context);
+        }
+        return instance;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true); // So removing a location takes its items with it
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE locations ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "name TEXT NOT NULL UNIQUE)");
+        db.execSQL("CREATE TABLE items ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_id INTEGER NOT NULL REFERENCES locations(_id) ON DELETE CASCADE, "
+                + "name TEXT, "
+                + "quantity TEXT, "
+                + "barcode TEXT, "
+                + "stock INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX items_location ON items(location_id)");
+        db.execSQL("CREATE INDEX items_location_barcode ON items(location_id, barcode)");
+        db.execSQL("CREATE INDEX items_name ON items(name COLLATE NOCASE)");
+        db.execSQL("CREATE INDEX items_barcode ON items(barcode)");
+    }
+
+    // Schema changes go here, one step per version, never a drop-and-recreate (that would lose the inventory)
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL("CREATE INDEX items_barcode ON items(barcode)");
+        }
+    }
+
+    // --- LOCATIONS ---
+
+    @Override
+    public List<String> getLocationNames() {
+        List<String> names = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT name FROM locations ORDER BY _id", null)) {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public boolean hasLocation(String location) {
+        return locationId(getReadableDatabase(), location) != -1;
+    }
+
+    @Override
+    public boolean addLocation(String location) {
+        ContentValues values = new ContentValues();
+        values.put("name", location);
+        return getWritableDatabase().insertWithOnConflict("locations", null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1;
+    }
+
+    @Override
+    public void removeLocation(String location) {
+        getWritableDatabase().delete("locations", "name = ?", new String[]{location});
+    }
+
+    /*
+        Renaming puts the location at the end of the list, same as the file store always has.
+        That means a new row (ids only go up), so we create it, move the items over, and drop the old one.
+     */
+    @Override
+    public boolean renameLocation(String oldName, String newName) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (locationId(db, newName) != -1) return false;
+            long oldId = locationId(db, oldName);
+            long newId = insertLocation(db, newName);
+            if (oldId != -1) {
+                db.execSQL("UPDATE items SET location_id = ? WHERE location_id = ?", new Object[]{newId, oldId});
+                db.delete("locations", "_id = ?", new String[]{String.valueOf(oldId)});
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // --- ITEMS ---
+
+    @Override
+    public List<InventoryItem> getItems(String location) {
+        List<InventoryItem> items = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT " + ITEM_COLUMNS + " FROM items WHERE location_id = "
+                        + "(SELECT _id FROM locations WHERE name = ?) ORDER BY _id",
+                new String[]{location})) {
+            while (cursor.moveToNext()) {
+                items.add(readItem(cursor));
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public InventoryItem getItem(String location, int position) {
+        if (position < 0) return null;
+        try (Cursor cursor = itemAt(getReadableDatabase(), location, position)) {
+            return cursor.moveToFirst() ? readItem(cursor) : null;
+        }
+    }
+
+    @Override
+    public InventoryItem findByBarcode(String location, String barcode) {
+        if (barcode == null) return null;
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT " + ITEM_COLUMNS + " FROM items WHERE location_id = "
+                        + "(SELECT _id FROM locations WHERE name = ?) AND barcode = ? ORDER BY _id LIMIT 1",
+                new String[]{location, barcode})) {
+            return cursor.moveToFirst() ? readItem(cursor) : null;
+        }
+    }
+
+    // One index lookup on barcode. Reports the first line per location, same as the file store.
+    @Override
+    public List<ItemLocation> whereIs(String barcode) {
+        List<ItemLocation> found = new ArrayList<>();
+        if (barcode == null) return found;
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT l.name, i.name, i.stock, MIN(i._id) FROM items i JOIN locations l ON l._id = i.location_id "
+                        + "WHERE i.barcode = ? GROUP BY i.location_id ORDER BY l._id",
+                new String[]{barcode})) {
+            while (cursor.moveToNext()) {
+                found.add(new ItemLocation(cursor.getString(0), cursor.getString(1), cursor.getInt(2)));
+            }
+        }
+        return found;
+    }
+
+    // One indexed lookup and one UPDATE (or INSERT) per scan, whatever the size of the inventory
+    @Override
+    public void addItem(String location, String name, String quantity, String barcode) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long locationId = locationId(db, location);
+            if (locationId == -1) locationId = insertLocation(db, location);
+            addOrIncrement(db, locationId, name, quantity, barcode, 1);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public boolean setStockQuantity(String location, String name, int stockQuantity) {
+        SQLiteStatement update = getWritableDatabase().compileStatement(
+                "UPDATE items SET stock = ? WHERE _id = (SELECT _id FROM items WHERE location_id = "
+                        + "(SELECT _id FROM locations WHERE name = ?) AND name = ? COLLATE NOCASE ORDER BY _id LIMIT 1)");
+        try {
+            update.bindLong(1, stockQuantity);
+            update.bindString(2, location);
+            bindNullable(update, 3, name);
+            return update.executeUpdateDelete() > 0;
+        } finally {
+            update.close();
+        }
+    }
+
+    // The item id is the row id, so this is a primary-key update
+    @Override
+    public boolean setStockQuantityById(String location, long itemId, int stockQuantity) {
+        SQLiteStatement update = getWritableDatabase().compileStatement(
+                "UPDATE items SET stock = ? WHERE _id = ? AND location_id = (SELECT _id FROM locations WHERE name = ?)");
+        try {
+            update.bindLong(1, stockQuantity);
+            update.bindLong(2, itemId);
+            update.bindString(3, location);
+            return update.executeUpdateDelete() > 0;
+        } finally {
+            update.close();
+        }
+    }
+
+    @Override
+    public boolean renameItem(String location, int position, String newName) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = itemIdAt(db, location, position);
+            if (id == -1) return false;
+            ContentValues values = new ContentValues();
+            values.put("name", newName);
+            db.update("items", values, "_id = ?", new String[]{String.valueOf(id)});
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public boolean deleteItem(String location, int position) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = itemIdAt(db, location, position);
+            if (id == -1) return false;
+            db.delete("items", "_id = ?", new String[]{String.valueOf(id)});
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The moved item goes to the end of the destination (a fresh row), or onto the count of a matching barcode there
+    @Override
+    public boolean moveItem(String fromLocation, int position, String toLocation) {
+        if (fromLocation.equals(toLocation) || position < 0) return false;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (!moveItem(db, fromLocation, position, toLocation)) return false;
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // --- BULK ---
+
+    // Worked out fresh each time (one indexed read of the location). Cheap next to the sync it's used for.
+    @Override
+    public LocationDigest locationDigest(String location) {
+        return hasLocation(location) ? LocationDigest.of(getItems(location)) : null;
+    }
+
+    /*
+        The whole batch is one transaction, so it's one commit (one fsync) whether it has 2 steps or 2000.
+        Steps that don't apply are skipped without rolling back the rest, same as the file store.
+     */
+    @Override
+    public int applyBatch(InventoryBatch batch) {
+        int applied = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (InventoryMutation m : batch.mutations()) {
+                switch (m.type) {
+                    case InventoryMutation.ADD_ITEM:
+                    case InventoryMutation.ADD_ITEMS:
+                        long locationId = locationId(db, m.location);
+                        if (locationId == -1) locationId = insertLocation(db, m.location);
+                        addOrIncrement(db, locationId, m.name, m.quantity, m.barcode, m.type == InventoryMutation.ADD_ITEM ? 1 : m.value);
+                        applied++;
+                        break;
+
+                    case InventoryMutation.SET_QUANTITY_BY_ID:
+                        if (setStockQuantityById(m.location, m.itemId, m.value)) applied++;
+                        break;
+
+                    case InventoryMutation.MOVE_ITEM:
+                        if (!m.location.equals(m.target) && moveItem(db, m.location, m.position, m.target)) applied++;
+                        break;
+
+                    default:
+                        Log.e("SqliteInventory", "Batch step type " + m.type + " isn't supported, skipping it");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return applied;
+    }
+
+    // One pass over a join, so it's one query no matter how many locations there are
+    @Override
+    public LinkedHashMap<String, List<InventoryItem>> snapshot() {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT l.name, i._id, i.name, i.quantity, i.barcode, i.stock "
+                        + "FROM locations l LEFT JOIN items i ON i.location_id = l._id "
+                        + "ORDER BY l._id, i._id", null)) {
+            while (cursor.moveToNext()) {
+                List<InventoryItem> items = inventory.get(cursor.getString(0));
+                if (items == null) {
+                    items = new ArrayList<>();
+                    inventory.put(cursor.getString(0), items);
+                }
+                if (!cursor.isNull(1)) { // An empty location still shows up once, with no item columns
+                    InventoryItem item = new InventoryItem(cursor.getString(2), cursor.getString(3), cursor.getString(4), cursor.getInt(5));
+                    item.setId(cursor.getLong(1));
+                    items.add(item);
+                }
+            }
+        }
+        return inventory;
+    }
+
+    @Override
+    public JSONObject toJson() throws JSONException {
+        return JsonStorageHelper.toJson(snapshot());
+    }
+
+    // Everything out, everything in, in one transaction. Either the whole new inventory lands or none of it does.
+    @Override
+    public boolean replaceAll(Map<String, List<InventoryItem>> inventory) {
+        SQLiteDatabase db = getWritableDatabase();
+        try {
+            db.beginTransaction();
+            try {
+                db.delete("items", null, null);
+                db.delete("locations", null, null);
+                insertAll(db, inventory);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLiteException e) {
+            // Disk full and the like. The transaction rolled back, so the old inventory is all still there.
+            Log.e("SqliteInventory", "Could not replace the inventory", e);
+            return false;
+        }
+    }
+
+    // The digest check and the swap share one transaction, so nothing can change in between
+    @Override
+    public boolean replaceLocations(Map<String, LocationDigest> expected, Map<String, List<InventoryItem>> replacements) {
+        SQLiteDatabase db = getWritableDatabase();
+        try {
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, LocationDigest> entry : expected.entrySet()) {
+                    LocationDigest now = locationDigest(entry.getKey());
+                    boolean same = entry.getValue() == null ? now == null : entry.getValue().sameAs(now);
+                    if (!same) return false; // endTransaction without setTransactionSuccessful rolls back (nothing's been written yet anyway)
+                }
+
+                for (Map.Entry<String, List<InventoryItem>> entry : replacements.entrySet()) {
+                    LocationDigest current = locationDigest(entry.getKey());
+                    if (current != null && current.sameAs(LocationDigest.of(entry.getValue()))) continue;
+                    long locationId = locationId(db, entry.getKey());
+                    if (locationId == -1) {
+                        locationId = insertLocation(db, entry.getKey());
+                    } else {
+                        db.delete("items", "location_id = ?", new String[]{String.valueOf(locationId)}); // Same row, so it keeps its place in the list
+                    }
+                    insertItems(db, locationId, entry.getValue());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (SQLiteException e) {
+            // Rolled back, so it's a refusal like any other: the caller keeps its old house count to match
+            Log.e("SqliteInventory", "Could not save the synced locations", e);
+            return false;
+        }
+    }
+
+    // Every change is committed by the time its method returns, so there's never anything waiting to be saved
+    @Override
+    public void flush() {
+    }
+
+    // --- Helpers ---
+
+    private static void insertAll(SQLiteDatabase db, Map<String, List<InventoryItem>> inventory) {
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            insertItems(db, insertLocation(db, entry.getKey()), entry.getValue());
+        }
+    }
+
+    private static void insertItems(SQLiteDatabase db, long locationId, List<InventoryItem> items) {
+        SQLiteStatement insertItem = db.compileStatement(
+                "INSERT INTO items (location_id, name, quantity, barcode, stock) VALUES (?, ?, ?, ?, ?)");
+        try {
+            for (InventoryItem item : items) {
+                insertItem.clearBindings();
+                insertItem.bindLong(1, locationId);
+                bindNullable(insertItem, 2, item.getName());
+                bindNullable(insertItem, 3, item.getQuantity());
+                bindNullable(insertItem, 4, item.getBarcode());
+                insertItem.bindLong(5, item.getStockQuantity());
+                insertItem.executeInsert();
+            }
+        } finally {
+            insertItem.close();
+        }
+    }
+
+    // Same barcode already on the shelf? Add to its count. Otherwise it's a new row at the end.
+    // The move itself, without a transaction of its own (the caller has one open)
+    private static boolean moveItem(SQLiteDatabase db, String fromLocation, int position, String toLocation) {
+        InventoryItem moved;
+        long id;
+        try (Cursor cursor = itemAt(db, fromLocation, position)) {
+            if (!cursor.moveToFirst()) return false;
+            id = cursor.getLong(0);
+            moved = readItem(cursor);
+        }
+        long destinationId = locationId(db, toLocation);
+        if (destinationId == -1) destinationId = insertLocation(db, toLocation);
+
+        db.delete("items", "_id = ?", new String[]{String.valueOf(id)});
+        addOrIncrement(db, destinationId, moved.getName(), moved.getQuantity(), moved.getBarcode(), moved.getStockQuantity());
+        return true;
+    }
+
+    private static void addOrIncrement(SQLiteDatabase db, long locationId, String name, String quantity, String barcode, int stock) {
+        if (barcode != null) {
+            SQLiteStatement bump = db.compileStatement(
+                    "UPDATE items SET stock = stock + ? WHERE _id = "
+                            + "(SELECT _id FROM items WHERE location_id = ? AND barcode = ? ORDER BY _id LIMIT 1)");
+            try {
+                bump.bindLong(1, stock);
+                bump.bindLong(2, locationId);
+                bump.bindString(3, barcode);
+                if (bump.executeUpdateDelete() > 0) return;
+            } finally {
+                bump.close();
+            }
+        }
+        ContentValues values = new ContentValues();
+        values.put("location_id", locationId);
+        values.put("name", name);
+        values.put("quantity", quantity);
+        values.put("barcode", barcode);
+        values.put("stock", stock);
+        db.insert("items", null, values);
+    }
+
+    private static long insertLocation(SQLiteDatabase db, String location) {
+        ContentValues values = new ContentValues();
+        values.put("name", location);
+        return db.insert("locations", null, values);
+    }
+
+    // -1 if there's no such location
+    private static long locationId(SQLiteDatabase db, String location) {
+        try (Cursor cursor = db.rawQuery("SELECT _id FROM locations WHERE name = ?", new String[]{location})) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    // The item at a list position. The location index hands rows back in id order, so the OFFSET doesn't need a sort.
+    private static Cursor itemAt(SQLiteDatabase db, String location, int position) {
+        return db.rawQuery(
+                "SELECT " + ITEM_COLUMNS + " FROM items WHERE location_id = "
+                        + "(SELECT _id FROM locations WHERE name = ?) ORDER BY _id LIMIT 1 OFFSET ?",
+                new String[]{location, String.valueOf(position)});
+    }
+
+    private static long itemIdAt(SQLiteDatabase db, String location, int position) {
+        if (position < 0) return -1;
+        try (Cursor cursor = itemAt(db, location, position)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    // Expects the columns in ITEM_COLUMNS order. The row id doubles as the item id.
+    private static InventoryItem readItem(Cursor cursor) {
+        InventoryItem item = new InventoryItem(cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getInt(4));
+        item.setId(cursor.getLong(0));
+        return item;
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -17,17 +17,13 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 
 public class StorageActivity extends AppCompatActivity {
 
     private ArrayList<String> storageList = new ArrayList<>(); // Visual list of location names
     private ArrayAdapter<String> adapter;
-    private JSONObject jsonObject; // The actual saved JSON file we'll read/write to
+    private InventoryStore repository; // The shared inventory (it handles saving, whichever store is in use)
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -43,22 +39,10 @@ public class StorageActivity extends AppCompatActivity {
         adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, storageList);
         storageListView.setAdapter(adapter);
 
-        // Pull locations from local storage and load into ListView
-        jsonObject = JsonStorageHelper.readJson(this);
-        if (jsonObject != null) {
-            JSONArray names = jsonObject.names();
-            if (names != null) {
-                for (int i = 0; i < names.length(); i++) {
-                    try {
-                        String key = names.getString(i);
-                        storageList.add(key);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                }
-                adapter.notifyDataSetChanged();
-            }
-        }
+        // Pull locations from the shared inventory and load into ListView
+        repository = InventoryStores.get(this);
+        storageList.addAll(repository.getLocationNames());
+        adapter.notifyDataSetChanged();
 
         /*
             When user clicks the + button:
@@ -68,17 +52,11 @@ public class StorageActivity extends AppCompatActivity {
         addStorageButton.setOnClickListener(v -> {
             String locationName = storageNameInput.getText().toString().trim();
             if (!locationName.isEmpty()) {
-                if (!storageList.contains(locationName)) {
-                    try {
-                        jsonObject.put(locationName, new JSONArray());
-                        JsonStorageHelper.writeJson(this, jsonObject);
-                        storageList.add(locationName);
-                        adapter.notifyDataSetChanged();
-                        storageNameInput.setText("");
-                        Toast.makeText(this, "Location added: " + locationName, Toast.LENGTH_SHORT).show(); // This sneaky little guy has to stay on its own line so the AlertDialog actually pops up. It finalizes the builder chain and displays the dialog.
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
+                if (!storageList.contains(locationName) && repository.addLocation(locationName)) {
+                    storageList.add(locationName);
+                    adapter.notifyDataSetChanged();
+                    storageNameInput.setText("");
+                    Toast.makeText(this, "Location added: " + locationName, Toast.LENGTH_SHORT).show(); // This sneaky little guy has to stay on its own line so the AlertDialog actually pops up. It finalizes the builder chain and displays the dialog.
                 } else {
                     Toast.makeText(this, "Location already exists", Toast.LENGTH_SHORT).show(); // This sneaky little guy has to stay on its own line so the AlertDialog actually pops up. It finalizes the builder chain and displays the dialog.
                 }
@@ -110,8 +88,7 @@ public class StorageActivity extends AppCompatActivity {
                                 break;
                             case 2:
                                 storageList.remove(position);
-                                jsonObject.remove(selectedLocation);
-                                JsonStorageHelper.writeJson(this, jsonObject);
+                                repository.removeLocation(selectedLocation);
                                 adapter.notifyDataSetChanged();
                                 Toast.makeText(this, "Deleted: " + selectedLocation, Toast.LENGTH_SHORT).show(); // This sneaky little guy has to stay on its own line so the AlertDialog actually pops up. It finalizes the builder chain and displays the dialog.
                                 break;
@@ -121,6 +98,13 @@ public class StorageActivity extends AppCompatActivity {
         });
     }
 
+    // Make sure any edits made on this screen are actually on disk before we leave it
+    @Override
+    protected void onPause() {
+        super.onPause();
+        repository.flush();
+    }
+
     // Called when the user chooses to rename a location
     private void showRenameDialog(int position) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -135,17 +119,12 @@ public class StorageActivity extends AppCompatActivity {
             String oldName = storageList.get(position);
 
             if (!newName.isEmpty() && !newName.equals(oldName)) {
-                try {
-                    JSONArray contents = jsonObject.optJSONArray(oldName);
-                    jsonObject.remove(oldName);
-                    jsonObject.put(newName, contents != null ? contents : new JSONArray());
-                    JsonStorageHelper.writeJson(this, jsonObject);
-
+                if (repository.renameLocation(oldName, newName)) {
                     storageList.set(position, newName);
                     adapter.notifyDataSetChanged();
                     Toast.makeText(this, "Renamed to: " + newName, Toast.LENGTH_SHORT).show(); // This sneaky little guy has to stay on its own line so the AlertDialog actually pops up. It finalizes the builder chain and displays the dialog.
-                } catch (JSONException e) {
-                    e.printStackTrace();
+                } else {
+                    Toast.makeText(this, "Location already exists", Toast.LENGTH_SHORT).show();
                 }
             }
         });
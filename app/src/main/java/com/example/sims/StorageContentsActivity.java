@@ -2,7 +2,7 @@
 // This class handles everything about viewing and interacting with a single storage location's items.
 // Think of it like opening your pantry and seeing all your stuff. This is the screen that shows you what's inside.
 // It supports showing items, viewing details (if they have a barcode), and editing: renaming, deleting, and changing quantity.
-// It's tied into a JSON-based system, so it pulls and saves your data from a local file.
+// It's tied into a JSON-based system, so it pulls and saves your data from a local file (through the shared InventoryStore).
 
 package com.example.sims;
 
@@ -18,17 +18,17 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
+import java.util.List;
 
 public class StorageContentsActivity extends AppCompatActivity {
 
     // This is the list of items we're showing the user, like the lines you see in the ListView.
     private ArrayList<String> itemList;
 
+    // The id of the item on each line, same order as itemList. Lets the edit dialogs point at the exact item, not just a name.
+    private final ArrayList<Long> itemIds = new ArrayList<>();
+
     // This is what tells Android how to turn our list into something it can draw on screen.
     private ArrayAdapter<String> adapter;
 
@@ -59,24 +59,17 @@ public class StorageContentsActivity extends AppCompatActivity {
 
         // NORMAL CLICK: If the user taps on an item, try to open a detail page using its barcode
         contentsList.setOnItemClickListener((parent, view, position, id) -> {
-            JSONObject json = JsonStorageHelper.readJson(this);
-            if (json != null) {
-                try {
-                    JSONArray items = json.getJSONArray(locationName);
-                    JSONObject item = items.getJSONObject(position);
-
-                    // Try to get the barcode. If we have one, open the detail screen. If not, warn the user.
-                    String barcode = item.optString("barcode", null);
-                    if (barcode != null && !barcode.isEmpty()) {
-                        Intent intent = new Intent(StorageContentsActivity.this, ItemDetailActivity.class);
-                        intent.putExtra("barcode", barcode);
-                        startActivity(intent);
-                    } else {
-                        Toast.makeText(this, "No barcode available for this item", Toast.LENGTH_SHORT).show();
-                    }
-
-                } catch (JSONException e) {
-                    e.printStackTrace();
+            // Straight from memory, no file parsing on every tap
+            InventoryItem item = InventoryStores.get(this).getItem(locationName, position);
+            if (item != null) {
+                // Try to get the barcode. If we have one, open the detail screen. If not, warn the user.
+                String barcode = item.getBarcode();
+                if (barcode != null && !barcode.isEmpty()) {
+                    Intent intent = new Intent(StorageContentsActivity.this, ItemDetailActivity.class);
+                    intent.putExtra("barcode", barcode);
+                    startActivity(intent);
+                } else {
+                    Toast.makeText(this, "No barcode available for this item", Toast.LENGTH_SHORT).show();
                 }
             }
         });
@@ -106,36 +99,37 @@ public class StorageContentsActivity extends AppCompatActivity {
         });
     }
 
+    // Make sure any edits made on this screen are actually on disk before we leave it
+    @Override
+    protected void onPause() {
+        super.onPause();
+        InventoryStores.get(this).flush();
+    }
+
     // This function loads the list from the JSON file based on the current storage location
     // Think of this like grabbing all the stuff from your freezer and laying it out so you can look at it
     private void loadItemsFromJson() {
         itemList.clear();
-        JSONObject json = JsonStorageHelper.readJson(this);
-        if (json != null && json.has(locationName)) {
-            try {
-                JSONArray items = json.getJSONArray(locationName);
-                for (int i = 0; i < items.length(); i++) { // Loop through each item one at a time
-                    JSONObject item = items.getJSONObject(i);
-                    String name = item.optString("name", "Unnamed");
-                    String quantity = item.optString("quantity", "Unknown Size");
-                    int stockQty = item.optInt("stockQuantity", 1);
-
-                    // We show the user something like "Apples - Qty: 5 (Bag)"
-                    String display = name + " - Qty: " + stockQty + " (" + quantity + ")";
-                    itemList.add(display);
-                }
-                adapter.notifyDataSetChanged(); // Tell the screen to update with our new info
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+        itemIds.clear();
+        // Comes from the shared in-memory inventory, the file was only read once when the app started
+        List<InventoryItem> items = InventoryStores.get(this).getItems(locationName);
+        for (InventoryItem item : items) { // Loop through each item one at a time
+            String name = item.getName() != null ? item.getName() : "Unnamed";
+            String quantity = item.getQuantity() != null ? item.getQuantity() : "Unknown Size";
+            int stockQty = item.getStockQuantity();
+
+            // We show the user something like "Apples - Qty: 5 (Bag)"
+            String display = name + " - Qty: " + stockQty + " (" + quantity + ")";
+            itemList.add(display);
+            itemIds.add(item.getId());
         }
+        adapter.notifyDataSetChanged(); // Tell the screen to update with our new info
     }
 
     // Shows a dialog box asking the user to enter a new quantity (e.g., "how many do you have now?")
     // This method lets us *change* the number without deleting and re-adding the item
     private void showAdjustQuantityDialog(int position) {
-        String display = itemList.get(position);
-        String name = display.split(" - Qty: ")[0];
+        long itemId = itemIds.get(position); // Exactly the item that was tapped, even if another one has the same name
 
         // We use 'final' here because the variable is used inside the popup box.
         // 'final' means it can't be reassigned later. You can't change it once it's been set.
@@ -152,18 +146,13 @@ public class StorageContentsActivity extends AppCompatActivity {
                     try {
                         int newQty = Integer.parseInt(newQtyText); // This turns the input from text to a number
 
-                        JSONObject json = JsonStorageHelper.readJson(this);
-                        JSONArray items = json.getJSONArray(locationName);
-                        for (int i = 0; i < items.length(); i++) {
-                            JSONObject item = items.getJSONObject(i);
-                            if (item.getString("name").equalsIgnoreCase(name)) {
-                                item.put("stockQuantity", newQty); // Save the new count back into the file
-                                break;
-                            }
+                        // Save the new count (the repository writes it to the file in the background)
+                        if (!InventoryStores.get(this).setStockQuantityById(locationName, itemId, newQty)) {
+                            Toast.makeText(this, "Failed to update quantity.", Toast.LENGTH_SHORT).show();
+                            return;
                         }
-                        JsonStorageHelper.writeJson(this, json);
                         loadItemsFromJson(); // Refresh the screen
-                    } catch (JSONException | NumberFormatException e) {
+                    } catch (NumberFormatException e) {
                         Toast.makeText(this, "Failed to update quantity.", Toast.LENGTH_SHORT).show();
                     }
                 })
@@ -187,18 +176,9 @@ public class StorageContentsActivity extends AppCompatActivity {
         builder.setPositiveButton("Save", (dialog, which) -> {
             String newName = input.getText().toString().trim();
             if (!newName.isEmpty()) {
-                JSONObject json = JsonStorageHelper.readJson(this);
-                if (json != null) {
-                    try {
-                        JSONArray items = json.getJSONArray(locationName);
-                        JSONObject item = items.getJSONObject(position);
-                        item.put("name", newName);
-                        JsonStorageHelper.writeJson(this, json);
-                        loadItemsFromJson();
-                        Toast.makeText(this, "Renamed to: " + newName, Toast.LENGTH_SHORT).show();
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
+                if (InventoryStores.get(this).renameItem(locationName, position, newName)) {
+                    loadItemsFromJson();
+                    Toast.makeText(this, "Renamed to: " + newName, Toast.LENGTH_SHORT).show();
                 }
             }
         });
@@ -212,26 +192,11 @@ public class StorageContentsActivity extends AppCompatActivity {
     private void deleteItem(int position) {
         String item = itemList.get(position);
         itemList.remove(position);
+        itemIds.remove(position);
         adapter.notifyDataSetChanged();
 
-        JSONObject json = JsonStorageHelper.readJson(this);
-        if (json != null) {
-            try {
-                JSONArray items = json.getJSONArray(locationName);
-                JSONArray updatedArray = new JSONArray();
-
-                // Rebuild the whole array but skip the one we want to delete
-                for (int i = 0; i < items.length(); i++) {
-                    if (i != position) {
-                        updatedArray.put(items.getJSONObject(i));
-                    }
-                }
-                json.put(locationName, updatedArray);
-                JsonStorageHelper.writeJson(this, json);
-                Toast.makeText(this, "Deleted: " + item, Toast.LENGTH_SHORT).show();
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+        if (InventoryStores.get(this).deleteItem(locationName, position)) {
+            Toast.makeText(this, "Deleted: " + item, Toast.LENGTH_SHORT).show();
         }
     }
 
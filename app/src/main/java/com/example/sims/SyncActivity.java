@@ -2,29 +2,42 @@
 // This is where the inventory gets to go on a little vacation—from your phone to someone else’s.
 // You can export your current stash as a JSON file and share it with anyone using Nearby Share,
 // Bluetooth, or carrier pigeon if they can decode binary. Receiving files also gets handled here,
-// using some safe file-copying and a sync helper to merge it into your local setup.
+// by streaming the file straight into a sync helper that merges it into your local setup.
+// Or skip the file altogether and sync directly with a phone on the same Wi-Fi.
+// It's also where the offline product database gets loaded in from an Open Food Facts export (see OfflineProducts).
 
 package com.example.sims;
 
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import java.io.InputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class SyncActivity extends AppCompatActivity {
 
+    // The system file picker, for choosing an Open Food Facts export to import
+    private final ActivityResultLauncher<String[]> productDatabasePicker =
+            registerForActivityResult(new ActivityResultContracts.OpenDocument(), uri -> {
+                if (uri != null) importProductDatabase(uri);
+            });
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -33,44 +46,65 @@ public class SyncActivity extends AppCompatActivity {
         Button shareButton = findViewById(R.id.shareButton);
 
         // --- EXPORT FUNCTION ---
-        // This chunk handles exporting your inventory to a JSON file you can send to someone else.
-        // Could be used to clone your kitchen's contents or just flex your snack game.
-        shareButton.setOnClickListener(v -> {
+        // Sends the whole inventory as a JSON file (see shareFullInventory below)
+        shareButton.setOnClickListener(v -> shareFullInventory());
+
+        // --- EXPORT CHANGES ---
+        // Same idea, but only what changed since the last sync. A couple of eaten yogurts is a tiny file instead of the whole house.
+        // If we've never synced there's nothing to compare against, so the full inventory goes out instead.
+        Button shareChangesButton = findViewById(R.id.shareChangesButton);
+        shareChangesButton.setOnClickListener(v -> {
+            SyncDelta changes = SyncHelper.changesSinceLastSync(this);
+            if (changes == null) {
+                Toast.makeText(this, "No previous sync to compare against, sharing the full inventory.", Toast.LENGTH_SHORT).show();
+                shareFullInventory();
+                return;
+            }
+            if (changes.isEmpty()) {
+                Toast.makeText(this, "Nothing has changed since the last sync.", Toast.LENGTH_SHORT).show();
+                return;
+            }
             try {
-                // Load the local inventory data (if it exists)
-                JSONObject json = JsonStorageHelper.readJson(this);
-                if (json == null) {
-                    Toast.makeText(this, "No inventory data to share.", Toast.LENGTH_SHORT).show();
-                    return;
+                File outFile = new File(getExternalCacheDir(), "SIMS_changes_export.json");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile))) {
+                    changes.writeTo(out);
                 }
-
-                // Write that data to a temporary file
-                File outFile = new File(getExternalCacheDir(), "SIMS_inventory_export.json");
-                try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                    fos.write(json.toString(4).getBytes()); // Fancy pretty-printed JSON
-                }
-
-                // Generate a URI that Android will allow us to send
-                Uri uri = FileProvider.getUriForFile(
-                        this,
-                        "com.example.sims.fileprovider",
-                        outFile
-                );
-
-                // Trigger the system share panel so user can pick their app of choice
-                Intent shareIntent = new Intent(Intent.ACTION_SEND);
-                shareIntent.setType("application/json");
-                shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
-                shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-
-                startActivity(Intent.createChooser(shareIntent, "Share Inventory")); // This sneaky little guy launches the share menu
-
-            } catch (IOException | JSONException e) {
-                Toast.makeText(this, "Failed to share inventory: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                shareFile(outFile, "Share Changes");
+            } catch (IOException e) {
+                Toast.makeText(this, "Failed to share changes: " + e.getMessage(), Toast.LENGTH_LONG).show();
                 e.printStackTrace();
             }
         });
 
+        // --- PHONE TO PHONE ---
+        // Sync straight with another phone on the same Wi-Fi. One waits (and shows its address and a pairing code),
+        // the other connects to it with that code, so nobody else on the network can sync themselves in.
+        // Only the locations that differ go over the wire, and both phones save at the end or neither does.
+        Button waitForPeerButton = findViewById(R.id.waitForPeerButton);
+        Button connectToPeerButton = findViewById(R.id.connectToPeerButton);
+        EditText peerAddressInput = findViewById(R.id.peerAddressInput);
+        EditText peerCodeInput = findViewById(R.id.peerCodeInput);
+        waitForPeerButton.setOnClickListener(v -> SyncHelper.performPeerSync(this, null, null));
+        connectToPeerButton.setOnClickListener(v -> {
+            String host = peerAddressInput.getText().toString().trim();
+            String code = peerCodeInput.getText().toString().trim();
+            if (host.isEmpty()) {
+                Toast.makeText(this, "Enter the other phone's address first.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (code.isEmpty()) {
+                Toast.makeText(this, "Enter the pairing code shown on the other phone.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            SyncHelper.performPeerSync(this, host, code);
+        });
+
+        // --- OFFLINE PRODUCT DATABASE ---
+        // Pick an Open Food Facts export (the whole world or just our region, JSONL or CSV, .gz is fine too)
+        // and scans get answered from it even with no signal at all.
+        Button importProductsButton = findViewById(R.id.importProductsButton);
+        importProductsButton.setOnClickListener(v -> productDatabasePicker.launch(new String[]{"*/*"}));
+
         // --- IMPORT FUNCTION ---
         // If the app was launched via a file (like from Nearby Share), we pick it up here.
         Uri dataUri = getIntent().getData();
@@ -80,42 +114,60 @@ public class SyncActivity extends AppCompatActivity {
             return;
         }
 
-        try {
-            InputStream inputStream = getContentResolver().openInputStream(dataUri);
+        // The merge reads the shared file straight from the stream it came in on, no temp copy needed.
+        // It runs in the background with its own progress dialog, and shows its own message when it's done.
+        SyncHelper.performSync(this, dataUri);
+    }
 
-            if (inputStream == null) {
-                Toast.makeText(this, "Could not open file stream", Toast.LENGTH_SHORT).show();
-                return;
+    // Streams the export in on a background thread (a full dump is millions of rows, this takes minutes, not seconds)
+    private void importProductDatabase(Uri uri) {
+        Toast.makeText(this, "Importing product database, this can take a while...", Toast.LENGTH_LONG).show();
+        new Thread(() -> {
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                if (in == null) throw new IOException("Couldn't open " + uri);
+                OfflineProducts.Result result = OfflineProducts.importFrom(getApplicationContext(), in);
+                runOnUiThread(() -> Toast.makeText(this, result.toString(), Toast.LENGTH_LONG).show());
+            } catch (IOException e) {
+                Log.e("SyncActivity", "Product database import failed", e);
+                runOnUiThread(() -> Toast.makeText(this, "Failed to import product database: " + e.getMessage(), Toast.LENGTH_LONG).show());
             }
+        }, "ProductImport").start();
+    }
 
-            // Copy file to a temp directory we control
-            File tempFile = new File(getCacheDir(), "incoming_sync.json");
-
-            FileOutputStream outputStream = new FileOutputStream(tempFile);
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+    // This chunk handles exporting your inventory to a JSON file you can send to someone else.
+    // Could be used to clone your kitchen's contents or just flex your snack game.
+    private void shareFullInventory() {
+        try {
+            // Grab the local inventory data from the shared in-memory copy
+            LinkedHashMap<String, List<InventoryItem>> inventory = InventoryStores.get(this).snapshot();
 
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+            // Stream that data out to a temporary file as JSON, item by item
+            File outFile = new File(getExternalCacheDir(), "SIMS_inventory_export.json");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile))) {
+                JsonStorageHelper.writeInventory(out, inventory);
             }
+            shareFile(outFile, "Share Inventory");
 
-            inputStream.close();
-            outputStream.close();
-
-            // Create a URI for our internal copy and pass to our merge logic
-            Uri fileUri = FileProvider.getUriForFile(
-                    this,
-                    "com.example.sims.fileprovider", // Has to match the manifest authority
-                    tempFile
-            );
-            SyncHelper.performSync(this, fileUri);
-
-        } catch (FileNotFoundException fnfe) {
-            Toast.makeText(this, "File not found: " + fnfe.getMessage(), Toast.LENGTH_LONG).show();
-            fnfe.printStackTrace();
-        } catch (Exception e) {
-            Toast.makeText(this, "Failed to process sync file: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(this, "Failed to share inventory: " + e.getMessage(), Toast.LENGTH_LONG).show();
             e.printStackTrace();
         }
     }
+
+    private void shareFile(File file, String title) {
+        // Generate a URI that Android will allow us to send
+        Uri uri = FileProvider.getUriForFile(
+                this,
+                "com.example.sims.fileprovider",
+                file
+        );
+
+        // Trigger the system share panel so user can pick their app of choice
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType("application/json");
+        shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        startActivity(Intent.createChooser(shareIntent, title)); // This sneaky little guy launches the share menu
+    }
 }
@@ -0,0 +1,265 @@
+// --- SYNC DELTA ---
+// A "just what changed" sync file. Sharing the whole inventory every time is overkill when your roommate only ate two yogurts,
+// so this carries only the items whose count moved since the last house count, and by how much.
+// A changeset for two yogurts is a few hundred bytes whether the house has 50 items or 50,000.
+//
+// The math is the same one SyncMerger does, just split in half:
+//   sender:   change = what I have now - last house count
+//   receiver: new    = what I have now + change
+// which is exactly "yours + theirs - last house count", without the receiver ever seeing the parts that didn't change.
+//
+// That only works if both phones have the SAME last house count, so every changeset carries a baseline id
+// (a fingerprint of the house count it was made against). If the receiver's doesn't match, it refuses
+// and the full "Share My Inventory" file is the way to go.
+//
+// Items are matched by barcode. Manual entries have no barcode, so for those it's name + package size.
+
+package com.example.sims;
+
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+public class SyncDelta {
+
+    // Top-level key that marks a file as a changeset. Always written first, and its value is a number, so it can't be mistaken for a location.
+    private static final String FORMAT_KEY = "simsDelta";
+    private static final int FORMAT_VERSION = 1;
+
+    // One item whose count moved
+    public static final class Change {
+        public final String location;
+        public final String name;
+        public final String quantity;
+        public final String barcode;
+        public final int change;       // How much the count went up (or down) since the house count
+        public final boolean present;  // false if the sender doesn't have the item at all any more
+
+        public Change(String location, String name, String quantity, String barcode, int change, boolean present) {
+            this.location = location;
+            this.name = name;
+            this.quantity = quantity;
+            this.barcode = barcode;
+            this.change = change;
+            this.present = present;
+        }
+
+        // What the receiver looks the item up by
+        public String key() {
+            return SyncDelta.key(name, quantity, barcode);
+        }
+    }
+
+    public final String baselineId;
+    public final List<String> locations; // Every location the sender has, so new (even empty) ones show up on the other end
+    public final List<Change> changes;
+
+    public SyncDelta(String baselineId, List<String> locations, List<Change> changes) {
+        this.baselineId = baselineId;
+        this.locations = locations;
+        this.changes = changes;
+    }
+
+    /*
+        Works out what changed between the last house count and now. The first line per barcode (or name + size) is the one compared,
+        same as the merge does. Anything that's back to the count it had last time doesn't make it into the file.
+     */
+    public static SyncDelta between(Map<String, List<InventoryItem>> baseline, Map<String, List<InventoryItem>> current) {
+        List<Change> changes = new ArrayList<>();
+        LinkedHashSet<String> allLocations = new LinkedHashSet<>(current.keySet());
+        allLocations.addAll(baseline.keySet());
+
+        for (String location : allLocations) {
+            LinkedHashMap<String, InventoryItem> now = indexByKey(current.get(location));
+            LinkedHashMap<String, InventoryItem> before = indexByKey(baseline.get(location));
+
+            for (Map.Entry<String, InventoryItem> entry : now.entrySet()) {
+                InventoryItem item = entry.getValue();
+                InventoryItem old = before.get(entry.getKey());
+                int change = item.getStockQuantity() - (old != null ? old.getStockQuantity() : 0);
+                if (change != 0) {
+                    changes.add(new Change(location, item.getName(), item.getQuantity(), item.getBarcode(), change, true));
+                }
+            }
+            // Gone completely since last time (deleted, or the whole location was removed)
+            for (Map.Entry<String, InventoryItem> entry : before.entrySet()) {
+                InventoryItem old = entry.getValue();
+                if (!now.containsKey(entry.getKey()) && old.getStockQuantity() != 0) {
+                    changes.add(new Change(location, old.getName(), old.getQuantity(), old.getBarcode(), -old.getStockQuantity(), false));
+                }
+            }
+        }
+        return new SyncDelta(baselineId(baseline), new ArrayList<>(current.keySet()), changes);
+    }
+
+    /*
+        Fingerprint of a house count: SHA-256 over every location (sorted, since the house count's order depends on the merge)
+        and its items in order. Only the visible fields count, so two phones with the same house count get the same id
+        no matter how they stored it.
+     */
+    public static String baselineId(Map<String, List<InventoryItem>> houseCount) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            List<String> names = new ArrayList<>(houseCount.keySet());
+            Collections.sort(names);
+            for (String name : names) {
+                List<InventoryItem> items = houseCount.get(name);
+                bytes.reset();
+                out.writeUTF(name);
+                out.writeInt(items.size());
+                digest.update(bytes.toByteArray());
+                for (InventoryItem item : items) {
+                    bytes.reset();
+                    writeNullable(out, item.getName());
+                    writeNullable(out, item.getQuantity());
+                    writeNullable(out, item.getBarcode());
+                    out.writeInt(item.getStockQuantity());
+                    digest.update(bytes.toByteArray());
+                }
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("Couldn't fingerprint the house count", e); // Every Android has SHA-256, and this never touches a real file
+        }
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /*
+        Is this incoming file a changeset (rather than a full inventory)? writeTo always puts the marker first,
+        so a peek at the first few bytes is enough, and the stream is rewound afterwards.
+     */
+    public static boolean isDelta(BufferedInputStream in) throws IOException {
+        byte[] head = new byte[64];
+        in.mark(head.length);
+        int read = 0;
+        int n;
+        while (read < head.length && (n = in.read(head, read, head.length - read)) != -1) read += n;
+        in.reset();
+        String start = new String(head, 0, read, StandardCharsets.UTF_8).replaceAll("\\s", "");
+        return start.startsWith("{\"" + FORMAT_KEY + "\"");
+    }
+
+    /*
+        Writes the changeset as compact JSON. Changes are grouped under their location so each name is only written once:
+        {"simsDelta":1, "baseline":"...", "locations":[...], "changes":{"Pantry":[{"name":..,"quantity":..,"barcode":..,"change":-2}]}}
+        "present":false only shows up on items the sender got rid of. Doesn't close the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        LinkedHashMap<String, List<Change>> byLocation = new LinkedHashMap<>();
+        for (Change change : changes) {
+            List<Change> list = byLocation.get(change.location);
+            if (list == null) {
+                list = new ArrayList<>();
+                byLocation.put(change.location, list);
+            }
+            list.add(change);
+        }
+
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name(FORMAT_KEY).value(FORMAT_VERSION);
+        writer.name("baseline").value(baselineId);
+        writer.name("locations");
+        writer.beginArray();
+        for (String location : locations) writer.value(location);
+        writer.endArray();
+
+        writer.name("changes");
+        writer.beginObject();
+        for (Map.Entry<String, List<Change>> entry : byLocation.entrySet()) {
+            writer.name(entry.getKey());
+            writer.beginArray();
+            for (Change change : entry.getValue()) {
+                writer.beginObject();
+                writer.name("name").value(change.name);
+                writer.name("quantity").value(change.quantity);
+                if (change.barcode != null) writer.name("barcode").value(change.barcode);
+                writer.name("change").value(change.change);
+                if (!change.present) writer.name("present").value(false);
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    // Reads back what writeTo wrote
+    public static SyncDelta fromJson(JSONObject json) throws JSONException {
+        int version = json.getInt(FORMAT_KEY);
+        if (version != FORMAT_VERSION) throw new JSONException("Unsupported changeset version " + version);
+
+        List<String> locations = new ArrayList<>();
+        JSONArray locationArray = json.getJSONArray("locations");
+        for (int i = 0; i < locationArray.length(); i++) {
+            locations.add(locationArray.getString(i));
+        }
+
+        List<Change> changes = new ArrayList<>();
+        JSONObject changesByLocation = json.getJSONObject("changes");
+        JSONArray changedLocations = changesByLocation.names();
+        for (int i = 0; changedLocations != null && i < changedLocations.length(); i++) {
+            String location = changedLocations.getString(i);
+            JSONArray items = changesByLocation.getJSONArray(location);
+            for (int j = 0; j < items.length(); j++) {
+                JSONObject item = items.getJSONObject(j);
+                changes.add(new Change(location,
+                        item.isNull("name") ? null : item.getString("name"),
+                        item.isNull("quantity") ? null : item.getString("quantity"),
+                        item.isNull("barcode") ? null : item.getString("barcode"),
+                        item.getInt("change"),
+                        item.optBoolean("present", true)));
+            }
+        }
+        return new SyncDelta(json.getString("baseline"), locations, changes);
+    }
+
+    // Barcode if there is one, otherwise name + package size (the two can't collide thanks to the prefix)
+    static String key(String name, String quantity, String barcode) {
+        return barcode != null ? "b:" + barcode : "n:" + name + '\n' + quantity;
+    }
+
+    // key -> the first item with it, in list order
+    private static LinkedHashMap<String, InventoryItem> indexByKey(List<InventoryItem> items) {
+        LinkedHashMap<String, InventoryItem> index = new LinkedHashMap<>();
+        if (items == null) return index;
+        for (InventoryItem item : items) {
+            index.putIfAbsent(key(item.getName(), item.getQuantity(), item.getBarcode()), item);
+        }
+        return index;
+    }
+
+    // Same flag-then-value trick as the mutation log, so "no barcode" and an empty one fingerprint differently
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+}
@@ -3,155 +3,422 @@
 // Basically, imagine two roommates updating the pantry list at the same time. This class makes sure you don't end up with 12 boxes of pasta when you only meant to get 6.
 // It calculates: new = yours + theirs - what we already counted last time. That last part is key.
 // It also gracefully handles stuff that only shows up on one device, which is harder than it sounds.
+// The whole thing runs in the background (SyncJob) and saves the inventory and the house count together or not at all.
 
 package com.example.sims;
 
+import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 public class SyncHelper {
 
-    // Entry point: called when a sync file is received (e.g. Nearby Share).
-    // Does all the merging and conflict resolution.
-    public static void performSync(Context context, Uri externalFileUri) {
-        try {
-            // Pull in all three JSON blobs: local, incoming, and the historical 'house count' used for diffing
-            JSONObject localJson = JsonStorageHelper.readJson(context);
-            JSONObject externalJson = readJsonFromUri(context, externalFileUri);
-            JSONObject previousHouseCount = readHouseCountJson(context);
-
-            if (localJson == null || externalJson == null) {
-                Toast.makeText(context, "One of the JSON files is invalid.", Toast.LENGTH_SHORT).show();
-                return;
+    // The commit's work-in-progress files (see commit below)
+    private static final String PENDING_HOUSE_COUNT = "housecount.snap.pending";
+    private static final String PENDING_DIGESTS = "housecount.digests.pending";
+    private static final String COMMIT_MARKER = "sync.commit";
+    private static final String UNDO_SNAPSHOT = "sync.undo.snap"; // A phone-to-phone save still waiting to hear from the other phone
+
+    /*
+        Entry point: called when a sync file is received (e.g. Nearby Share).
+        The sync runs in the background (SyncJob), so this returns right away. The dialog shows which location it's on,
+        Cancel stops it with nothing changed, and Hide gets the dialog out of the way for anyone who'd rather keep scanning.
+        The result shows up as a Toast either way.
+     */
+    public static void performSync(Activity activity, Uri externalFileUri) {
+        startJob(activity, "Opening the sync file...", (context, progress) -> sync(context, externalFileUri, progress));
+    }
+
+    /*
+        Phone-to-phone sync over the local network (see PeerSync), in the background like a file sync.
+        host == null means wait for the other phone to connect to us, showing a fresh pairing code for it to type in;
+        otherwise connect to the phone waiting at host with the code it's showing.
+     */
+    public static void performPeerSync(Activity activity, String host, String pairingCode) {
+        if (host == null) {
+            String code = PeerSync.newPairingCode();
+            List<String> addresses = PeerSync.localAddresses();
+            String waiting = addresses.isEmpty() ? "Waiting for the other phone (no Wi-Fi address found). Pairing code " + code
+                    : "Waiting for the other phone. On it, connect to " + String.join(" or ", addresses) + " with pairing code " + code;
+            startJob(activity, waiting, (context, progress) ->
+                    PeerSync.listen(PeerSync.DEFAULT_PORT, code, localSide(context), progress));
+        } else {
+            startJob(activity, "Connecting to " + host + "...", (context, progress) ->
+                    PeerSync.connect(host, PeerSync.DEFAULT_PORT, pairingCode, localSide(context), progress));
+        }
+    }
+
+    private static void startJob(Activity activity, String firstStatus, SyncJob.Task task) {
+        SyncProgressDialog progress = new SyncProgressDialog(activity, firstStatus);
+        SyncJob job = SyncJob.start(activity, task, progress);
+        if (job == null) {
+            Toast.makeText(activity, "A sync is already running.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        progress.show(job);
+    }
+
+    /*
+        The sync itself: does all the merging and conflict resolution, then saves.
+        Runs on SyncJob's thread, so no Toasts in here. Returns what to tell the person.
+        Throws CancellationException if they hit Cancel before the save started.
+     */
+    static String sync(Context context, Uri externalFileUri, SyncMerger.Progress progress) throws IOException, JSONException {
+        finishInterruptedSync(context); // A sync that got cut off last time gets settled before we measure against its house count
+
+        // Read straight from whatever shared the file; no copy of it gets made first
+        try (InputStream stream = context.getContentResolver().openInputStream(externalFileUri)) {
+            if (stream == null) return "Could not open the sync file.";
+            BufferedInputStream in = new BufferedInputStream(stream, 64 * 1024);
+            InventoryStore repository = InventoryStores.get(context);
+
+            // A "just the changes" file skips the full merge entirely (and it's small, so it's fine to read in one go)
+            if (SyncDelta.isDelta(in)) {
+                return applyDelta(context, repository, SyncDelta.fromJson(readJson(in)), progress);
             }
 
-            JSONObject mergedJson = new JSONObject();
-            JSONObject newHouseCount = new JSONObject();
-
-            // Union of all storage locations found in either file (handles new/unknown spots)
-            Set<String> allLocations = new HashSet<>();
-            allLocations.addAll(toKeySet(localJson));
-            allLocations.addAll(toKeySet(externalJson));
-
-            // Now for each location, merge its inventory
-            for (String location : allLocations) {
-                JSONArray localItems = localJson.optJSONArray(location);
-                JSONArray externalItems = externalJson.optJSONArray(location);
-                JSONArray mergedArray = new JSONArray();
-
-                if (localItems == null) localItems = new JSONArray();
-                if (externalItems == null) externalItems = new JSONArray();
-
-                // Loop through local items and find their counterpart in the external set
-                for (int i = 0; i < localItems.length(); i++) {
-                    JSONObject localItem = localItems.getJSONObject(i);
-                    String barcode = localItem.optString("barcode", null);
-                    String name = localItem.optString("name");
-                    String quantity = localItem.optString("quantity");
-                    int localCount = localItem.optInt("stockQuantity", 1);
-
-                    // Try to find a matching item in the incoming list
-                    JSONObject externalItem = findByBarcode(externalItems, barcode);
-                    int externalCount = externalItem != null ? externalItem.optInt("stockQuantity", 1) : 0;
-
-                    // Find the previous agreed-upon quantity, if any
-                    JSONObject prev = findByBarcode(previousHouseCount.optJSONArray(location), barcode);
-                    int oldHouseCount = prev != null ? prev.optInt("stockQuantity", 0) : 0;
-
-                    // Do the sync math: (you + them - last known shared state)
-                    int newCount = localCount + externalCount - oldHouseCount;
-
-                    JSONObject mergedItem = new JSONObject();
-                    mergedItem.put("name", name);
-                    mergedItem.put("quantity", quantity);
-                    mergedItem.put("barcode", barcode);
-                    mergedItem.put("stockQuantity", newCount);
-                    mergedArray.put(mergedItem);
-                }
+            // What every location looks like as we start. Anything scanned while the merge runs would be flattened by it,
+            // so the commit checks these again and refuses if something moved.
+            LocalSide side = localSide(context);
+            List<String> localLocations = side.locationNames();
+            LinkedHashMap<String, LocationDigest> expected = new LinkedHashMap<>();
+            for (String location : localLocations) {
+                expected.put(location, side.digest(location));
+            }
+
+            // The merge itself (yours + theirs - last house count, per location) lives in SyncMerger.
+            // It pulls our items and the old house count one location at a time as it works through their file.
+            // Locations whose digests match on both phones and in the house count get skipped outright.
+            LinkedHashMap<String, List<InventoryItem>> merged = SyncMerger.merge(in, localLocations,
+                    side::items, side::digest, side::previousItems, side::previousDigest, progress);
+
+            for (String location : merged.keySet()) {
+                expected.putIfAbsent(location, null); // New to us, so it still shouldn't exist when we save
+            }
+            if (progress.isCancelled()) throw new CancellationException("Sync cancelled");
+
+            // What we just agreed on is the new inventory, and also what we subtract next time
+            if (!side.commit(expected, merged)) {
+                return "Nothing was saved: the inventory changed while syncing, or it couldn't be written. Try the sync again.";
+            }
+            return "Sync complete.";
+        }
+    }
+
+    // Our inventory and last house count, set up for a merge (file or phone-to-phone)
+    private static LocalSide localSide(Context context) throws IOException {
+        finishInterruptedSync(context); // Settle anything a cut-off sync left behind before measuring against the house count
+        File houseCountFile = new File(context.getFilesDir(), "housecount.snap");
+        InventorySnapshot previous = houseCountFile.exists() ? InventorySnapshot.open(houseCountFile) : null;
+        LinkedHashMap<String, List<InventoryItem>> legacyPrevious = previous == null ? readHouseCount(context) : null; // Old JSON house count (or none yet), read once
+        return new LocalSide(context, InventoryStores.get(context), previous, legacyPrevious,
+                LocationDigest.readFile(new File(context.getFilesDir(), "housecount.digests")));
+    }
+
+    /*
+        Applies a changeset from the other phone: new = ours + their change, for just the items they touched.
+        Only safe when both phones last agreed on the same house count, so if the baseline doesn't match we stop and ask for a full share.
+        The changes are worked out on copies of just the touched locations, then saved with the same all-or-nothing commit
+        as a full sync, and the result becomes the new house count.
+     */
+    private static String applyDelta(Context context, InventoryStore repository, SyncDelta delta, SyncMerger.Progress progress) throws IOException {
+        LinkedHashMap<String, List<InventoryItem>> houseCount = readHouseCount(context);
+        if (!hasHouseCount(context) || !SyncDelta.baselineId(houseCount).equals(delta.baselineId)) {
+            return "These changes were made against a different sync than ours. Ask them to share their full inventory instead.";
+        }
 
-                // Now add items that *only* exist in the incoming file
-                for (int i = 0; i < externalItems.length(); i++) {
-                    JSONObject externalItem = externalItems.getJSONObject(i);
-                    String barcode = externalItem.optString("barcode", null);
-                    if (findByBarcode(mergedArray, barcode) != null) continue; // Already merged
+        LinkedHashMap<String, LocationDigest> expected = new LinkedHashMap<>();
+        LinkedHashMap<String, List<InventoryItem>> replacements = new LinkedHashMap<>();
+        HashMap<String, HashMap<String, InventoryItem>> byKey = new HashMap<>();
+        for (String location : delta.locations) {
+            if (!repository.hasLocation(location)) editableCopy(repository, location, expected, replacements); // New to us, even if empty
+        }
 
-                    String name = externalItem.optString("name");
-                    String quantity = externalItem.optString("quantity");
-                    int externalCount = externalItem.optInt("stockQuantity", 1);
+        for (SyncDelta.Change change : delta.changes) {
+            if (progress.isCancelled()) throw new CancellationException("Sync cancelled");
+            HashMap<String, InventoryItem> items = byKey.get(change.location);
+            if (items == null) {
+                items = editableCopy(repository, change.location, expected, replacements);
+                byKey.put(change.location, items);
+                progress.location(change.location, byKey.size(), -1);
+            }
 
-                    JSONObject prev = findByBarcode(previousHouseCount.optJSONArray(location), barcode);
-                    int oldHouseCount = prev != null ? prev.optInt("stockQuantity", 0) : 0;
+            InventoryItem local = items.get(change.key());
+            if (local != null) {
+                local.setStockQuantity(local.getStockQuantity() + change.change);
+            } else if (change.present && change.change > 0) {
+                InventoryItem added = new InventoryItem(change.name, change.quantity, change.barcode, change.change); // New to us
+                replacements.get(change.location).add(added);
+                items.put(change.key(), added);
+            }
+            // Otherwise they used up or removed something we don't have anyway. Nothing to do.
+        }
+        if (progress.isCancelled()) throw new CancellationException("Sync cancelled");
+
+        LinkedHashMap<String, List<InventoryItem>> newHouseCount = repository.snapshot();
+        newHouseCount.putAll(replacements); // Touched ones keep their spot, new ones go on the end, same as in the store
+        if (!commit(context, repository, expected, replacements, newHouseCount)) {
+            return "Nothing was saved: the inventory changed while syncing, or it couldn't be written. Try the sync again.";
+        }
+        return "Sync complete (" + delta.changes.size() + " changes).";
+    }
 
-                    int newCount = externalCount - oldHouseCount; // Since local didn't know this existed
+    /*
+        Copies one location out of the store for applyDelta to change, and notes its digest first so the commit can tell
+        if someone changed it in the meantime. Returns the copy's items by barcode (or name + size), first one wins, same as findByBarcode.
+     */
+    private static HashMap<String, InventoryItem> editableCopy(InventoryStore repository, String location,
+                                                               Map<String, LocationDigest> expected,
+                                                               Map<String, List<InventoryItem>> replacements) {
+        expected.put(location, repository.locationDigest(location));
+        List<InventoryItem> items = repository.getItems(location);
+        replacements.put(location, items);
+        HashMap<String, InventoryItem> byKey = new HashMap<>();
+        for (InventoryItem item : items) {
+            byKey.putIfAbsent(SyncDelta.key(item.getName(), item.getQuantity(), item.getBarcode()), item);
+        }
+        return byKey;
+    }
+
+    /*
+        Saves a sync. The inventory and the house count have to change together: if only one of them lands,
+        the next sync subtracts the wrong house count and counts everything twice (or not at all). So:
+        1. Write the new house count and its digests next to the old ones (*.pending). Nothing reads those names.
+           (A phone-to-phone sync writes the undo copy first, see stage.)
+        2. Write the commit marker: the digests the replaced locations are about to have. From here on, it's "a commit is under way".
+        3. Swap the inventory's locations (on disk when it returns). If something got scanned meanwhile, or the store couldn't write it,
+           it refuses and keeps the old inventory: undo 1 and 2, done.
+        4. Rename the pending house count and digests over the old ones, then delete the marker.
+        If the app dies anywhere in there, finishInterruptedSync sorts it out on the next start, so it's always both files or neither.
+     */
+    private static synchronized boolean commit(Context context, InventoryStore repository, Map<String, LocationDigest> expected,
+                                               Map<String, List<InventoryItem>> replacements,
+                                               Map<String, List<InventoryItem>> houseCount) throws IOException {
+        if (!swap(context, repository, expected, replacements, houseCount)) return false;
+        publishHouseCount(context.getFilesDir());
+        return true;
+    }
+
+    /*
+        Steps 1 to 3 of a commit, for a phone-to-phone sync: the inventory is saved, but the old house count stays in charge
+        until the other phone says it saved too (finishStaged). Before anything else, what the merged locations hold right now
+        goes into sync.undo.snap, so they can be put back if the other phone doesn't make it. As long as that file is there,
+        a restart undoes the sync rather than finishing it, since nobody ever heard that the other phone saved.
+     */
+    private static synchronized boolean stage(Context context, InventoryStore repository, Map<String, LocationDigest> expected,
+                                              Map<String, List<InventoryItem>> merged) throws IOException {
+        File undo = new File(context.getFilesDir(), UNDO_SNAPSHOT);
+        LinkedHashMap<String, List<InventoryItem>> before = new LinkedHashMap<>();
+        for (String location : merged.keySet()) {
+            if (expected.get(location) != null) before.put(location, repository.getItems(location)); // Checked against expected by the swap
+        }
+        InventorySnapshot.write(undo, before);
 
-                    JSONObject mergedItem = new JSONObject();
-                    mergedItem.put("name", name);
-                    mergedItem.put("quantity", quantity);
-                    mergedItem.put("barcode", barcode);
-                    mergedItem.put("stockQuantity", newCount);
-                    mergedArray.put(mergedItem);
+        if (!swap(context, repository, expected, merged, merged)) {
+            undo.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+        The end of a staged sync. keep: the other phone saved too, so the undo copy goes (that's the moment it's decided)
+        and the new house count goes live. Otherwise it's undone (see undoStaged).
+        Returns false if some location couldn't be put back.
+     */
+    private static synchronized boolean finishStaged(Context context, InventoryStore repository, boolean keep) throws IOException {
+        File directory = context.getFilesDir();
+        if (keep) {
+            new File(directory, UNDO_SNAPSHOT).delete();
+            publishHouseCount(directory);
+            return true;
+        }
+        return undoStaged(directory, repository);
+    }
+
+    /*
+        Puts back what a staged sync replaced, then throws away its pending house count, and the undo copy last.
+        Each location only goes back if it still looks exactly the way the sync left it. One that got scanned into since then
+        keeps what it has: flattening the scan would be worse. Locations the sync added are removed the same way.
+        Returns false if anything had to be left like that.
+     */
+    private static boolean undoStaged(File directory, InventoryStore repository) throws IOException {
+        File undo = new File(directory, UNDO_SNAPSHOT);
+        File marker = new File(directory, COMMIT_MARKER);
+        boolean allBack = true;
+        if (marker.exists()) {
+            LinkedHashMap<String, List<InventoryItem>> before = InventorySnapshot.open(undo).readAll();
+            for (Map.Entry<String, LocationDigest> entry : LocationDigest.readFile(marker).entrySet()) {
+                String location = entry.getKey();
+                List<InventoryItem> items = before.get(location);
+                LocationDigest now = repository.locationDigest(location);
+                if (items != null && LocationDigest.of(items).sameAs(now)) continue; // Never changed, or already put back
+
+                if (!entry.getValue().sameAs(now)) {
+                    Log.w("SyncHelper", "Couldn't undo the sync in " + location + ", it changed after the sync saved it");
+                    allBack = false;
+                } else if (items != null) {
+                    allBack &= repository.replaceLocations(Collections.singletonMap(location, now), Collections.singletonMap(location, items));
+                } else {
+                    repository.removeLocation(location); // The sync added it
                 }
+            }
+        }
+        new File(directory, PENDING_DIGESTS).delete();
+        new File(directory, PENDING_HOUSE_COUNT).delete();
+        marker.delete();
+        undo.delete();
+        return allBack;
+    }
+
+    // Steps 1 to 3 of commit
+    private static boolean swap(Context context, InventoryStore repository, Map<String, LocationDigest> expected,
+                                Map<String, List<InventoryItem>> replacements,
+                                Map<String, List<InventoryItem>> houseCount) throws IOException {
+        File directory = context.getFilesDir();
+        File pendingHouseCount = new File(directory, PENDING_HOUSE_COUNT);
+        File pendingDigests = new File(directory, PENDING_DIGESTS);
+        File marker = new File(directory, COMMIT_MARKER);
+
+        LinkedHashMap<String, LocationDigest> houseCountDigests = digestsOf(houseCount);
+        InventorySnapshot.write(pendingHouseCount, houseCount);
+        LocationDigest.writeFile(pendingDigests, houseCountDigests);
+        LocationDigest.writeFile(marker, replacements == houseCount ? houseCountDigests : digestsOf(replacements));
 
-                mergedJson.put(location, mergedArray);
-                newHouseCount.put(location, mergedArray);
+        if (!repository.replaceLocations(expected, replacements)) {
+            marker.delete();
+            pendingDigests.delete();
+            pendingHouseCount.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+        Settles a commit the app died in the middle of. Safe to call any time; it does nothing unless the marker's there.
+        - there's an undo copy: a phone-to-phone sync that never heard the other phone saved, so put the old inventory back
+        - the pending house count already got renamed: the inventory was swapped before that, so just finish up
+        - the replaced locations already look the way the marker says: the swap happened, finish up
+        - otherwise the swap never happened: throw the pending files away and keep the old house count
+     */
+    public static synchronized void finishInterruptedSync(Context context) {
+        File directory = context.getFilesDir();
+        File marker = new File(directory, COMMIT_MARKER);
+        File undo = new File(directory, UNDO_SNAPSHOT);
+        if (!marker.exists() && !undo.exists()) return;
+
+        File pendingHouseCount = new File(directory, PENDING_HOUSE_COUNT);
+        try {
+            if (undo.exists()) {
+                Log.w("SyncHelper", "Undoing a phone-to-phone sync that never heard back from the other phone");
+                undoStaged(directory, InventoryStores.get(context));
+            } else if (!pendingHouseCount.exists() || matches(InventoryStores.get(context), LocationDigest.readFile(marker))) {
+                Log.w("SyncHelper", "Finishing a sync that was cut off after the inventory was saved");
+                publishHouseCount(directory);
+            } else {
+                Log.w("SyncHelper", "Rolling back a sync that was cut off before the inventory was saved");
+                pendingHouseCount.delete();
+                new File(directory, PENDING_DIGESTS).delete();
+                marker.delete();
             }
+        } catch (IOException e) {
+            Log.e("SyncHelper", "Failed to finish the interrupted sync", e);
+        }
+    }
 
-            JsonStorageHelper.writeJson(context, mergedJson);
-            writeHouseCountJson(context, newHouseCount);
+    // Step 4 of the commit. Each rename is all-or-nothing, and the marker only goes once both are done.
+    private static void publishHouseCount(File directory) throws IOException {
+        File pendingHouseCount = new File(directory, PENDING_HOUSE_COUNT);
+        File pendingDigests = new File(directory, PENDING_DIGESTS);
+        File digests = new File(directory, "housecount.digests");
 
-            Toast.makeText(context, "Sync complete.", Toast.LENGTH_SHORT).show();
+        if (pendingHouseCount.exists()) {
+            digests.delete(); // The old digests can't be left describing the new house count, even for a moment
+            if (!pendingHouseCount.renameTo(new File(directory, "housecount.snap"))) {
+                throw new IOException("Couldn't move the new house count into place");
+            }
+        }
+        if (pendingDigests.exists() && !pendingDigests.renameTo(digests)) {
+            throw new IOException("Couldn't move the new house count digests into place");
+        }
+        new File(directory, "housecount.json").delete(); // The old JSON copy is out of date now
+        new File(directory, COMMIT_MARKER).delete();
+    }
 
-        } catch (Exception e) {
-            Log.e("SyncHelper", "Error syncing JSON", e);
-            Toast.makeText(context, "Failed to sync: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    // Whether each of these locations is in the store with exactly that digest
+    private static boolean matches(InventoryStore repository, Map<String, LocationDigest> digests) {
+        for (Map.Entry<String, LocationDigest> entry : digests.entrySet()) {
+            if (!entry.getValue().sameAs(repository.locationDigest(entry.getKey()))) return false;
         }
+        return true;
     }
 
-    // Reads incoming file URI and parses it into a JSONObject
-    private static JSONObject readJsonFromUri(Context context, Uri uri) throws IOException, JSONException {
-        InputStream inputStream = context.getContentResolver().openInputStream(uri);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+    private static LinkedHashMap<String, LocationDigest> digestsOf(Map<String, List<InventoryItem>> inventory) {
+        LinkedHashMap<String, LocationDigest> digests = new LinkedHashMap<>();
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            digests.put(entry.getKey(), LocationDigest.of(entry.getValue()));
+        }
+        return digests;
+    }
+
+    /*
+        What we'd send as a "just the changes" file: everything that moved since the last house count.
+        null if we've never synced, since there's nothing to measure against (share the full inventory instead).
+     */
+    public static SyncDelta changesSinceLastSync(Context context) {
+        if (!hasHouseCount(context)) return null;
+        return SyncDelta.between(readHouseCount(context), InventoryStores.get(context).snapshot());
+    }
+
+    // Reads a (small) JSON file into a JSONObject. Doesn't close the stream.
+    private static JSONObject readJson(InputStream inputStream) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
         StringBuilder sb = new StringBuilder();
         String line;
         while ((line = reader.readLine()) != null) sb.append(line);
-        reader.close();
         return new JSONObject(sb.toString());
     }
 
-    // Helper that gives us all the keys from a JSON object as a Set so we can loop them
-    private static Set<String> toKeySet(JSONObject obj) {
-        Set<String> keys = new HashSet<>();
-        if (obj == null) return keys;
-        Iterator<String> iter = obj.keys();
-        while (iter.hasNext()) keys.add(iter.next());
-        return keys;
+    // Have we ever finished a sync? (No house count means there's no baseline to diff against.)
+    static boolean hasHouseCount(Context context) {
+        return new File(context.getFilesDir(), "housecount.snap").exists()
+                || new File(context.getFilesDir(), "housecount.json").exists();
     }
 
-    // Used to find matching item in an array by its barcode (our main unique identifier)
-    private static JSONObject findByBarcode(JSONArray array, String barcode) throws JSONException {
-        if (array == null || barcode == null) return null;
-        for (int i = 0; i < array.length(); i++) {
-            JSONObject obj = array.getJSONObject(i);
-            if (barcode.equals(obj.optString("barcode"))) return obj;
+    // Reads the saved housecount file that keeps track of our last known shared state.
+    // Empty if we've never synced (or it can't be read).
+    static LinkedHashMap<String, List<InventoryItem>> readHouseCount(Context context) {
+        File snapshot = new File(context.getFilesDir(), "housecount.snap");
+        if (snapshot.exists()) {
+            try {
+                return InventorySnapshot.open(snapshot).readAll();
+            } catch (IOException e) {
+                Log.e("SyncHelper", "Failed to read housecount.snap", e);
+                return new LinkedHashMap<>();
+            }
         }
-        return null;
-    }
 
-    // Reads the saved housecount file that keeps track of our last known shared state
-    private static JSONObject readHouseCountJson(Context context) {
+        // Installs that last synced before the binary format still have the old JSON version
         File file = new File(context.getFilesDir(), "housecount.json");
-        if (!file.exists()) return new JSONObject();
+        if (!file.exists()) return new LinkedHashMap<>();
         try {
             FileInputStream fis = new FileInputStream(file);
             BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
@@ -159,20 +426,125 @@ public class SyncHelper {
             String line;
             while ((line = reader.readLine()) != null) sb.append(line);
             reader.close();
-            return new JSONObject(sb.toString());
+            return JsonStorageHelper.fromJson(new JSONObject(sb.toString()));
         } catch (Exception e) {
             Log.e("SyncHelper", "Failed to read housecount.json", e);
-            return new JSONObject();
+            return new LinkedHashMap<>();
         }
     }
 
-    // Writes the new snapshot after syncing so we can subtract it next time
-    private static void writeHouseCountJson(Context context, JSONObject houseCountJson) {
-        File file = new File(context.getFilesDir(), "housecount.json");
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(houseCountJson.toString(4).getBytes());
-        } catch (IOException | JSONException e) {
-            Log.e("SyncHelper", "Failed to write housecount.json", e);
+    /*
+        This phone's half of a sync: the store, the last house count (the binary one, or the old JSON one read into memory),
+        and the all-or-nothing commit (a file sync commits in one go, a phone-to-phone one stages and then settles).
+        House count digests come from the sidecar when it has them, otherwise they're worked out.
+     */
+    private static final class LocalSide implements PeerSync.Side {
+        private final Context context;
+        private final InventoryStore repository;
+        private final InventorySnapshot previous;
+        private final LinkedHashMap<String, List<InventoryItem>> legacyPrevious;
+        private final LinkedHashMap<String, LocationDigest> previousDigests;
+
+        LocalSide(Context context, InventoryStore repository, InventorySnapshot previous,
+                  LinkedHashMap<String, List<InventoryItem>> legacyPrevious, LinkedHashMap<String, LocationDigest> previousDigests) {
+            this.context = context;
+            this.repository = repository;
+            this.previous = previous;
+            this.legacyPrevious = legacyPrevious;
+            this.previousDigests = previousDigests;
+        }
+
+        @Override
+        public List<String> locationNames() {
+            return repository.getLocationNames();
+        }
+
+        @Override
+        public List<InventoryItem> items(String location) {
+            return repository.getItems(location);
+        }
+
+        @Override
+        public LocationDigest digest(String location) {
+            return repository.locationDigest(location);
+        }
+
+        @Override
+        public List<InventoryItem> previousItems(String location) throws IOException {
+            if (previous != null) return previous.readLocation(location);
+            return legacyPrevious.getOrDefault(location, Collections.emptyList());
+        }
+
+        @Override
+        public LocationDigest previousDigest(String location) throws IOException {
+            if (previousDigests.containsKey(location)) return previousDigests.get(location);
+            if (previous != null) return previous.hasLocation(location) ? LocationDigest.of(previous.readLocation(location)) : null;
+            return legacyPrevious.containsKey(location) ? LocationDigest.of(legacyPrevious.get(location)) : null;
+        }
+
+        public boolean commit(Map<String, LocationDigest> expected, LinkedHashMap<String, List<InventoryItem>> merged) throws IOException {
+            return SyncHelper.commit(context, repository, expected, merged, merged);
+        }
+
+        @Override
+        public boolean stage(Map<String, LocationDigest> expected, LinkedHashMap<String, List<InventoryItem>> merged) throws IOException {
+            return SyncHelper.stage(context, repository, expected, merged);
+        }
+
+        @Override
+        public boolean settle(boolean keep) throws IOException {
+            return finishStaged(context, repository, keep);
+        }
+    }
+
+    /*
+        The sync dialog: which location it's on and how far through, with Cancel and Hide.
+        Lives only as long as the screen that opened it; the Toast at the end uses the app context, so it shows up either way.
+     */
+    private static final class SyncProgressDialog implements SyncJob.Listener {
+        private final Activity activity;
+        private final View view;
+        private final TextView status;
+        private final ProgressBar bar;
+        private AlertDialog dialog;
+
+        SyncProgressDialog(Activity activity, String firstStatus) {
+            this.activity = activity;
+            this.view = View.inflate(activity, R.layout.dialog_sync_progress, null);
+            this.status = view.findViewById(R.id.syncProgressText);
+            this.bar = view.findViewById(R.id.syncProgressBar);
+            status.setText(firstStatus);
+        }
+
+        void show(SyncJob job) {
+            dialog = new AlertDialog.Builder(activity)
+                    .setTitle("Syncing")
+                    .setView(view)
+                    .setCancelable(false)
+                    .setNegativeButton("Cancel", (d, which) -> job.cancel())
+                    .setNeutralButton("Hide", null) // Keeps running, the Toast still comes at the end
+                    .show();
+        }
+
+        @Override
+        public void onProgress(String location, int done, int total) {
+            if (total < 0) {
+                bar.setIndeterminate(true);
+                status.setText("Reading " + location + " (" + done + " so far)");
+            } else {
+                bar.setIndeterminate(false);
+                bar.setMax(total);
+                bar.setProgress(done);
+                status.setText("Merged " + location + " (" + done + " of " + total + ")");
+            }
+        }
+
+        @Override
+        public void onFinished(String message) {
+            if (dialog != null && dialog.isShowing() && !activity.isFinishing() && !activity.isDestroyed()) {
+                dialog.dismiss();
+            }
+            Toast.makeText(activity.getApplicationContext(), message, Toast.LENGTH_LONG).show();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+// --- SYNC JOB ---
+// Runs a sync on its own thread, so reading, merging and saving a huge file (or talking to another phone) never holds up the screen.
+// The screen that started it hears about each location as it goes by (on the main thread, so it can touch views),
+// can hit Cancel at any point before the save starts, and gets one message at the end saying how it went.
+// Only one sync runs at a time. Starting a second one while the first is going just gets you null back.
+//
+// Cancelling is only checked up until the commit. Once the save has started it finishes, since the whole point of the
+// commit (see SyncHelper) is that the inventory and the house count change together or not at all.
+
+package com.example.sims;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.CancellationException;
+
+public class SyncJob implements SyncMerger.Progress {
+
+    // Both get called on the main thread
+    public interface Listener {
+        // total is -1 while the incoming file is still being read
+        void onProgress(String location, int done, int total);
+
+        void onFinished(String message);
+    }
+
+    // The sync itself. Runs on the job's thread and returns what to tell the person.
+    public interface Task {
+        String run(Context context, SyncMerger.Progress progress) throws Exception;
+    }
+
+    private static SyncJob running;
+
+    private final Handler mainThread = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+    private volatile boolean cancelled;
+
+    private SyncJob(Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+        Kicks off a sync in the background and returns straight away.
+        null if a sync is already running.
+     */
+    public static synchronized SyncJob start(Context context, Task task, Listener listener) {
+        if (running != null) return null;
+        SyncJob job = new SyncJob(listener);
+        running = job;
+
+        Context appContext = context.getApplicationContext(); // The screen might be gone before the sync is
+        Thread thread = new Thread(() -> job.run(appContext, task), "SyncJob");
+        thread.setPriority(Thread.NORM_PRIORITY - 1); // The UI thread wins any tie
+        thread.start();
+        return job;
+    }
+
+    public static synchronized boolean isRunning() {
+        return running != null;
+    }
+
+    // Asks the sync to stop at the next location (or the next thousand items of a big one). Nothing gets saved.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Called from the sync thread, handed over to the main thread
+    @Override
+    public void location(String location, int done, int total) {
+        mainThread.post(() -> listener.onProgress(location, done, total));
+    }
+
+    private void run(Context context, Task task) {
+        String message;
+        try {
+            message = task.run(context, this);
+        } catch (CancellationException e) {
+            message = "Sync cancelled. Nothing was changed.";
+        } catch (Exception e) {
+            Log.e("SyncJob", "Error syncing", e);
+            message = "Failed to sync: " + e.getMessage();
+        }
+
+        synchronized (SyncJob.class) {
+            running = null;
+        }
+        String result = message;
+        mainThread.post(() -> listener.onFinished(result));
+    }
+}
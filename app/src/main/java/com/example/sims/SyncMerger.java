@@ -0,0 +1,437 @@
+// --- SYNC MERGER ---
+// The actual math of a sync, pulled out of SyncHelper so it doesn't need a Context, a Uri or a Toast to run.
+// new = yours + theirs - what we already counted last time, location by location.
+//
+// The first version looked up every item's barcode by walking the other lists, so each location was O(n * m).
+// Fine for a fridge, but a 20k-item warehouse location took minutes on a phone.
+// Now each list gets turned into a barcode -> item map once, and every lookup after that is a hash hit, so a location is O(n + m).
+//
+// It also doesn't load the incoming file all at once any more. The file is read as a stream, one location at a time:
+// read their items for that location, pull ours and the last house count for just that location, merge, move on.
+// So the working set is one location's worth of lists and maps, however big the whole file is.
+//
+// Locations don't depend on each other, so while the stream is being read, the locations already read get merged
+// on a small pool (one thread per core). The results are put back together in the order the locations came in,
+// so the outcome is identical to doing them one after another, just using the whole CPU on a big sync.
+// Only a couple of locations per core can be waiting at once, so a huge file still can't pile up in memory.
+//
+// Their side doesn't have to be a file: anything that can hand over locations one at a time (an Incoming) works,
+// which is how a direct phone-to-phone sync (PeerSync) gets the exact same merge as it reads off the socket.
+//
+// It reports each location as it's read and as it's done, and checks between locations (and every so often inside a big one)
+// whether the person hit Cancel, so a sync running in the background can be stopped without waiting for the whole file.
+//
+// Most syncs only touch a few locations, so each one is checked against LocationDigests first:
+//   - their digest (from a phone-to-phone sync's hello) matches ours: their items aren't even sent, they're the same as ours
+//   - theirs, ours and the last house count all match: nothing to merge, our items go through untouched
+//     (and the store sees the same digest and keeps that location's shard file as it is)
+//
+// The answers are the same as the old JSONObject loops, down to the odd corners:
+//   - if a barcode shows up twice in a list, the FIRST one is the match (putIfAbsent, same as the old loop stopping early)
+//   - a local item with no barcode never matches anything, and neither does an incoming one
+//   - a stored item with no barcode is filed under "" (that's what optString handed back), so an incoming "" barcode still lines up with it
+//   - values are read the way optString/optInt read them (a number barcode becomes its text, a missing count is 1, a null barcode is "null")
+// The one visible difference: locations come out in the incoming file's order (then any only we have), instead of hash order.
+
+package com.example.sims;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class SyncMerger {
+
+    // Hands over one location's items (ours, or the last house count's). Empty list if it doesn't have that location.
+    public interface ItemSource {
+        List<InventoryItem> items(String location) throws IOException;
+    }
+
+    // A location's digest (ours, or the last house count's). null if it doesn't have that location.
+    public interface DigestSource {
+        LocationDigest digest(String location) throws IOException;
+    }
+
+    // Hears about each location as it goes by, and gets asked every so often whether to stop
+    public interface Progress {
+        // total is -1 while the file is still being read (we don't know how many locations there are yet)
+        void location(String location, int done, int total);
+
+        boolean isCancelled();
+    }
+
+    /*
+        Their side of a sync, one location at a time, in their order.
+        items() can return null for "exactly the same as ours", so a location both sides already agree on never needs sending or parsing.
+     */
+    public interface Incoming {
+        // The next location's name, or null once there are no more
+        String nextLocation() throws IOException;
+
+        // That location's items (call once per nextLocation)
+        List<InventoryItem> items() throws IOException;
+    }
+
+    // How many items of one location get read between cancel checks
+    private static final int CANCEL_CHECK_ITEMS = 1024;
+
+    /*
+        Streams the incoming sync file and merges it location by location against ours and the last house count.
+        The result is the new inventory, and also what gets saved as the next house count.
+        Both sources get called from the pool's threads, so they need to be safe for that (the store and the snapshot are).
+        Throws CancellationException if progress says to stop. Doesn't close the stream.
+     */
+    public static LinkedHashMap<String, List<InventoryItem>> merge(InputStream external, List<String> localLocations,
+                                                                   ItemSource local, DigestSource localDigests,
+                                                                   ItemSource previous, DigestSource previousDigests,
+                                                                   Progress progress) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(external, StandardCharsets.UTF_8));
+        return merge(new JsonIncoming(reader, progress), localLocations, local, localDigests, previous, previousDigests, progress);
+    }
+
+    // Same merge, with their side coming from wherever the Incoming reads it
+    public static LinkedHashMap<String, List<InventoryItem>> merge(Incoming incoming, List<String> localLocations,
+                                                                   ItemSource local, DigestSource localDigests,
+                                                                   ItemSource previous, DigestSource previousDigests,
+                                                                   Progress progress) throws IOException {
+        Sources sources = new Sources(local, localDigests, previous, previousDigests);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "SyncMerge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore inFlight = new Semaphore(threads * 2);
+        LinkedHashMap<String, Future<List<InventoryItem>>> pending = new LinkedHashMap<>();
+
+        try {
+            String location;
+            while ((location = incoming.nextLocation()) != null) {
+                checkCancelled(progress);
+                List<InventoryItem> externalItems = incoming.items();
+                // A location listed twice: the later one wins (and keeps the first one's spot), same as JSONObject did
+                pending.put(location, submit(pool, inFlight, location, externalItems, sources));
+                progress.location(location, pending.size(), -1);
+            }
+
+            // Then the locations only we have (they just get "ours - last house count")
+            for (String localLocation : localLocations) {
+                if (!pending.containsKey(localLocation)) {
+                    pending.put(localLocation, submit(pool, inFlight, localLocation, Collections.emptyList(), sources));
+                }
+            }
+
+            // Collect in the order the locations were found, whatever order the threads finished in
+            LinkedHashMap<String, List<InventoryItem>> merged = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<List<InventoryItem>>> entry : pending.entrySet()) {
+                checkCancelled(progress);
+                merged.put(entry.getKey(), await(entry.getValue()));
+                progress.location(entry.getKey(), merged.size(), pending.size());
+            }
+            return merged;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Queues one location's merge, waiting first if too many are already queued up.
+    // externalItems is null when the other phone said they're identical to ours.
+    private static Future<List<InventoryItem>> submit(ExecutorService pool, Semaphore inFlight, String location,
+                                                      List<InventoryItem> externalItems, Sources sources) throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync merge interrupted");
+        }
+        try {
+            return pool.submit(() -> {
+                try {
+                    return mergeOrSkip(location, externalItems, sources);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release(); // Never got queued
+            throw e;
+        }
+    }
+
+    private static void checkCancelled(Progress progress) {
+        if (progress.isCancelled()) throw new CancellationException("Sync cancelled");
+    }
+
+    // Waits for one location's result, passing along whatever went wrong on the worker thread
+    private static List<InventoryItem> await(Future<List<InventoryItem>> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync merge interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Sync merge failed", cause);
+        }
+    }
+
+    // One location, skipping the merge when nothing has moved anywhere since the last sync
+    private static List<InventoryItem> mergeOrSkip(String location, List<InventoryItem> externalItems, Sources sources) throws IOException {
+        List<InventoryItem> localItems = sources.local.items(location);
+        LocationDigest ours = sources.localDigests.digest(location);
+        if (externalItems == null) externalItems = asExported(localItems);
+
+        if (isSettled(localItems) && ours != null && ours.sameAs(LocationDigest.of(externalItems))
+                && ours.sameAs(sources.previousDigests.digest(location))) {
+            return localItems; // ours + theirs - last time = ours, item for item
+        }
+        return mergeLocation(localItems, externalItems, sources.previous.items(location));
+    }
+
+    /*
+        Whether merging a location with an identical copy of itself (and an identical house count) gives it back unchanged.
+        True as long as every item has a barcode, name and size. Items without a barcode get re-added by the merge every time
+        (that's how it's always worked), and a missing name or size comes back as "", so those locations always go through the merge.
+     */
+    private static boolean isSettled(List<InventoryItem> items) {
+        for (InventoryItem item : items) {
+            if (item.getBarcode() == null || item.getName() == null || item.getQuantity() == null) return false;
+        }
+        return true;
+    }
+
+    // Our items the way they'd read back out of an export (a missing name or size is written as null and read back as "null")
+    private static List<InventoryItem> asExported(List<InventoryItem> items) {
+        List<InventoryItem> exported = new ArrayList<>(items.size());
+        for (InventoryItem item : items) {
+            exported.add(new InventoryItem(item.getName() != null ? item.getName() : "null",
+                    item.getQuantity() != null ? item.getQuantity() : "null", item.getBarcode(), item.getStockQuantity()));
+        }
+        return exported;
+    }
+
+    // One location. Each of the lists is indexed once up front, then it's straight lookups.
+    public static List<InventoryItem> mergeLocation(List<InventoryItem> localItems, List<InventoryItem> externalItems, List<InventoryItem> previousItems) {
+        HashMap<String, InventoryItem> externalByBarcode = indexByBarcode(externalItems);
+        HashMap<String, InventoryItem> previousByBarcode = indexByBarcode(previousItems);
+        HashMap<String, InventoryItem> mergedByBarcode = new HashMap<>();
+        List<InventoryItem> merged = new ArrayList<>(localItems.size() + externalItems.size());
+
+        // Local items, matched up with their counterpart in the incoming list
+        for (InventoryItem localItem : localItems) {
+            String barcode = localItem.getBarcode();
+
+            InventoryItem externalItem = lookup(externalByBarcode, barcode);
+            int externalCount = externalItem != null ? externalItem.getStockQuantity() : 0;
+
+            InventoryItem prev = lookup(previousByBarcode, barcode);
+            int oldHouseCount = prev != null ? prev.getStockQuantity() : 0;
+
+            // Do the sync math: (you + them - last known shared state)
+            int newCount = localItem.getStockQuantity() + externalCount - oldHouseCount;
+            append(merged, mergedByBarcode, localItem.getName(), localItem.getQuantity(), barcode, newCount);
+        }
+
+        // Items that *only* exist in the incoming file
+        for (InventoryItem externalItem : externalItems) {
+            String barcode = externalItem.getBarcode();
+            if (lookup(mergedByBarcode, barcode) != null) continue; // Already merged
+
+            InventoryItem prev = lookup(previousByBarcode, barcode);
+            int oldHouseCount = prev != null ? prev.getStockQuantity() : 0;
+
+            int newCount = externalItem.getStockQuantity() - oldHouseCount; // Since local didn't know this existed
+            append(merged, mergedByBarcode, externalItem.getName(), externalItem.getQuantity(), barcode, newCount);
+        }
+        return merged;
+    }
+
+    // Adds the merged item and files it under its barcode, so the incoming pass can skip what's already done
+    private static void append(List<InventoryItem> merged, HashMap<String, InventoryItem> mergedByBarcode,
+                               String name, String quantity, String barcode, int stockQuantity) {
+        // A missing name or size always came back out of the JSON as "", so that's what the merged item gets
+        InventoryItem mergedItem = new InventoryItem(name != null ? name : "", quantity != null ? quantity : "", barcode, stockQuantity);
+        merged.add(mergedItem);
+        mergedByBarcode.putIfAbsent(indexKey(mergedItem), mergedItem);
+    }
+
+    // barcode -> the first item in the list with it. Keyed exactly the way the old loop compared them.
+    private static HashMap<String, InventoryItem> indexByBarcode(List<InventoryItem> items) {
+        HashMap<String, InventoryItem> index = new HashMap<>();
+        for (InventoryItem item : items) {
+            index.putIfAbsent(indexKey(item), item);
+        }
+        return index;
+    }
+
+    // optString("barcode") gave "" for an item without one
+    private static String indexKey(InventoryItem item) {
+        return item.getBarcode() != null ? item.getBarcode() : "";
+    }
+
+    private static InventoryItem lookup(HashMap<String, InventoryItem> index, String barcode) {
+        return barcode != null ? index.get(barcode) : null;
+    }
+
+    // Everything a worker needs to fetch for one location
+    private static final class Sources {
+        final ItemSource local;
+        final DigestSource localDigests;
+        final ItemSource previous;
+        final DigestSource previousDigests;
+
+        Sources(ItemSource local, DigestSource localDigests, ItemSource previous, DigestSource previousDigests) {
+            this.local = local;
+            this.localDigests = localDigests;
+            this.previous = previous;
+            this.previousDigests = previousDigests;
+        }
+    }
+
+    // --- Reading the incoming file ---
+
+    // An export file, read location by location
+    private static final class JsonIncoming implements Incoming {
+        private final JsonReader reader;
+        private final Progress progress;
+
+        JsonIncoming(JsonReader reader, Progress progress) throws IOException {
+            this.reader = reader;
+            this.progress = progress;
+            reader.beginObject();
+        }
+
+        @Override
+        public String nextLocation() throws IOException {
+            while (reader.hasNext()) {
+                String location = reader.nextName();
+                if (location.equals(LocationDigest.EXPORT_KEY)) {
+                    // Not a location: the digest header one earlier version wrote at the top of its exports,
+                    // or the empty location a phone on an older version made out of that header, which shouldn't come round again
+                    reader.skipValue();
+                    continue;
+                }
+                return location;
+            }
+            reader.endObject();
+            return null;
+        }
+
+        @Override
+        public List<InventoryItem> items() throws IOException {
+            return readLocation(reader, progress);
+        }
+    }
+
+    // One location's array. Anything that isn't an array counts as an empty location (optJSONArray gave null for those).
+    private static List<InventoryItem> readLocation(JsonReader reader, Progress progress) throws IOException {
+        List<InventoryItem> items = new ArrayList<>();
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return items;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new IOException("Sync file has an item that isn't an object"); // getJSONObject used to throw here too
+            }
+            items.add(readItem(reader));
+            if (items.size() % CANCEL_CHECK_ITEMS == 0) checkCancelled(progress);
+        }
+        reader.endArray();
+        return items;
+    }
+
+    private static InventoryItem readItem(JsonReader reader) throws IOException {
+        String name = null;
+        String quantity = null;
+        String barcode = null;
+        int stockQuantity = 1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = readString(reader);
+                    break;
+                case "quantity":
+                    quantity = readString(reader);
+                    break;
+                case "barcode":
+                    barcode = readString(reader);
+                    break;
+                case "stockQuantity":
+                    stockQuantity = readInt(reader, 1);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new InventoryItem(name, quantity, barcode, stockQuantity);
+    }
+
+    // A value as optString saw it: text as-is, numbers/booleans/null as their JSON text. Nested objects or arrays count as missing.
+    private static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return numberText(reader.nextString());
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "null";
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    // A value as optInt saw it: numbers (and number-looking text) cut down to an int, anything else is the fallback
+    private static int readInt(JsonReader reader, int fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            String text = reader.nextString();
+            try {
+                return token == JsonToken.NUMBER && isWholeNumber(text) ? (int) Long.parseLong(text) : (int) Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    // org.json turned whole numbers into Integer/Long and the rest into Double, and printed them back that way ("1.50" -> "1.5")
+    private static String numberText(String literal) {
+        try {
+            return isWholeNumber(literal) ? String.valueOf(Long.parseLong(literal)) : String.valueOf(Double.parseDouble(literal));
+        } catch (NumberFormatException e) {
+            return String.valueOf(Double.parseDouble(literal)); // Too big for a long
+        }
+    }
+
+    private static boolean isWholeNumber(String literal) {
+        return literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0;
+    }
+}
@@ -0,0 +1,128 @@
+// --- WRITE-BEHIND WRITER ---
+// When someone is tapping through quantity changes, renames and deletes as fast as they can,
+// there's no point hitting the disk after every single tap. This class waits for things to calm down,
+// then does ONE write that covers the whole burst. It's like waiting until the dishwasher is full before running it.
+//
+// The rules: a write happens once there's been a short quiet period with no new changes, or once the first
+// unsaved change has been waiting for the max delay (so a non-stop stream of edits still gets saved regularly).
+// flush() skips the waiting and saves right now, which is what onPause and sync use.
+// The actual saving runs on a background thread, so the UI thread never waits on the disk unless it asks to.
+
+package com.example.sims;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindWriter {
+
+    // The thing that actually does the saving. It should always write the LATEST state, not a copy from when it was scheduled.
+    public interface Flusher {
+        void write() throws IOException;
+    }
+
+    private final String name;
+    private final long quietMillis;
+    private final long maxDelayMillis;
+    private final Flusher flusher;
+
+    private final ScheduledExecutorService executor;
+    private final Object stateLock = new Object();
+    private final Object writeLock = new Object(); // Held for the whole write, so flush() can wait for one that's in progress
+
+    private boolean dirty;
+    private long firstDirtyAt;
+    private ScheduledFuture<?> scheduled;
+
+    public WriteBehindWriter(String name, long quietMillis, long maxDelayMillis, Flusher flusher) {
+        this.name = name;
+        this.quietMillis = quietMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.flusher = flusher;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WriteBehind-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+        Says "there's something new to save". Cheap to call after every change.
+        Each call pushes the write back by the quiet period, but never past the max delay from the first unsaved change.
+     */
+    public void markDirty() {
+        synchronized (stateLock) {
+            long now = System.nanoTime() / 1_000_000;
+            if (!dirty) {
+                dirty = true;
+                firstDirtyAt = now;
+            }
+            long untilDeadline = Math.max(0, firstDirtyAt + maxDelayMillis - now);
+            long delay = Math.min(quietMillis, untilDeadline);
+
+            if (scheduled != null) scheduled.cancel(false);
+            scheduled = executor.schedule(this::writeIfDirty, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+        Saves anything pending right now, on the calling thread, and waits for any background write already in progress.
+        When this returns, everything marked dirty before the call is on disk.
+     */
+    public void flush() {
+        boolean wasDirty;
+        synchronized (stateLock) {
+            wasDirty = dirty;
+            dirty = false;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+        }
+        synchronized (writeLock) {
+            if (wasDirty) runFlusher();
+        }
+    }
+
+    // Runs on the background thread when the timer goes off
+    private void writeIfDirty() {
+        synchronized (writeLock) {
+            synchronized (stateLock) {
+                if (!dirty) return; // Someone flushed it already
+                dirty = false;
+                scheduled = null;
+            }
+            runFlusher();
+        }
+    }
+
+    private void runFlusher() {
+        try {
+            flusher.write();
+        } catch (IOException | RuntimeException e) {
+            Log.e("WriteBehind", "Background write failed for " + name, e);
+        }
+    }
+
+    /*
+        Writes a file all-or-nothing: the bytes go into a temp file first, get flushed to disk,
+        and only then replace the real file with a rename. If the phone dies halfway, the old file is still intact.
+     */
+    public static void writeAtomically(File file, byte[] bytes) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            fos.write(bytes);
+            fos.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+}
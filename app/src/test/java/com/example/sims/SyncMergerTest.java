@@ -0,0 +1,333 @@
+// --- SYNC MERGER TEST ---
+// SyncMerger swapped the old nested loops for barcode maps, a stream and a thread pool, and promised the answers didn't move.
+// This holds it to that: the old JSONObject merge is kept down below exactly as it was, and both get fed the same
+// made-up inventories (yours, theirs, last house count) with all the awkward bits mixed in: the same barcode twice in one list,
+// manual items with no barcode, "" barcodes, locations one side deleted, locations the house count still remembers.
+// Every location has to come out with the same items, in the same order, with the same counts.
+
+package com.example.sims;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class SyncMergerTest {
+
+    private static final int ROUNDS = 2000;
+    private static final String[] LOCATIONS = {"Pantry", "Fridge", "Freezer", "Garage", "Basement"};
+
+    @Test
+    public void mergeMatchesTheOldLoops() throws Exception {
+        for (long seed = 0; seed < ROUNDS; seed++) {
+            Random random = new Random(seed);
+            LinkedHashMap<String, List<InventoryItem>> yours = randomInventory(random);
+            LinkedHashMap<String, List<InventoryItem>> theirs = randomInventory(random);
+            LinkedHashMap<String, List<InventoryItem>> houseCount = randomInventory(random);
+            shareSomeLocations(random, yours, theirs, houseCount);
+
+            Map<String, List<String>> expected = describe(oldMerge(toJson(yours), toJson(theirs), toJson(houseCount)));
+            Map<String, List<String>> actual = describe(newMerge(yours, theirs, houseCount));
+            assertEquals("seed " + seed, expected, actual);
+        }
+    }
+
+    @Test
+    public void mergeLocationMatchesTheOldLoops() throws Exception {
+        for (long seed = 0; seed < ROUNDS; seed++) {
+            Random random = new Random(seed);
+            List<InventoryItem> yours = randomItems(random);
+            List<InventoryItem> theirs = randomItems(random);
+            List<InventoryItem> houseCount = randomItems(random);
+
+            Map<String, List<String>> expected = describe(oldMerge(toJson(single(yours)), toJson(single(theirs)), toJson(single(houseCount))));
+            List<String> actual = describeItems(SyncMerger.mergeLocation(yours, theirs, houseCount));
+            assertEquals("seed " + seed, expected.get("Pantry"), actual);
+        }
+    }
+
+    // A big location, so the hash maps and the pool actually have something to chew on
+    @Test
+    public void bigLocationMatchesTheOldLoops() throws Exception {
+        Random random = new Random(42);
+        LinkedHashMap<String, List<InventoryItem>> yours = new LinkedHashMap<>();
+        LinkedHashMap<String, List<InventoryItem>> theirs = new LinkedHashMap<>();
+        LinkedHashMap<String, List<InventoryItem>> houseCount = new LinkedHashMap<>();
+        for (LinkedHashMap<String, List<InventoryItem>> inventory : List.of(yours, theirs, houseCount)) {
+            List<InventoryItem> items = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                items.add(new InventoryItem("Item " + i, "1 kg", String.valueOf(random.nextInt(5000)), random.nextInt(9)));
+            }
+            inventory.put("Warehouse", items);
+        }
+
+        assertEquals(describe(oldMerge(toJson(yours), toJson(theirs), toJson(houseCount))),
+                describe(newMerge(yours, theirs, houseCount)));
+    }
+
+    // --- Made-up inventories ---
+
+    private static LinkedHashMap<String, List<InventoryItem>> randomInventory(Random random) {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        int locations = random.nextInt(LOCATIONS.length + 1);
+        for (int i = 0; i < locations; i++) {
+            inventory.put(LOCATIONS[random.nextInt(LOCATIONS.length)], randomItems(random));
+        }
+        return inventory;
+    }
+
+    private static List<InventoryItem> randomItems(Random random) {
+        List<InventoryItem> items = new ArrayList<>();
+        int count = random.nextInt(12);
+        for (int i = 0; i < count; i++) {
+            String quantity = random.nextInt(4) == 0 ? null : "q" + random.nextInt(3);
+            items.add(new InventoryItem("n" + random.nextInt(5), quantity, randomBarcode(random), random.nextInt(9)));
+        }
+        return items;
+    }
+
+    // A small pool of barcodes so they collide a lot, plus manual items (null) and the odd "" one
+    private static String randomBarcode(Random random) {
+        int kind = random.nextInt(10);
+        if (kind < 2) return null;
+        if (kind == 2) return "";
+        return "0" + random.nextInt(8);
+    }
+
+    /*
+        Random inventories hardly ever agree on anything, which would leave the "nothing changed" shortcuts untested.
+        So sometimes a location gets copied across, so theirs and the house count are exactly ours.
+     */
+    private static void shareSomeLocations(Random random, Map<String, List<InventoryItem>> yours,
+                                           Map<String, List<InventoryItem>> theirs, Map<String, List<InventoryItem>> houseCount) {
+        for (Map.Entry<String, List<InventoryItem>> entry : yours.entrySet()) {
+            if (random.nextInt(3) != 0) continue;
+            theirs.put(entry.getKey(), copyOf(entry.getValue()));
+            if (random.nextBoolean()) houseCount.put(entry.getKey(), copyOf(entry.getValue()));
+        }
+    }
+
+    private static List<InventoryItem> copyOf(List<InventoryItem> items) {
+        List<InventoryItem> copy = new ArrayList<>();
+        for (InventoryItem item : items) copy.add(item.copy());
+        return copy;
+    }
+
+    private static LinkedHashMap<String, List<InventoryItem>> single(List<InventoryItem> items) {
+        LinkedHashMap<String, List<InventoryItem>> inventory = new LinkedHashMap<>();
+        inventory.put("Pantry", items);
+        return inventory;
+    }
+
+    // --- The new merge, fed the way SyncHelper and PeerSync feed it ---
+
+    private static LinkedHashMap<String, List<InventoryItem>> newMerge(Map<String, List<InventoryItem>> yours,
+                                                                       Map<String, List<InventoryItem>> theirs,
+                                                                       Map<String, List<InventoryItem>> houseCount) throws IOException {
+        Iterator<Map.Entry<String, List<InventoryItem>>> incoming = theirs.entrySet().iterator();
+        SyncMerger.Incoming source = new SyncMerger.Incoming() {
+            private Map.Entry<String, List<InventoryItem>> current;
+
+            @Override
+            public String nextLocation() {
+                current = incoming.hasNext() ? incoming.next() : null;
+                return current != null ? current.getKey() : null;
+            }
+
+            @Override
+            public List<InventoryItem> items() {
+                // Same as ours: send nothing, the way a matching digest does. Only for items that survive an export as they are
+                // (a missing size is written out as null and comes back as "null", which the old merge would have seen too).
+                List<InventoryItem> ours = yours.get(current.getKey());
+                if (ours != null && isComplete(ours) && LocationDigest.of(ours).sameAs(LocationDigest.of(current.getValue()))) return null;
+                return current.getValue();
+            }
+        };
+
+        return SyncMerger.merge(source, new ArrayList<>(yours.keySet()),
+                location -> yours.getOrDefault(location, Collections.emptyList()),
+                location -> yours.containsKey(location) ? LocationDigest.of(yours.get(location)) : null,
+                location -> houseCount.getOrDefault(location, Collections.emptyList()),
+                location -> houseCount.containsKey(location) ? LocationDigest.of(houseCount.get(location)) : null,
+                new SyncMerger.Progress() {
+                    @Override
+                    public void location(String location, int done, int total) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+                });
+    }
+
+    private static boolean isComplete(List<InventoryItem> items) {
+        for (InventoryItem item : items) {
+            if (item.getName() == null || item.getQuantity() == null) return false;
+        }
+        return true;
+    }
+
+    // --- Comparing the two ---
+
+    // Location -> its items as text, locations sorted (the old merge came out in HashSet order), items in order
+    private static Map<String, List<String>> describe(Map<String, List<InventoryItem>> inventory) {
+        Map<String, List<String>> described = new TreeMap<>();
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            described.put(entry.getKey(), describeItems(entry.getValue()));
+        }
+        return described;
+    }
+
+    private static Map<String, List<String>> describe(JSONObject inventory) throws JSONException {
+        Map<String, List<String>> described = new TreeMap<>();
+        for (String location : toKeySet(inventory)) {
+            JSONArray items = inventory.getJSONArray(location);
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                lines.add(describe(item.optString("name"), item.optString("quantity"),
+                        item.has("barcode") ? item.getString("barcode") : null, item.getInt("stockQuantity")));
+            }
+            described.put(location, lines);
+        }
+        return described;
+    }
+
+    private static List<String> describeItems(List<InventoryItem> items) {
+        List<String> lines = new ArrayList<>();
+        for (InventoryItem item : items) {
+            lines.add(describe(item.getName(), item.getQuantity(), item.getBarcode(), item.getStockQuantity()));
+        }
+        return lines;
+    }
+
+    private static String describe(String name, String quantity, String barcode, int stockQuantity) {
+        return name + " | " + quantity + " | " + (barcode != null ? "[" + barcode + "]" : "no barcode") + " | " + stockQuantity;
+    }
+
+    // An inventory the way the old code saw it on disk (a null field just isn't there)
+    private static JSONObject toJson(Map<String, List<InventoryItem>> inventory) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, List<InventoryItem>> entry : inventory.entrySet()) {
+            JSONArray items = new JSONArray();
+            for (InventoryItem item : entry.getValue()) {
+                JSONObject object = new JSONObject();
+                if (item.getName() != null) object.put("name", item.getName());
+                if (item.getQuantity() != null) object.put("quantity", item.getQuantity());
+                if (item.getBarcode() != null) object.put("barcode", item.getBarcode());
+                object.put("stockQuantity", item.getStockQuantity());
+                items.put(object);
+            }
+            json.put(entry.getKey(), items);
+        }
+        return json;
+    }
+
+    // --- The old merge, as it was in SyncHelper before SyncMerger ---
+
+    private static JSONObject oldMerge(JSONObject localJson, JSONObject externalJson, JSONObject previousHouseCount) throws JSONException {
+        JSONObject mergedJson = new JSONObject();
+
+        // Union of all storage locations found in either file (handles new/unknown spots)
+        Set<String> allLocations = new HashSet<>();
+        allLocations.addAll(toKeySet(localJson));
+        allLocations.addAll(toKeySet(externalJson));
+
+        // Now for each location, merge its inventory
+        for (String location : allLocations) {
+            JSONArray localItems = localJson.optJSONArray(location);
+            JSONArray externalItems = externalJson.optJSONArray(location);
+            JSONArray mergedArray = new JSONArray();
+
+            if (localItems == null) localItems = new JSONArray();
+            if (externalItems == null) externalItems = new JSONArray();
+
+            // Loop through local items and find their counterpart in the external set
+            for (int i = 0; i < localItems.length(); i++) {
+                JSONObject localItem = localItems.getJSONObject(i);
+                String barcode = localItem.optString("barcode", null);
+                String name = localItem.optString("name");
+                String quantity = localItem.optString("quantity");
+                int localCount = localItem.optInt("stockQuantity", 1);
+
+                // Try to find a matching item in the incoming list
+                JSONObject externalItem = findByBarcode(externalItems, barcode);
+                int externalCount = externalItem != null ? externalItem.optInt("stockQuantity", 1) : 0;
+
+                // Find the previous agreed-upon quantity, if any
+                JSONObject prev = findByBarcode(previousHouseCount.optJSONArray(location), barcode);
+                int oldHouseCount = prev != null ? prev.optInt("stockQuantity", 0) : 0;
+
+                // Do the sync math: (you + them - last known shared state)
+                int newCount = localCount + externalCount - oldHouseCount;
+
+                JSONObject mergedItem = new JSONObject();
+                mergedItem.put("name", name);
+                mergedItem.put("quantity", quantity);
+                mergedItem.put("barcode", barcode);
+                mergedItem.put("stockQuantity", newCount);
+                mergedArray.put(mergedItem);
+            }
+
+            // Now add items that *only* exist in the incoming file
+            for (int i = 0; i < externalItems.length(); i++) {
+                JSONObject externalItem = externalItems.getJSONObject(i);
+                String barcode = externalItem.optString("barcode", null);
+                if (findByBarcode(mergedArray, barcode) != null) continue; // Already merged
+
+                String name = externalItem.optString("name");
+                String quantity = externalItem.optString("quantity");
+                int externalCount = externalItem.optInt("stockQuantity", 1);
+
+                JSONObject prev = findByBarcode(previousHouseCount.optJSONArray(location), barcode);
+                int oldHouseCount = prev != null ? prev.optInt("stockQuantity", 0) : 0;
+
+                int newCount = externalCount - oldHouseCount; // Since local didn't know this existed
+
+                JSONObject mergedItem = new JSONObject();
+                mergedItem.put("name", name);
+                mergedItem.put("quantity", quantity);
+                mergedItem.put("barcode", barcode);
+                mergedItem.put("stockQuantity", newCount);
+                mergedArray.put(mergedItem);
+            }
+
+            mergedJson.put(location, mergedArray);
+        }
+        return mergedJson;
+    }
+
+    // Helper that gives us all the keys from a JSON object as a Set so we can loop them
+    private static Set<String> toKeySet(JSONObject obj) {
+        Set<String> keys = new HashSet<>();
+        if (obj == null) return keys;
+        Iterator<String> iter = obj.keys();
+        while (iter.hasNext()) keys.add(iter.next());
+        return keys;
+    }
+
+    // Used to find matching item in an array by its barcode (our main unique identifier)
+    private static JSONObject findByBarcode(JSONArray array, String barcode) throws JSONException {
+        if (array == null || barcode == null) return null;
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject obj = array.getJSONObject(i);
+            if (barcode.equals(obj.optString("barcode"))) return obj;
+        }
+        return null;
+    }
+}